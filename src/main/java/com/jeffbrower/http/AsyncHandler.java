@@ -0,0 +1,22 @@
+package com.jeffbrower.http;
+
+import java.util.concurrent.CompletionStage;
+
+/** An {@link AsyncRequestHandler} among the others, which the router does not wait for. */
+final class AsyncHandler implements RequestHandler {
+  final AsyncRequestHandler handler;
+
+  AsyncHandler(final AsyncRequestHandler handler) {
+    this.handler = handler;
+  }
+
+  CompletionStage<Boolean> start(final Request req, final Response res) {
+    return handler.handle(req, res);
+  }
+
+  /** Wait for the handler, for callers that cannot do otherwise. */
+  @Override
+  public boolean handle(final Request req, final Response res) {
+    return start(req, res).toCompletableFuture().join();
+  }
+}
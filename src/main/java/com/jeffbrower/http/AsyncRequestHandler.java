@@ -0,0 +1,19 @@
+package com.jeffbrower.http;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A {@link RequestHandler} that does not hold a thread while it waits, e.g. for a database or
+ * another service. The response is written once the returned stage completes, or produced by the
+ * {@link ErrorHandler} if it fails.
+ */
+public interface AsyncRequestHandler {
+  /**
+   * Start handling a request.
+   *
+   * @param req The {@link Request HTTP request}.
+   * @param res The {@link Response HTTP response}, which may be changed until the stage completes.
+   * @return A stage completing with {@code true} if the request has been fully handled.
+   */
+  CompletionStage<Boolean> handle(Request req, Response res);
+}
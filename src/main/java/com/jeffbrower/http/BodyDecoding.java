@@ -0,0 +1,207 @@
+package com.jeffbrower.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How request bodies are decoded: the transfer codings before {@code chunked} always, and the
+ * content codings of {@code Content-Encoding} if asked to, each of which may be {@code gzip},
+ * {@code deflate} or {@code br}. Decoding stops with a {@link Status#PAYLOAD_TOO_LARGE} error once
+ * the decoded body grows past a limit, or to too many times the size of the body as sent, so a
+ * small request cannot expand into an unbounded amount of memory or work.
+ */
+public final class BodyDecoding {
+  // the ratio is only checked past this much, where a small body that compresses well is harmless
+  private static final long MIN_RATIO_CHECKED = 1024 * 1024;
+
+  private boolean contentCodings;
+  private long maxBodySize = 64 * 1024 * 1024;
+  private long maxDecodedSize = 64 * 1024 * 1024;
+  private int maxRatio = 1000;
+
+  /**
+   * Also decode bodies sent with a {@code Content-Encoding}, removing the header, so handlers see
+   * them as they were before being compressed. Other content codings are refused with {@link
+   * Status#UNSUPPORTED_MEDIA_TYPE}.
+   */
+  public BodyDecoding withContentCodings() {
+    contentCodings = true;
+    return this;
+  }
+
+  /**
+   * Refuse bodies read in full before the handlers run, as sent, once they are longer than this
+   * many bytes. Streamed bodies are left to the handlers.
+   */
+  public BodyDecoding withMaxBodySize(final long maxBodySize) {
+    if (maxBodySize < 0) {
+      throw new IllegalArgumentException("maxBodySize must not be negative");
+    }
+    this.maxBodySize = maxBodySize;
+    return this;
+  }
+
+  long maxBodySize() {
+    return maxBodySize;
+  }
+
+  /** Fail decoding a body once it grows past this many bytes. */
+  public BodyDecoding withMaxDecodedSize(final long maxDecodedSize) {
+    if (maxDecodedSize < 0) {
+      throw new IllegalArgumentException("maxDecodedSize must not be negative");
+    }
+    this.maxDecodedSize = maxDecodedSize;
+    return this;
+  }
+
+  /** Fail decoding a body once it grows past this many times the bytes it was decoded from. */
+  public BodyDecoding withMaxRatio(final int maxRatio) {
+    if (maxRatio < 1) {
+      throw new IllegalArgumentException("maxRatio must be positive");
+    }
+    this.maxRatio = maxRatio;
+    return this;
+  }
+
+  /**
+   * The codings to undo to decode the body of a request, in the order to undo them, rejecting any
+   * that cannot be.
+   *
+   * @param transferEncodings The request's transfer encodings, ending in {@code chunked}; or {@code
+   *     null}.
+   * @return The codings, or {@code null} if there are none.
+   */
+  String[] codings(final Request request, final Header.WithParams[] transferEncodings) {
+    final List<String> codings = new ArrayList<>();
+    if (transferEncodings != null) {
+      for (int i = transferEncodings.length - 2; i >= 0; i--) {
+        final Header.WithParams enc = transferEncodings[i];
+        if (!enc.params.isEmpty()) {
+          throw Status.BAD_REQUEST.exception("Transfer-Encoding value cannot have params");
+        }
+        if ("chunked".equalsIgnoreCase(enc.value)) {
+          throw Status.BAD_REQUEST.exception("Duplicate Transfer-Encoding 'chunked'");
+        } else if ("compress".equalsIgnoreCase(enc.value)
+            || "x-compress".equalsIgnoreCase(enc.value)) {
+          throw Status.NOT_IMPLEMENTED.exception("'compress' Transfer-Encoding is not supported");
+        } else if (!supported(enc.value)) {
+          throw Status.NOT_IMPLEMENTED.exception("Transfer-Encoding not supported: '" + enc + "'");
+        }
+        codings.add(enc.value);
+      }
+    }
+
+    final Optional<String> contentEncoding =
+        request.headers.entity.get(EntityHeader.CONTENT_ENCODING);
+    if (contentCodings && contentEncoding.isPresent()) {
+      // content codings are applied before transfer codings, so are undone after them
+      final String[] encs = contentEncoding.get().split(",");
+      for (int i = encs.length - 1; i >= 0; i--) {
+        final String enc = encs[i].trim();
+        if (!supported(enc) && !"identity".equalsIgnoreCase(enc)) {
+          throw Status.UNSUPPORTED_MEDIA_TYPE.exception(
+              "Content-Encoding not supported: '" + enc + "'");
+        }
+        if (!"identity".equalsIgnoreCase(enc)) {
+          codings.add(enc);
+        }
+      }
+      request.headers.entity.replace(EntityHeader.CONTENT_ENCODING, null);
+    }
+    return codings.isEmpty() ? null : codings.toArray(new String[0]);
+  }
+
+  private static boolean supported(final String coding) {
+    return "gzip".equalsIgnoreCase(coding)
+        || "x-gzip".equalsIgnoreCase(coding)
+        || "deflate".equalsIgnoreCase(coding)
+        || "br".equalsIgnoreCase(coding);
+  }
+
+  /**
+   * Undo {@code codings}, as returned by {@link #codings}, as {@code raw} is read. The decoded
+   * stream ends once {@code raw} does, even if the codings end before it.
+   */
+  InputStream decode(final InputStream raw, final String[] codings) throws IOException {
+    final long[] read = new long[1];
+    InputStream in =
+        new FilterInputStream(raw) {
+          @Override
+          public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+              read[0]++;
+            }
+            return b;
+          }
+
+          @Override
+          public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+              read[0] += n;
+            }
+            return n;
+          }
+        };
+    for (final String coding : codings) {
+      if ("deflate".equalsIgnoreCase(coding)) {
+        in = new InflaterInputStream(in);
+      } else if ("br".equalsIgnoreCase(coding)) {
+        in = new BrotliInputStream(in, maxDecodedSize);
+      } else {
+        in = new GZIPInputStream(in);
+      }
+    }
+    return new FilterInputStream(in) {
+      private long decoded;
+
+      @Override
+      public int read() throws IOException {
+        final int b = super.read();
+        if (b == -1) {
+          drain();
+        } else {
+          check(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n == -1) {
+          drain();
+        } else {
+          check(n);
+        }
+        return n;
+      }
+
+      private void check(final int n) {
+        decoded += n;
+        if (decoded > maxDecodedSize) {
+          throw Status.PAYLOAD_TOO_LARGE.exception(
+              "Decoded body exceeds " + maxDecodedSize + " bytes");
+        }
+        if (decoded > MIN_RATIO_CHECKED && decoded / Math.max(1, read[0]) > maxRatio) {
+          throw Status.PAYLOAD_TOO_LARGE.exception(
+              "Decoded body exceeds " + maxRatio + " times its coded size");
+        }
+      }
+
+      private void drain() throws IOException {
+        final byte[] discard = new byte[4096];
+        while (raw.read(discard) != -1) {
+          // the framing after the codings end
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,25 @@
+package com.jeffbrower.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A streamed request body, read from the connection as the handler asks for it. Only {@code
+ * chunked} has been decoded; {@link Request#getBodyStream} undoes any other transfer coding.
+ */
+abstract class BodyStream extends InputStream {
+  /**
+   * Read whatever is left of the body without waiting for the client, so the connection can serve
+   * another request.
+   *
+   * @return Whether the whole body has now been read.
+   */
+  abstract boolean drainBuffered();
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    final int n = read(b, 0, 1);
+    return n == -1 ? -1 : b[0] & 0xFF;
+  }
+}
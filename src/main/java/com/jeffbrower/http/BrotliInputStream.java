@@ -0,0 +1,1063 @@
+package com.jeffbrower.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes a Brotli stream (RFC 7932) as it is read, with no native code. Output is produced into a
+ * ring buffer as large as the stream's window, or the most output allowed if that is smaller, which
+ * starts small and grows as the stream needs it; the rest of the state is a few tables per
+ * meta-block.
+ *
+ * <p>Input is read only as far as the next symbol needs, so a body being streamed can be decoded as
+ * it arrives. Malformed input fails with an {@link IOException}; output beyond the limit with a
+ * {@link Status#PAYLOAD_TOO_LARGE} exception.
+ */
+final class BrotliInputStream extends InputStream {
+  private static final int INITIAL_RING_SIZE = 1 << 15;
+
+  // prefix codes: a root table indexed by the next 8 bits, pointing to second-level tables for
+  // longer codes
+  private static final int ROOT_BITS = 8;
+  private static final int MAX_LENGTH = 15;
+
+  private static final int[] CODE_LENGTH_ORDER = {
+    1, 2, 3, 4, 0, 5, 17, 6, 16, 7, 8, 9, 10, 11, 12, 13, 14, 15
+  };
+  // the fixed code for code length code lengths, indexed by the next 4 bits
+  private static final int[] CODE_LENGTH_PREFIX_LENGTH = {
+    2, 2, 2, 3, 2, 2, 2, 4, 2, 2, 2, 3, 2, 2, 2, 4
+  };
+  private static final int[] CODE_LENGTH_PREFIX_VALUE = {
+    0, 4, 3, 2, 0, 4, 3, 1, 0, 4, 3, 2, 0, 4, 3, 5
+  };
+
+  private static final int[] BLOCK_LENGTH_BASE = {
+    1, 5, 9, 13, 17, 25, 33, 41, 49, 65, 81, 97, 113, 145, 177, 209, 241, 305, 369, 497, 753, 1265,
+    2289, 4337, 8433, 16625
+  };
+  private static final int[] BLOCK_LENGTH_EXTRA = {
+    2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 6, 6, 7, 8, 9, 10, 11, 12, 13, 24
+  };
+
+  private static final int[] INSERT_LENGTH_BASE = {
+    0, 1, 2, 3, 4, 5, 6, 8, 10, 14, 18, 26, 34, 50, 66, 98, 130, 194, 322, 578, 1090, 2114, 6210,
+    22594
+  };
+  private static final int[] INSERT_LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 12, 14, 24
+  };
+  private static final int[] COPY_LENGTH_BASE = {
+    2, 3, 4, 5, 6, 7, 8, 9, 10, 12, 14, 18, 22, 30, 38, 54, 70, 102, 134, 198, 326, 582, 1094, 2118
+  };
+  private static final int[] COPY_LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 24
+  };
+  // where each cell of 64 insert-and-copy codes starts in the insert and copy length codes
+  private static final int[] INSERT_CELL = {0, 0, 0, 0, 8, 8, 0, 16, 8, 16, 16};
+  private static final int[] COPY_CELL = {0, 8, 0, 8, 0, 8, 16, 0, 16, 8, 16};
+
+  // distance codes 0 to 15: which recent distance, and what to add to it
+  private static final int[] DISTANCE_SHORT_INDEX = {
+    0, 1, 2, 3, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1
+  };
+  private static final int[] DISTANCE_SHORT_DELTA = {
+    0, 0, 0, 0, -1, 1, -2, 2, -3, 3, -1, 1, -2, 2, -3, 3
+  };
+
+  private static final int CONTEXT_LSB6 = 0;
+  private static final int CONTEXT_MSB6 = 1;
+  private static final int CONTEXT_UTF8 = 2;
+  // the context of a literal is CONTEXT_LOOKUP[mode][p1] | CONTEXT_LOOKUP[mode][256 + p2]
+  private static final int[][] CONTEXT_LOOKUP = new int[4][512];
+  private static final int[] UTF8_P1 = {
+    0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 4, 0, 0, 4, 0, 0,
+    0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+    8, 12, 16, 12, 12, 20, 12, 16, 24, 28, 12, 12, 32, 12, 36, 12,
+    44, 44, 44, 44, 44, 44, 44, 44, 44, 44, 32, 32, 24, 40, 28, 12,
+    12, 48, 52, 52, 52, 48, 52, 52, 52, 48, 52, 52, 52, 52, 52, 48,
+    52, 52, 52, 52, 52, 48, 52, 52, 52, 52, 52, 24, 12, 28, 12, 12,
+    12, 56, 60, 60, 60, 56, 60, 60, 60, 56, 60, 60, 60, 60, 60, 56,
+    60, 60, 60, 60, 60, 56, 60, 60, 60, 60, 60, 24, 12, 28, 12, 0
+  };
+  private static final int[] UTF8_P2 = {
+    0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+    0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+    0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+    2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1,
+    1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+    2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1,
+    1, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+    3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 1, 1, 1, 1, 0
+  };
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      CONTEXT_LOOKUP[CONTEXT_LSB6][i] = i & 0x3F;
+      CONTEXT_LOOKUP[CONTEXT_MSB6][i] = i >> 2;
+      // UTF-8 continuation bytes, then lead bytes, by their lowest bit
+      CONTEXT_LOOKUP[CONTEXT_UTF8][i] = i < 128 ? UTF8_P1[i] : i < 0xC0 ? i & 1 : 2 | (i & 1);
+      CONTEXT_LOOKUP[CONTEXT_UTF8][256 + i] = i < 128 ? UTF8_P2[i] : i < 0xE0 ? 0 : 2;
+      // signed: how far from zero the byte is, as a two's complement value
+      final int signed =
+          i == 0
+              ? 0
+              : i < 16 ? 1 : i < 64 ? 2 : i < 128 ? 3 : i < 192 ? 4 : i < 240 ? 5 : i < 255 ? 6 : 7;
+      CONTEXT_LOOKUP[3][i] = signed << 3;
+      CONTEXT_LOOKUP[3][256 + i] = signed;
+    }
+  }
+
+  // the static dictionary: how many words of each length, as bits, and where they start
+  private static final int[] DICTIONARY_BITS = {
+    0, 0, 0, 0, 10, 10, 11, 11, 10, 10, 10, 10, 10, 9, 9, 8, 7, 7, 8, 7, 7, 6, 6, 5, 5
+  };
+  private static final int[] DICTIONARY_OFFSET = new int[DICTIONARY_BITS.length];
+
+  static {
+    for (int length = 1; length < DICTIONARY_BITS.length; length++) {
+      DICTIONARY_OFFSET[length] =
+          DICTIONARY_OFFSET[length - 1]
+              + (DICTIONARY_BITS[length - 1] == 0
+                  ? 0
+                  : (length - 1) << DICTIONARY_BITS[length - 1]);
+    }
+  }
+
+  /** The dictionary, only loaded once a stream refers to it. */
+  private static final class Dictionary {
+    private static final int SIZE = 122_784;
+    static final byte[] DATA = load();
+
+    private static byte[] load() {
+      try (InputStream in = BrotliInputStream.class.getResourceAsStream("brotli-dictionary.bin")) {
+        final byte[] data = in == null ? null : in.readAllBytes();
+        if (data == null || data.length != SIZE) {
+          throw new IllegalStateException("Brotli dictionary is missing or corrupt");
+        }
+        return data;
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // the transforms applied to dictionary words: prefix, type and suffix, the affixes indexing
+  // AFFIXES; types are identity (0), omit the last 1 to 9 bytes (1 to 9), uppercase the first
+  // character (10) or all of them (11), and omit the first 1 to 9 bytes (12 to 20)
+  private static final String[] AFFIXES = {
+    " ",
+    ", ",
+    " of the ",
+    " of ",
+    "s ",
+    ".",
+    " and ",
+    " in ",
+    "\"",
+    " to ",
+    "\">",
+    "\n",
+    ". ",
+    "]",
+    " for ",
+    " a ",
+    " that ",
+    "'",
+    " with ",
+    " from ",
+    " by ",
+    "(",
+    ". The ",
+    " on ",
+    " as ",
+    " is ",
+    "ing ",
+    "\n\t",
+    ":",
+    "ed ",
+    "=\"",
+    " at ",
+    "ly ",
+    ",",
+    "='",
+    ".com/",
+    ". This ",
+    " not ",
+    "er ",
+    "al ",
+    "ful ",
+    "ive ",
+    "less ",
+    "est ",
+    "ize ",
+    "\u00c2\u00a0",
+    "ous ",
+    " the ",
+    "e ",
+    ""
+  };
+  private static final byte[] TRANSFORMS = {
+    49, 0, 49, 49, 0, 0, 0, 0, 0, 49, 12, 49, 49, 10, 0, 49, 0, 47, 0, 0, 49, 4, 0, 0, 49, 0, 3, 49,
+    10, 49, 49, 0, 6, 49, 13, 49, 49, 1, 49, 1, 0, 0, 49, 0, 1, 0, 10, 0, 49, 0, 7, 49, 0, 9, 48, 0,
+    0, 49, 0, 8, 49, 0, 5, 49, 0, 10, 49, 0, 11, 49, 3, 49, 49, 0, 13, 49, 0, 14, 49, 14, 49, 49, 2,
+    49, 49, 0, 15, 49, 0, 16, 0, 10, 49, 49, 0, 12, 5, 0, 49, 0, 0, 1, 49, 15, 49, 49, 0, 18, 49, 0,
+    17, 49, 0, 19, 49, 0, 20, 49, 16, 49, 49, 17, 49, 47, 0, 49, 49, 4, 49, 49, 0, 22, 49, 11, 49,
+    49, 0, 23, 49, 0, 24, 49, 0, 25, 49, 7, 49, 49, 1, 26, 49, 0, 27, 49, 0, 28, 0, 0, 12, 49, 0,
+    29, 49, 20, 49, 49, 18, 49, 49, 6, 49, 49, 0, 21, 49, 10, 1, 49, 8, 49, 49, 0, 31, 49, 0, 32,
+    47, 0, 3, 49, 5, 49, 49, 9, 49, 0, 10, 1, 49, 10, 8, 5, 0, 21, 49, 11, 0, 49, 10, 10, 49, 0, 30,
+    0, 0, 5, 35, 0, 49, 47, 0, 2, 49, 10, 17, 49, 0, 36, 49, 0, 33, 5, 0, 0, 49, 10, 21, 49, 10, 5,
+    49, 0, 37, 0, 0, 30, 49, 0, 38, 0, 11, 0, 49, 0, 39, 0, 11, 49, 49, 0, 34, 49, 11, 8, 49, 10,
+    12, 0, 0, 21, 49, 0, 40, 0, 10, 12, 49, 0, 41, 49, 0, 42, 49, 11, 17, 49, 0, 43, 0, 10, 5, 49,
+    11, 10, 0, 0, 34, 49, 10, 33, 49, 0, 44, 49, 11, 5, 45, 0, 49, 0, 0, 33, 49, 10, 30, 49, 11, 30,
+    49, 0, 46, 49, 11, 1, 49, 10, 34, 0, 10, 33, 0, 11, 30, 0, 11, 1, 49, 11, 33, 49, 11, 21, 49,
+    11, 12, 0, 11, 5, 49, 11, 34, 0, 11, 12, 0, 10, 30, 0, 11, 34, 0, 10, 34
+  };
+  private static final int TRANSFORM_COUNT = TRANSFORMS.length / 3;
+  private static final byte[][] AFFIX_BYTES = new byte[AFFIXES.length][];
+
+  static {
+    for (int i = 0; i < AFFIXES.length; i++) {
+      AFFIX_BYTES[i] = AFFIXES[i].getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private enum State {
+    STREAM_HEADER,
+    METABLOCK_HEADER,
+    UNCOMPRESSED,
+    COMMAND,
+    INSERT,
+    COPY,
+    DICTIONARY_WORD,
+    DONE
+  }
+
+  private final InputStream in;
+  private final long maxOutput;
+
+  // input, read as a little-endian stream of bits
+  private final byte[] input = new byte[4096];
+  private int inputPos;
+  private int inputLimit;
+  private boolean inputEnded;
+  private long bits;
+  private int bitCount;
+
+  // output: the last ring.length bytes, of which the last pos - readPos are still to be read
+  private byte[] ring;
+  private int ringCap;
+  private int windowSize;
+  private long pos;
+  private long readPos;
+
+  private State state = State.STREAM_HEADER;
+  private boolean lastMetaBlock;
+  private int metaBlockRemaining;
+
+  // per meta-block: for literals, commands and distances, the block types and counts
+  private final int[] blockTypes = new int[3];
+  private final int[] lastBlockTypes = new int[3];
+  private final int[] blockTypeCounts = new int[3];
+  private final int[] blockRemaining = new int[3];
+  private final int[][] blockTypeCodes = new int[3][];
+  private final int[][] blockCountCodes = new int[3][];
+  private int postfixBits;
+  private int directDistances;
+  private byte[] contextModes;
+  private int[] literalContextMap;
+  private int[] distanceContextMap;
+  private int[][] literalCodes;
+  private int[][] commandCodes;
+  private int[][] distanceCodes;
+
+  // the command in progress
+  private int insertRemaining;
+  private int copyLength;
+  private boolean implicitDistance;
+  private int copyRemaining;
+  private int copyDistance;
+  private final int[] distances = {16, 15, 11, 4};
+  private int distanceIndex = 3;
+  private final byte[] word = new byte[64];
+  private int wordPos;
+  private int wordLength;
+
+  private final byte[] single = new byte[1];
+
+  /**
+   * @param maxOutput How many bytes may be decoded before failing, which also bounds the size of
+   *     the ring buffer.
+   */
+  BrotliInputStream(final InputStream in, final long maxOutput) {
+    this.in = in;
+    this.maxOutput = maxOutput;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (pos == readPos) {
+      if (state == State.DONE) {
+        return -1;
+      }
+      decode();
+    }
+    final int mask = ring.length - 1;
+    final int n = (int) Math.min(len, pos - readPos);
+    final int from = (int) readPos & mask;
+    final int first = Math.min(n, ring.length - from);
+    System.arraycopy(ring, from, b, off, first);
+    System.arraycopy(ring, 0, b, off + first, n - first);
+    readPos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, pos - readPos);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // bits
+
+  private boolean refill() throws IOException {
+    if (inputEnded) {
+      return false;
+    }
+    final int n = in.read(input, 0, input.length);
+    if (n <= 0) {
+      inputEnded = true;
+      return false;
+    }
+    inputPos = 0;
+    inputLimit = n;
+    return true;
+  }
+
+  /**
+   * Make at least {@code n} bits available if the input has them, only reading from the stream when
+   * those buffered run out.
+   */
+  private void fill(final int n) throws IOException {
+    while (bitCount < n) {
+      if (inputPos == inputLimit && !refill()) {
+        return;
+      }
+      bits |= (long) (input[inputPos++] & 0xFF) << bitCount;
+      bitCount += 8;
+    }
+    // top up from what is buffered, for free
+    while (bitCount <= 56 && inputPos < inputLimit) {
+      bits |= (long) (input[inputPos++] & 0xFF) << bitCount;
+      bitCount += 8;
+    }
+  }
+
+  private int readBits(final int n) throws IOException {
+    if (bitCount < n) {
+      fill(n);
+      if (bitCount < n) {
+        throw new IOException("Truncated brotli stream");
+      }
+    }
+    final int v = (int) bits & ((1 << n) - 1);
+    bits >>>= n;
+    bitCount -= n;
+    return v;
+  }
+
+  private void skipBits(final int n) throws IOException {
+    if (n > bitCount) {
+      throw new IOException("Truncated brotli stream");
+    }
+    bits >>>= n;
+    bitCount -= n;
+  }
+
+  /** Skip to the next byte boundary, whose padding must be zero. */
+  private void alignToByte() throws IOException {
+    if (readBits(bitCount & 7) != 0) {
+      throw corrupt("non-zero padding");
+    }
+  }
+
+  /** Read a whole byte, once aligned, from the bits buffered or the input. */
+  private int readByte() throws IOException {
+    if (bitCount == 0) {
+      if (inputPos == inputLimit && !refill()) {
+        throw new IOException("Truncated brotli stream");
+      }
+      return input[inputPos++] & 0xFF;
+    }
+    return readBits(8);
+  }
+
+  private static IOException corrupt(final String why) {
+    return new IOException("Corrupt brotli stream: " + why);
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // prefix codes
+
+  private int readSymbol(final int[] table) throws IOException {
+    if (bitCount < MAX_LENGTH) {
+      fill(MAX_LENGTH);
+    }
+    int entry = table[(int) bits & 0xFF];
+    if (entry < 0) {
+      final int subBits = (entry >>> 16) & 0xF;
+      entry = table[(entry & 0xFFFF) + ((int) (bits >>> ROOT_BITS) & ((1 << subBits) - 1))];
+    }
+    skipBits(entry >>> 16);
+    return entry & 0xFFFF;
+  }
+
+  /**
+   * Build the decoding table of a canonical prefix code from its code lengths. A code of only one
+   * symbol takes no bits.
+   */
+  private static int[] buildTable(final int[] lengths) {
+    final int[] count = new int[MAX_LENGTH + 1];
+    int used = 0;
+    int only = 0;
+    for (int symbol = 0; symbol < lengths.length; symbol++) {
+      if (lengths[symbol] != 0) {
+        count[lengths[symbol]]++;
+        used++;
+        only = symbol;
+      }
+    }
+    final int[] root = new int[1 << ROOT_BITS];
+    if (used == 1) {
+      Arrays.fill(root, only);
+      return root;
+    }
+
+    final int[] next = new int[MAX_LENGTH + 1];
+    for (int length = 1, code = 0; length <= MAX_LENGTH; length++) {
+      code = (code + count[length - 1]) << 1;
+      next[length] = code;
+    }
+    // codes are read least significant bit first
+    final int[] reversed = new int[lengths.length];
+    final int[] subBits = new int[1 << ROOT_BITS];
+    for (int symbol = 0; symbol < lengths.length; symbol++) {
+      final int length = lengths[symbol];
+      if (length != 0) {
+        final int r = Integer.reverse(next[length]++) >>> (32 - length);
+        reversed[symbol] = r;
+        if (length > ROOT_BITS) {
+          final int prefix = r & 0xFF;
+          subBits[prefix] = Math.max(subBits[prefix], length - ROOT_BITS);
+        }
+      }
+    }
+
+    int size = 1 << ROOT_BITS;
+    final int[] offset = new int[1 << ROOT_BITS];
+    for (int prefix = 0; prefix < subBits.length; prefix++) {
+      if (subBits[prefix] != 0) {
+        offset[prefix] = size;
+        size += 1 << subBits[prefix];
+      }
+    }
+    final int[] table = Arrays.copyOf(root, size);
+    for (int prefix = 0; prefix < subBits.length; prefix++) {
+      if (subBits[prefix] != 0) {
+        table[prefix] = 0x8000_0000 | subBits[prefix] << 16 | offset[prefix];
+      }
+    }
+    for (int symbol = 0; symbol < lengths.length; symbol++) {
+      final int length = lengths[symbol];
+      final int r = reversed[symbol];
+      if (length == 0) {
+        continue;
+      }
+      if (length <= ROOT_BITS) {
+        for (int i = r; i < 1 << ROOT_BITS; i += 1 << length) {
+          table[i] = length << 16 | symbol;
+        }
+      } else {
+        final int prefix = r & 0xFF;
+        for (int i = r >>> ROOT_BITS; i < 1 << subBits[prefix]; i += 1 << (length - ROOT_BITS)) {
+          table[offset[prefix] + i] = length << 16 | symbol;
+        }
+      }
+    }
+    return table;
+  }
+
+  private int[] readPrefixCode(final int alphabetSize) throws IOException {
+    final int[] lengths = new int[alphabetSize];
+    final int hskip = readBits(2);
+    if (hskip == 1) {
+      // simple: up to four symbols with implied lengths
+      final int count = readBits(2) + 1;
+      final int symbolBits = 32 - Integer.numberOfLeadingZeros(alphabetSize - 1);
+      final int[] symbols = new int[count];
+      for (int i = 0; i < count; i++) {
+        symbols[i] = readBits(symbolBits);
+        if (symbols[i] >= alphabetSize) {
+          throw corrupt("symbol out of range");
+        }
+        for (int j = 0; j < i; j++) {
+          if (symbols[j] == symbols[i]) {
+            throw corrupt("duplicate symbol");
+          }
+        }
+      }
+      switch (count) {
+        case 1:
+          lengths[symbols[0]] = 1;
+          break;
+        case 2:
+          lengths[symbols[0]] = 1;
+          lengths[symbols[1]] = 1;
+          break;
+        case 3:
+          lengths[symbols[0]] = 1;
+          lengths[symbols[1]] = 2;
+          lengths[symbols[2]] = 2;
+          break;
+        default:
+          if (readBits(1) == 0) {
+            Arrays.fill(lengths, 0);
+            for (final int symbol : symbols) {
+              lengths[symbol] = 2;
+            }
+          } else {
+            lengths[symbols[0]] = 1;
+            lengths[symbols[1]] = 2;
+            lengths[symbols[2]] = 3;
+            lengths[symbols[3]] = 3;
+          }
+      }
+      return buildTable(lengths);
+    }
+
+    // complex: the code lengths, themselves prefix coded
+    final int[] codeLengthLengths = new int[CODE_LENGTH_ORDER.length];
+    int space = 32;
+    int codes = 0;
+    for (int i = hskip; i < CODE_LENGTH_ORDER.length && space > 0; i++) {
+      fill(4);
+      final int p = (int) bits & 0xF;
+      skipBits(CODE_LENGTH_PREFIX_LENGTH[p]);
+      final int length = CODE_LENGTH_PREFIX_VALUE[p];
+      codeLengthLengths[CODE_LENGTH_ORDER[i]] = length;
+      if (length != 0) {
+        space -= 32 >> length;
+        codes++;
+      }
+    }
+    if (codes != 1 && space != 0) {
+      throw corrupt("invalid code length code");
+    }
+    final int[] codeLengthCode = buildTable(codeLengthLengths);
+
+    int symbol = 0;
+    int previous = 8;
+    int repeat = 0;
+    int repeatLength = 0;
+    space = 1 << MAX_LENGTH;
+    while (symbol < alphabetSize && space > 0) {
+      final int code = readSymbol(codeLengthCode);
+      if (code < 16) {
+        repeat = 0;
+        lengths[symbol++] = code;
+        if (code != 0) {
+          previous = code;
+          space -= (1 << MAX_LENGTH) >> code;
+        }
+        continue;
+      }
+      final int extraBits = code - 14;
+      final int length = code == 16 ? previous : 0;
+      if (repeatLength != length) {
+        repeat = 0;
+        repeatLength = length;
+      }
+      final int old = repeat;
+      if (repeat > 0) {
+        repeat = (repeat - 2) << extraBits;
+      }
+      repeat += readBits(extraBits) + 3;
+      final int delta = repeat - old;
+      if (symbol + delta > alphabetSize) {
+        throw corrupt("code lengths overflow the alphabet");
+      }
+      Arrays.fill(lengths, symbol, symbol + delta, length);
+      symbol += delta;
+      if (length != 0) {
+        space -= delta << (MAX_LENGTH - length);
+      }
+    }
+    if (space != 0) {
+      throw corrupt("incomplete prefix code");
+    }
+    return buildTable(lengths);
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // headers
+
+  private void readStreamHeader() throws IOException {
+    int windowBits;
+    if (readBits(1) == 0) {
+      windowBits = 16;
+    } else {
+      windowBits = readBits(3);
+      if (windowBits != 0) {
+        windowBits += 17;
+      } else {
+        windowBits = readBits(3);
+        if (windowBits == 1) {
+          throw corrupt("large windows are not supported");
+        }
+        windowBits = windowBits == 0 ? 17 : windowBits + 8;
+      }
+    }
+    windowSize = (1 << windowBits) - 16;
+    // no distance can reach further back than the most output allowed
+    ringCap =
+        maxOutput >= 1 << windowBits
+            ? 1 << windowBits
+            : Math.max(INITIAL_RING_SIZE, Integer.highestOneBit((int) maxOutput - 1) << 1);
+    ring = new byte[Math.min(INITIAL_RING_SIZE, ringCap)];
+    state = State.METABLOCK_HEADER;
+  }
+
+  /** Read a number from 0 to 255 in a variable number of bits. */
+  private int readVarLength() throws IOException {
+    if (readBits(1) == 0) {
+      return 0;
+    }
+    final int n = readBits(3);
+    return n == 0 ? 1 : (1 << n) + readBits(n);
+  }
+
+  private void readMetaBlockHeader() throws IOException {
+    lastMetaBlock = readBits(1) == 1;
+    if (lastMetaBlock && readBits(1) == 1) {
+      state = State.DONE;
+      return;
+    }
+
+    final int nibbles = readBits(2) + 4;
+    if (nibbles == 7) {
+      // metadata, which is skipped
+      if (readBits(1) != 0) {
+        throw corrupt("reserved bit set");
+      }
+      final int skipBytes = readBits(2);
+      int skip = 0;
+      for (int i = 0; i < skipBytes; i++) {
+        final int b = readBits(8);
+        if (b == 0 && i + 1 == skipBytes && skipBytes > 1) {
+          throw corrupt("exuberant length");
+        }
+        skip |= b << (i * 8);
+      }
+      alignToByte();
+      for (int i = skipBytes == 0 ? 0 : skip + 1; i > 0; i--) {
+        readByte();
+      }
+      state = lastMetaBlock ? State.DONE : State.METABLOCK_HEADER;
+      return;
+    }
+
+    int length = 0;
+    for (int i = 0; i < nibbles; i++) {
+      final int nibble = readBits(4);
+      if (nibble == 0 && i + 1 == nibbles && nibbles > 4) {
+        throw corrupt("exuberant length");
+      }
+      length |= nibble << (i * 4);
+    }
+    metaBlockRemaining = length + 1;
+
+    if (!lastMetaBlock && readBits(1) == 1) {
+      alignToByte();
+      state = State.UNCOMPRESSED;
+      return;
+    }
+    readCompressedHeader();
+    state = State.COMMAND;
+  }
+
+  private void readCompressedHeader() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      final int types = readVarLength() + 1;
+      blockTypeCounts[i] = types;
+      blockTypes[i] = 0;
+      lastBlockTypes[i] = 1;
+      if (types >= 2) {
+        blockTypeCodes[i] = readPrefixCode(types + 2);
+        blockCountCodes[i] = readPrefixCode(BLOCK_LENGTH_BASE.length);
+        blockRemaining[i] = readBlockLength(blockCountCodes[i]);
+      } else {
+        blockRemaining[i] = 1 << 24;
+      }
+    }
+
+    postfixBits = readBits(2);
+    directDistances = readBits(4) << postfixBits;
+    contextModes = new byte[blockTypeCounts[0]];
+    for (int i = 0; i < contextModes.length; i++) {
+      contextModes[i] = (byte) readBits(2);
+    }
+
+    final int literalTrees = readVarLength() + 1;
+    literalContextMap = readContextMap(blockTypeCounts[0] << 6, literalTrees);
+    final int distanceTrees = readVarLength() + 1;
+    distanceContextMap = readContextMap(blockTypeCounts[2] << 2, distanceTrees);
+
+    literalCodes = new int[literalTrees][];
+    for (int i = 0; i < literalTrees; i++) {
+      literalCodes[i] = readPrefixCode(256);
+    }
+    commandCodes = new int[blockTypeCounts[1]][];
+    for (int i = 0; i < commandCodes.length; i++) {
+      commandCodes[i] = readPrefixCode(704);
+    }
+    final int distanceAlphabet = 16 + directDistances + (48 << postfixBits);
+    distanceCodes = new int[distanceTrees][];
+    for (int i = 0; i < distanceTrees; i++) {
+      distanceCodes[i] = readPrefixCode(distanceAlphabet);
+    }
+  }
+
+  private int readBlockLength(final int[] code) throws IOException {
+    final int symbol = readSymbol(code);
+    return BLOCK_LENGTH_BASE[symbol] + readBits(BLOCK_LENGTH_EXTRA[symbol]);
+  }
+
+  private int[] readContextMap(final int size, final int trees) throws IOException {
+    final int[] map = new int[size];
+    if (trees < 2) {
+      return map;
+    }
+    final int maxRunLengthPrefix = readBits(1) == 1 ? readBits(4) + 1 : 0;
+    final int[] code = readPrefixCode(trees + maxRunLengthPrefix);
+    for (int i = 0; i < size; ) {
+      final int symbol = readSymbol(code);
+      if (symbol == 0) {
+        map[i++] = 0;
+      } else if (symbol <= maxRunLengthPrefix) {
+        final int zeros = (1 << symbol) + readBits(symbol);
+        if (i + zeros > size) {
+          throw corrupt("context map overflow");
+        }
+        // already zero
+        i += zeros;
+      } else {
+        map[i++] = symbol - maxRunLengthPrefix;
+      }
+    }
+    if (readBits(1) == 1) {
+      // inverse move-to-front
+      final int[] mtf = new int[256];
+      for (int i = 0; i < 256; i++) {
+        mtf[i] = i;
+      }
+      for (int i = 0; i < size; i++) {
+        final int index = map[i];
+        final int value = mtf[index];
+        map[i] = value;
+        System.arraycopy(mtf, 0, mtf, 1, index);
+        mtf[0] = value;
+      }
+    }
+    return map;
+  }
+
+  private void switchBlock(final int category) throws IOException {
+    final int symbol = readSymbol(blockTypeCodes[category]);
+    int type =
+        symbol == 0
+            ? lastBlockTypes[category]
+            : symbol == 1 ? blockTypes[category] + 1 : symbol - 2;
+    if (type >= blockTypeCounts[category]) {
+      type -= blockTypeCounts[category];
+    }
+    lastBlockTypes[category] = blockTypes[category];
+    blockTypes[category] = type;
+    blockRemaining[category] = readBlockLength(blockCountCodes[category]);
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // output
+
+  /** How many bytes can be written before the ring has to grow or the reader catch up. */
+  private int room() throws IOException {
+    if (ring.length < ringCap && pos == ring.length) {
+      // nothing has wrapped yet, so the ring can simply be extended
+      ring = Arrays.copyOf(ring, Math.min(ringCap, ring.length << 1));
+    }
+    if (pos >= maxOutput) {
+      throw Status.PAYLOAD_TOO_LARGE.exception("Decoded body exceeds " + maxOutput + " bytes");
+    }
+    final long room = ring.length < ringCap ? ring.length - pos : ring.length - (pos - readPos);
+    return (int) Math.min(room, maxOutput - pos);
+  }
+
+  /** Decode until half the ring is there to read, or the stream ends. */
+  private void decode() throws IOException {
+    while (ring == null || pos - readPos < ring.length >> 1) {
+      switch (state) {
+        case STREAM_HEADER:
+          readStreamHeader();
+          break;
+
+        case METABLOCK_HEADER:
+          readMetaBlockHeader();
+          break;
+
+        case UNCOMPRESSED:
+          {
+            final int n = Math.min(metaBlockRemaining, room());
+            final int mask = ring.length - 1;
+            for (int i = 0; i < n; i++) {
+              ring[(int) pos++ & mask] = (byte) readByte();
+            }
+            if ((metaBlockRemaining -= n) == 0) {
+              endMetaBlock();
+            }
+          }
+          break;
+
+        case COMMAND:
+          if (metaBlockRemaining == 0) {
+            endMetaBlock();
+            break;
+          }
+          readCommand();
+          break;
+
+        case INSERT:
+          {
+            final int n = Math.min(insertRemaining, room());
+            insertLiterals(n);
+            metaBlockRemaining -= n;
+            if ((insertRemaining -= n) == 0) {
+              if (metaBlockRemaining == 0) {
+                // the copy is ignored
+                endMetaBlock();
+              } else {
+                readDistance();
+              }
+            }
+          }
+          break;
+
+        case COPY:
+          {
+            final int n = Math.min(copyRemaining, room());
+            final int mask = ring.length - 1;
+            final int to = (int) pos & mask;
+            final int from = (int) (pos - copyDistance) & mask;
+            if (copyDistance >= n && to + n <= ring.length && from + n <= ring.length) {
+              System.arraycopy(ring, from, ring, to, n);
+            } else {
+              for (int i = 0; i < n; i++) {
+                ring[(to + i) & mask] = ring[(from + i) & mask];
+              }
+            }
+            pos += n;
+            if ((copyRemaining -= n) == 0) {
+              state = State.COMMAND;
+            }
+          }
+          break;
+
+        case DICTIONARY_WORD:
+          {
+            final int n = Math.min(wordLength - wordPos, room());
+            final int mask = ring.length - 1;
+            for (int i = 0; i < n; i++) {
+              ring[(int) pos++ & mask] = word[wordPos++];
+            }
+            if (wordPos == wordLength) {
+              state = State.COMMAND;
+            }
+          }
+          break;
+
+        default:
+          return;
+      }
+    }
+  }
+
+  private void endMetaBlock() {
+    state = lastMetaBlock ? State.DONE : State.METABLOCK_HEADER;
+  }
+
+  private void readCommand() throws IOException {
+    if (blockRemaining[1] == 0) {
+      switchBlock(1);
+    }
+    blockRemaining[1]--;
+    final int symbol = readSymbol(commandCodes[blockTypes[1]]);
+    final int cell = symbol >>> 6;
+    final int insertCode = INSERT_CELL[cell] + ((symbol >>> 3) & 7);
+    final int copyCode = COPY_CELL[cell] + (symbol & 7);
+    insertRemaining = INSERT_LENGTH_BASE[insertCode] + readBits(INSERT_LENGTH_EXTRA[insertCode]);
+    copyLength = COPY_LENGTH_BASE[copyCode] + readBits(COPY_LENGTH_EXTRA[copyCode]);
+    implicitDistance = cell < 2;
+    if (insertRemaining > metaBlockRemaining) {
+      throw corrupt("insert beyond the meta-block");
+    }
+    if (insertRemaining == 0) {
+      readDistance();
+    } else {
+      state = State.INSERT;
+    }
+  }
+
+  private void insertLiterals(final int n) throws IOException {
+    final int mask = ring.length - 1;
+    for (int i = 0; i < n; i++) {
+      if (blockRemaining[0] == 0) {
+        switchBlock(0);
+      }
+      blockRemaining[0]--;
+      final int type = blockTypes[0];
+      final int[] lookup = CONTEXT_LOOKUP[contextModes[type]];
+      final int p1 = pos > 0 ? ring[(int) (pos - 1) & mask] & 0xFF : 0;
+      final int p2 = pos > 1 ? ring[(int) (pos - 2) & mask] & 0xFF : 0;
+      final int context = lookup[p1] | lookup[256 + p2];
+      final int[] code = literalCodes[literalContextMap[type << 6 | context]];
+      ring[(int) pos++ & mask] = (byte) readSymbol(code);
+    }
+  }
+
+  private void readDistance() throws IOException {
+    int distance;
+    boolean push = true;
+    if (implicitDistance) {
+      distance = distances[distanceIndex & 3];
+      push = false;
+    } else {
+      if (blockRemaining[2] == 0) {
+        switchBlock(2);
+      }
+      blockRemaining[2]--;
+      final int context = copyLength > 4 ? 3 : copyLength - 2;
+      final int code = readSymbol(distanceCodes[distanceContextMap[blockTypes[2] << 2 | context]]);
+      if (code < 16) {
+        distance =
+            distances[(distanceIndex - DISTANCE_SHORT_INDEX[code]) & 3]
+                + DISTANCE_SHORT_DELTA[code];
+        if (distance <= 0) {
+          throw corrupt("invalid distance");
+        }
+        push = code != 0;
+      } else if (code < 16 + directDistances) {
+        distance = code - 15;
+      } else {
+        final int x = code - directDistances - 16;
+        final int extraBits = 1 + (x >> (postfixBits + 1));
+        final int offset = ((2 + ((x >> postfixBits) & 1)) << extraBits) - 4;
+        distance =
+            ((offset + readBits(extraBits)) << postfixBits)
+                + (x & ((1 << postfixBits) - 1))
+                + directDistances
+                + 1;
+      }
+    }
+
+    final long maxDistance = Math.min(windowSize, pos);
+    if (distance > maxDistance) {
+      dictionaryWord(distance - maxDistance - 1);
+      return;
+    }
+    if (push) {
+      distances[++distanceIndex & 3] = distance;
+    }
+    if (copyLength > metaBlockRemaining) {
+      throw corrupt("copy beyond the meta-block");
+    }
+    metaBlockRemaining -= copyLength;
+    copyRemaining = copyLength;
+    copyDistance = distance;
+    state = State.COPY;
+  }
+
+  private void dictionaryWord(final long id) throws IOException {
+    final int length = copyLength;
+    if (length < 4 || length >= DICTIONARY_BITS.length) {
+      throw corrupt("invalid dictionary word length");
+    }
+    final int bits = DICTIONARY_BITS[length];
+    final long transform = id >>> bits;
+    if (transform >= TRANSFORM_COUNT) {
+      throw corrupt("invalid dictionary transform");
+    }
+    final int offset = DICTIONARY_OFFSET[length] + (int) (id & ((1 << bits) - 1)) * length;
+    final int t = (int) transform * 3;
+
+    final byte[] prefix = AFFIX_BYTES[TRANSFORMS[t]];
+    final int type = TRANSFORMS[t + 1];
+    final byte[] suffix = AFFIX_BYTES[TRANSFORMS[t + 2]];
+    int n = prefix.length;
+    System.arraycopy(prefix, 0, word, 0, n);
+    final int skip = type >= 12 ? Math.min(type - 11, length) : 0;
+    final int omit = type <= 9 ? type : 0;
+    final int wordLength = Math.max(0, length - skip - omit);
+    System.arraycopy(Dictionary.DATA, offset + skip, word, n, wordLength);
+    if (type == 10 && wordLength > 0) {
+      toUpperCase(word, n);
+    } else if (type == 11) {
+      for (int i = n, remaining = wordLength; remaining > 0; ) {
+        final int step = toUpperCase(word, i);
+        i += step;
+        remaining -= step;
+      }
+    }
+    n += wordLength;
+    System.arraycopy(suffix, 0, word, n, suffix.length);
+    n += suffix.length;
+
+    if (n > metaBlockRemaining) {
+      throw corrupt("dictionary word beyond the meta-block");
+    }
+    metaBlockRemaining -= n;
+    wordPos = 0;
+    this.wordLength = n;
+    state = State.DICTIONARY_WORD;
+  }
+
+  /** Uppercase the UTF-8 character at {@code a[i]} as the format does, returning its length. */
+  private static int toUpperCase(final byte[] a, final int i) {
+    final int c = a[i] & 0xFF;
+    if (c < 0xC0) {
+      if (c >= 'a' && c <= 'z') {
+        a[i] ^= 32;
+      }
+      return 1;
+    }
+    if (c < 0xE0) {
+      a[i + 1] ^= 32;
+      return 2;
+    }
+    a[i + 2] ^= 5;
+    return 3;
+  }
+}
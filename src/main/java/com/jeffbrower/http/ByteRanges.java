@@ -0,0 +1,278 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Answers byte-range requests (RFC 7233) once the handlers are done: a successful {@code GET} whose
+ * body is a {@code byte[]}, serialized, a buffer or a file gets {@code Accept-Ranges: bytes}, and a
+ * {@code Range} it satisfies turns it into a {@code 206 Partial Content} of just those bytes, or a
+ * {@code 416 Range Not Satisfiable} if it satisfies none of them. {@code If-Range} sends the whole
+ * body instead unless it matches the response's strong {@code ETag} or its {@code Last-Modified}.
+ *
+ * <p>Each range is a slice of the body rather than a copy, and a range of a file is sent straight
+ * from it; several ranges are sent as {@code multipart/byteranges}, with ranges that overlap or
+ * touch merged into one.
+ */
+public final class ByteRanges {
+  private static final int COPY_SIZE = 64 * 1024;
+
+  private int maxRanges = 16;
+
+  /**
+   * Send the whole body to requests for more than {@code maxRanges} ranges, once merged, rather
+   * than that many parts.
+   */
+  public ByteRanges withMaxRanges(final int maxRanges) {
+    if (maxRanges < 1) {
+      throw new IllegalArgumentException("maxRanges must be positive");
+    }
+    this.maxRanges = maxRanges;
+    return this;
+  }
+
+  /** Cut the body of a response the handlers are done with down to the ranges requested. */
+  void apply(final Response res) {
+    final Request req = res.request;
+    if (res.status != Status.OK
+        || res.body == null
+        || ResponseEncoder.streaming(res)
+        || res.body instanceof ByteBuffer[]
+        || (req.method != Method.GET && req.method != Method.HEAD)) {
+      return;
+    }
+    res.headers.response.replace(ResponseHeader.ACCEPT_RANGES, "bytes");
+    // other methods ignore Range
+    final Optional<String> range = req.headers.request.get(RequestHeader.RANGE);
+    if (req.method != Method.GET || !range.isPresent() || !ifRange(res)) {
+      return;
+    }
+    try {
+      cut(res, range.get());
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void cut(final Response res, final String range) throws IOException {
+    // the whole body, as a slice of memory or of a file
+    ByteBuffer buffer = null;
+    FileRegion file = null;
+    if (res.body instanceof Path) {
+      res.body = file = FileRegion.of((Path) res.body);
+    } else if (res.body instanceof FileRegion) {
+      file = (FileRegion) res.body;
+    } else if (res.body instanceof ByteBuffer) {
+      buffer = (ByteBuffer) res.body;
+    } else {
+      final byte[] body = res.serializeBody();
+      res.body = body;
+      res.serializer = null;
+      buffer = ByteBuffer.wrap(body);
+    }
+    final long length = file != null ? file.count : buffer.remaining();
+
+    final long[] ranges = parse(range, length);
+    if (ranges == null || ranges.length > 2 * maxRanges) {
+      return;
+    }
+    if (ranges.length == 0) {
+      if (file != null) {
+        file.close();
+      }
+      res.status = Status.RANGE_NOT_SATISFIABLE;
+      res.body = null;
+      res.serializer = null;
+      res.headers.entity.replace(EntityHeader.CONTENT_TYPE, null);
+      res.headers.entity.replace(EntityHeader.CONTENT_LENGTH, null);
+      res.headers.entity.replace(EntityHeader.CONTENT_RANGE, "bytes */" + length);
+      return;
+    }
+
+    res.status = Status.PARTIAL_CONTENT;
+    res.headers.entity.replace(EntityHeader.CONTENT_LENGTH, null);
+    if (ranges.length == 2) {
+      final long first = ranges[0];
+      final long last = ranges[1];
+      res.headers.entity.replace(
+          EntityHeader.CONTENT_RANGE, "bytes " + first + '-' + last + '/' + length);
+      res.body =
+          file != null
+              ? new FileRegion(file.channel, file.position + first, last + 1 - first)
+              : slice(buffer, first, last);
+      return;
+    }
+
+    final Optional<String> contentType = res.headers.entity.get(EntityHeader.CONTENT_TYPE);
+    final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | 1L << 63);
+    res.headers.entity.replace(
+        EntityHeader.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+    // a head before each part, and one after the last
+    final ByteBuffer[] heads = new ByteBuffer[ranges.length / 2 + 1];
+    long total = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      final String head =
+          (i == 0 ? "--" : "\r\n--")
+              + boundary
+              + "\r\n"
+              + (contentType.isPresent() ? "Content-Type: " + contentType.get() + "\r\n" : "")
+              + "Content-Range: bytes "
+              + ranges[i]
+              + '-'
+              + ranges[i + 1]
+              + '/'
+              + length
+              + "\r\n\r\n";
+      heads[i / 2] = ByteBuffer.wrap(head.getBytes(US_ASCII));
+      total += heads[i / 2].remaining() + ranges[i + 1] + 1 - ranges[i];
+    }
+    heads[heads.length - 1] = ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII));
+    total += heads[heads.length - 1].remaining();
+
+    if (buffer != null) {
+      final ByteBuffer[] parts = new ByteBuffer[ranges.length + 1];
+      for (int i = 0; i < ranges.length; i += 2) {
+        parts[i] = heads[i / 2];
+        parts[i + 1] = slice(buffer, ranges[i], ranges[i + 1]);
+      }
+      parts[ranges.length] = heads[heads.length - 1];
+      res.body = parts;
+      return;
+    }
+    // the transports send one file per response, so the parts of a file are copied through the heap
+    // a buffer at a time
+    final FileChannel channel = file.channel;
+    final long position = file.position;
+    res.headers.entity.replace(EntityHeader.CONTENT_LENGTH, Long.toString(total));
+    res.body =
+        (StreamingBody)
+            out -> {
+              try (FileChannel c = channel) {
+                final ByteBuffer buf = ByteBuffer.allocate(COPY_SIZE);
+                for (int i = 0; i < ranges.length; i += 2) {
+                  out.write(heads[i / 2].array());
+                  for (long p = position + ranges[i], end = position + ranges[i + 1] + 1;
+                      p < end; ) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), end - p));
+                    final int n = c.read(buf, p);
+                    if (n == -1) {
+                      throw new IOException("File is shorter than its region");
+                    }
+                    out.write(buf.array(), 0, n);
+                    p += n;
+                  }
+                }
+                out.write(heads[heads.length - 1].array());
+              }
+            };
+  }
+
+  private static ByteBuffer slice(final ByteBuffer buffer, final long first, final long last) {
+    final ByteBuffer slice = buffer.duplicate();
+    slice.position(buffer.position() + (int) first).limit(buffer.position() + (int) last + 1);
+    return slice.slice();
+  }
+
+  /** Whether {@code If-Range}, if present, matches the response, so the range applies. */
+  private static boolean ifRange(final Response res) {
+    final Optional<String> header = res.request.headers.request.get(RequestHeader.IF_RANGE);
+    if (!header.isPresent()) {
+      return true;
+    }
+    final String value = header.get().trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      // only a strong tag matches
+      final Optional<String> etag = res.headers.response.get(ResponseHeader.ETAG);
+      return value.startsWith("\"") && etag.isPresent() && etag.get().equals(value);
+    }
+    final Optional<String> lastModified = res.headers.entity.get(EntityHeader.LAST_MODIFIED);
+    return lastModified.isPresent() && lastModified.get().equals(value);
+  }
+
+  /**
+   * The satisfiable ranges of a {@code Range} header, as first and last positions in order, with
+   * ranges that overlap or touch merged.
+   *
+   * @return The ranges, none if they are all unsatisfiable, or null if the header is malformed or
+   *     not in bytes, in which case it is ignored.
+   */
+  static long[] parse(final String header, final long length) {
+    final int eq = header.indexOf('=');
+    if (eq == -1 || !header.substring(0, eq).trim().toLowerCase(Locale.ROOT).equals("bytes")) {
+      return null;
+    }
+    final List<long[]> ranges = new ArrayList<>();
+    int specs = 0;
+    for (final String spec : header.substring(eq + 1).split(",", -1)) {
+      final String s = spec.trim();
+      final int dash = s.indexOf('-');
+      if (s.isEmpty()) {
+        // empty list elements are allowed
+        continue;
+      }
+      if (dash == -1) {
+        return null;
+      }
+      specs++;
+      final long first;
+      final long last;
+      try {
+        if (dash == 0) {
+          final long suffix = digits(s.substring(1));
+          if (suffix == 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = digits(s.substring(0, dash));
+          final long l = dash == s.length() - 1 ? Long.MAX_VALUE : digits(s.substring(dash + 1));
+          if (l < first) {
+            return null;
+          }
+          last = Math.min(l, length - 1);
+        }
+      } catch (final NumberFormatException e) {
+        return null;
+      }
+      if (first < length) {
+        ranges.add(new long[] {first, last});
+      }
+    }
+
+    if (specs == 0) {
+      // at least one range is required
+      return null;
+    }
+    ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+    final long[] merged = new long[2 * ranges.size()];
+    int n = 0;
+    for (final long[] r : ranges) {
+      if (n > 0 && r[0] <= merged[n - 1] + 1) {
+        merged[n - 1] = Math.max(merged[n - 1], r[1]);
+      } else {
+        merged[n++] = r[0];
+        merged[n++] = r[1];
+      }
+    }
+    return Arrays.copyOf(merged, n);
+  }
+
+  private static long digits(final String s) {
+    if (s.isEmpty() || s.charAt(0) < '0' || s.charAt(0) > '9') {
+      throw new NumberFormatException(s);
+    }
+    return Long.parseLong(s);
+  }
+}
@@ -0,0 +1,22 @@
+package com.jeffbrower.http;
+
+/** {@link RequestMatcher#and} or {@link RequestMatcher#or}, kept apart so routes can see inside. */
+final class CompositeMatcher implements RequestMatcher {
+  /** {@link RequestMatcher#all}: the empty {@code and}, which routes need not check at all. */
+  static final RequestMatcher ALL = req -> true;
+
+  final boolean and;
+  final RequestMatcher left;
+  final RequestMatcher right;
+
+  CompositeMatcher(final boolean and, final RequestMatcher left, final RequestMatcher right) {
+    this.and = and;
+    this.left = left;
+    this.right = right;
+  }
+
+  @Override
+  public boolean matches(final Request req) {
+    return and ? left.matches(req) && right.matches(req) : left.matches(req) || right.matches(req);
+  }
+}
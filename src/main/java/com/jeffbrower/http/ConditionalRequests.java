@@ -0,0 +1,199 @@
+package com.jeffbrower.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * Answers conditional requests (RFC 7232) once the handlers are done: gives successful responses
+ * with a serialized or buffered body a strong {@code ETag} from a SHA-256 hash of it, unless they
+ * have one, then checks the request's {@code If-Match}, {@code If-None-Match}, {@code
+ * If-Modified-Since} and {@code If-Unmodified-Since} against the response's validators, replacing
+ * it with a {@code 304 Not Modified} or {@code 412 Precondition Failed} that has no body.
+ *
+ * <p>A body still has to be produced to be hashed. Handlers that know their validators up front can
+ * skip that with {@link Response#checkPreconditions}, which works whether or not this is enabled.
+ */
+public final class ConditionalRequests {
+  private boolean weak;
+
+  /**
+   * Make the generated tags weak ({@code W/"..."}), so they only promise equivalent bodies rather
+   * than identical ones, and hash bodies with the cheaper CRC32C; a weak tag never satisfies {@code
+   * If-Match}.
+   */
+  public ConditionalRequests withWeakETags() {
+    weak = true;
+    return this;
+  }
+
+  /** Tag the body of a response the handlers are done with, and check the preconditions. */
+  void apply(final Response res) {
+    if (res.status.statusClass != Status.Class.SUCCESSFUL) {
+      return;
+    }
+    if (!res.headers.response.contains(ResponseHeader.ETAG)
+        && res.body != null
+        && !ResponseEncoder.streaming(res)
+        && (res.body instanceof ByteBuffer || !ResponseEncoder.sentAsIs(res.body))) {
+      final ByteBuffer body;
+      if (res.body instanceof ByteBuffer) {
+        body = ((ByteBuffer) res.body).duplicate();
+      } else {
+        final byte[] bytes = res.serializeBody();
+        res.body = bytes;
+        res.serializer = null;
+        body = ByteBuffer.wrap(bytes);
+      }
+      final String length = Long.toHexString(body.remaining());
+      res.headers.response.replace(
+          ResponseHeader.ETAG,
+          weak ? "W/\"" + length + '-' + crc(body) + '"' : '"' + length + '-' + digest(body) + '"');
+    }
+    evaluate(
+        res,
+        res.headers.response.get(ResponseHeader.ETAG).orElse(null),
+        res.headers.entity.get(EntityHeader.LAST_MODIFIED).flatMap(ConditionalRequests::parseDate));
+  }
+
+  /** A 32-bit hash, cheap to compute, for a weak tag, where a collision only risks a stale 304. */
+  private static String crc(final ByteBuffer body) {
+    final CRC32C crc = new CRC32C();
+    crc.update(body);
+    return Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * 128 bits of SHA-256, for a strong tag, which versions of a body polled many times over must not
+   * collide in, or a client could be sent a 304 or a range of the wrong one.
+   */
+  private static String digest(final ByteBuffer body) {
+    final MessageDigest sha;
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      // every Java platform has it
+      throw new IllegalStateException(e);
+    }
+    sha.update(body);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(sha.digest(), 16));
+  }
+
+  /**
+   * Check a request's preconditions against a response's validators, in the order RFC 7232 section
+   * 6 gives, and if they fail replace the response with a {@code 304} or {@code 412}.
+   *
+   * @return Whether they passed.
+   */
+  static boolean evaluate(
+      final Response res, final String etag, final Optional<Instant> lastModified) {
+    final Request req = res.request;
+    final Optional<String> ifMatch = req.headers.request.get(RequestHeader.IF_MATCH);
+    final Optional<String> ifNoneMatch = req.headers.request.get(RequestHeader.IF_NONE_MATCH);
+    final boolean safe = req.method == Method.GET || req.method == Method.HEAD;
+
+    if (ifMatch.isPresent()) {
+      if (!matches(ifMatch.get(), etag, false)) {
+        return fail(res, Status.PRECONDITION_FAILED);
+      }
+    } else if (lastModified.isPresent()) {
+      final Optional<Instant> since =
+          req.headers
+              .request
+              .get(RequestHeader.IF_UNMODIFIED_SINCE)
+              .flatMap(ConditionalRequests::parseDate);
+      if (since.isPresent() && lastModified.get().isAfter(since.get())) {
+        return fail(res, Status.PRECONDITION_FAILED);
+      }
+    }
+
+    if (ifNoneMatch.isPresent()) {
+      if (matches(ifNoneMatch.get(), etag, true)) {
+        return fail(res, safe ? Status.NOT_MODIFIED : Status.PRECONDITION_FAILED);
+      }
+    } else if (safe && lastModified.isPresent()) {
+      final Optional<Instant> since =
+          req.headers
+              .request
+              .get(RequestHeader.IF_MODIFIED_SINCE)
+              .flatMap(ConditionalRequests::parseDate);
+      if (since.isPresent() && !lastModified.get().isAfter(since.get())) {
+        return fail(res, Status.NOT_MODIFIED);
+      }
+    }
+    return true;
+  }
+
+  private static boolean fail(final Response res, final Status status) {
+    res.status = status;
+    if (res.body instanceof FileRegion) {
+      try {
+        ((FileRegion) res.body).close();
+      } catch (final IOException e) {
+        // nothing was sent from it
+      }
+    }
+    res.body = null;
+    res.serializer = null;
+    res.headers.entity.replace(EntityHeader.CONTENT_LENGTH, null);
+    res.headers.entity.replace(EntityHeader.CONTENT_TYPE, null);
+    res.headers.entity.replace(EntityHeader.CONTENT_ENCODING, null);
+    return false;
+  }
+
+  /**
+   * Whether a list of entity tags, or {@code *}, matches {@code etag}: weakly, ignoring any {@code
+   * W/} prefixes, or strongly, where weak tags match nothing.
+   */
+  static boolean matches(final String list, final String etag, final boolean weakly) {
+    final String header = list.trim();
+    if (header.equals("*")) {
+      // there is a current representation, or the response would not be successful
+      return true;
+    }
+    if (etag == null || (!weakly && etag.startsWith("W/"))) {
+      return false;
+    }
+    final String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (int i = 0; i < header.length(); ) {
+      final boolean weakTag = header.startsWith("W/", i);
+      final int open = header.indexOf('"', i);
+      final int close = open == -1 ? -1 : header.indexOf('"', open + 1);
+      if (close == -1) {
+        // malformed, so no tag in it matches
+        return false;
+      }
+      if ((weakly || !weakTag)
+          && close + 1 - open == opaque.length()
+          && header.startsWith(opaque, open)) {
+        return true;
+      }
+      final int comma = header.indexOf(',', close);
+      if (comma == -1) {
+        break;
+      }
+      i = comma + 1;
+      while (i < header.length() && header.charAt(i) == ' ') {
+        i++;
+      }
+    }
+    return false;
+  }
+
+  /** An HTTP-date, or empty if it is malformed, in which case the header is ignored. */
+  private static Optional<Instant> parseDate(final String date) {
+    try {
+      return Optional.of(Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(date.trim())));
+    } catch (final DateTimeParseException e) {
+      return Optional.empty();
+    }
+  }
+}
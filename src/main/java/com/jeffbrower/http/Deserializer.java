@@ -1,5 +1,24 @@
 package com.jeffbrower.http;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
 public interface Deserializer {
   <T> T deserialize(Request req, Class<? extends T> clazz);
+
+  /**
+   * Deserialize a body that is being streamed from the connection. Override this to avoid holding
+   * the whole body in memory; by default it is read into {@link Request#body} first.
+   */
+  default <T> T deserialize(
+      final Request req, final InputStream body, final Class<? extends T> clazz) {
+    try {
+      req.body = body.readAllBytes();
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    req.bodySource = null;
+    return deserialize(req, clazz);
+  }
 }
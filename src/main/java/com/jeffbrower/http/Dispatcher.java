@@ -0,0 +1,167 @@
+package com.jeffbrower.http;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Immutable snapshot of a {@link Server}'s handlers, taken when the server starts so it can be
+ * shared with every connection thread without further synchronization.
+ */
+final class Dispatcher {
+  private final Router router;
+  final ErrorHandler errorHandler;
+  // null if responses are not cached
+  private final ResponseCache cache;
+  // null if identical requests are handled separately
+  private final RequestCoalescing coalescing;
+  // null if responses are not compressed
+  private final ResponseCompression compression;
+  // null if conditional requests are left to the handlers
+  private final ConditionalRequests conditional;
+  // null if range requests are left to the handlers
+  private final ByteRanges ranges;
+  // where stale cached responses are revalidated, and requests that could not be coalesced after
+  // all are handled
+  private final Executor executor;
+
+  Dispatcher(
+      final List<Map.Entry<RequestMatcher, RequestHandler>> handlers,
+      final RouteCache routeCache,
+      final ErrorHandler errorHandler,
+      final ResponseCache cache,
+      final RequestCoalescing coalescing,
+      final ResponseCompression compression,
+      final ConditionalRequests conditional,
+      final ByteRanges ranges,
+      final Executor executor) {
+    router = new Router(handlers, routeCache);
+    this.errorHandler = errorHandler;
+    this.cache = cache;
+    if (cache != null) {
+      cache.attach();
+    }
+    this.coalescing = coalescing;
+    this.compression = compression;
+    this.conditional = conditional;
+    this.ranges = ranges;
+    this.executor = executor;
+  }
+
+  /**
+   * Run the handlers for a request, or just the error handler if it could not be parsed.
+   *
+   * @return The response, once any {@link AsyncRequestHandler} has completed; exceptional only if
+   *     the error handler failed.
+   */
+  CompletionStage<Response> respond(final Request req, final Throwable parseError) {
+    final Response res = new Response(req);
+    CompletionStage<Response> produced;
+    try {
+      if (parseError != null) {
+        throw parseError;
+      }
+      produced = produce(req, res);
+    } catch (final Throwable t) {
+      produced = CompletableFuture.failedFuture(t);
+    }
+    return produced
+        .thenApply(
+            r -> {
+              // after compression, since each coding of a body is tagged separately
+              if (conditional != null) {
+                conditional.apply(res);
+              }
+              if (ranges != null) {
+                ranges.apply(res);
+              }
+              return res;
+            })
+        .exceptionally(
+            t -> {
+              errorHandler.handle(
+                  req,
+                  res,
+                  t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+              return res;
+            });
+  }
+
+  /**
+   * Produce the response as it would be sent to any client: from the cache, from an identical
+   * request being handled at the same time, or by running the handlers.
+   */
+  private CompletionStage<Response> produce(final Request req, final Response res) {
+    final ResponseCache.Key key = cache == null ? null : cache.key(req);
+    final ResponseCache.Entry hit = key == null ? null : cache.get(key, req);
+    if (hit != null) {
+      if (hit.stale() && hit.revalidating.compareAndSet(false, true)) {
+        revalidate(key, req.copyHead(), hit);
+      }
+      hit.fill(res);
+      return CompletableFuture.completedFuture(res);
+    }
+    return coalesce(key, req, res);
+  }
+
+  /** Run the handlers, unless an identical request is being handled already. */
+  private CompletionStage<Response> coalesce(
+      final ResponseCache.Key key, final Request req, final Response res) {
+    Object flight = coalescing == null ? null : coalescing.key(req);
+    if (flight == null) {
+      return handle(key, req, res);
+    }
+    if (compression != null) {
+      // only requests accepting the same codings can share a compressed body
+      flight =
+          Arrays.asList(
+              flight, req.headers.request.get(RequestHeader.ACCEPT_ENCODING).orElse(null));
+    }
+    return coalescing.share(flight, res, () -> handle(key, req, res), executor);
+  }
+
+  /** Run the handlers, and cache what they produce if {@code key} is set. */
+  private CompletionStage<Response> handle(
+      final ResponseCache.Key key, final Request req, final Response res) {
+    return router
+        .handle(req, res)
+        .thenApply(
+            h -> {
+              if (!h) {
+                throw Status.NOT_FOUND.exception("URL not handled: " + req.url);
+              }
+              if (compression != null) {
+                compression.apply(res);
+              }
+              if (key != null) {
+                cache.put(key, res);
+              }
+              return res;
+            });
+  }
+
+  /** Handle a copy of a request again in the background, to replace a stale cached response. */
+  private void revalidate(
+      final ResponseCache.Key key, final Request req, final ResponseCache.Entry stale) {
+    try {
+      executor.execute(
+          () -> {
+            CompletionStage<Response> handled;
+            try {
+              handled = coalesce(key, req, new Response(req));
+            } catch (final Throwable t) {
+              handled = CompletableFuture.failedFuture(t);
+            }
+            // unless it was replaced, the next request for it tries again
+            handled.whenComplete((r, t) -> stale.revalidating.set(false));
+          });
+    } catch (final RejectedExecutionException e) {
+      stale.revalidating.set(false);
+    }
+  }
+}
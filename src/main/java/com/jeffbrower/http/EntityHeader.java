@@ -42,11 +42,7 @@ public enum EntityHeader implements Header {
   }
 
   public static Optional<EntityHeader> of(final String s) {
-    for (final EntityHeader h : values()) {
-      if (s.equalsIgnoreCase(h.s)) {
-        return Optional.of(h);
-      }
-    }
-    return Optional.empty();
+    final Header h = HeaderNames.find(s);
+    return h instanceof EntityHeader ? Optional.of((EntityHeader) h) : Optional.empty();
   }
 }
@@ -0,0 +1,64 @@
+package com.jeffbrower.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region of a file to send as a response body, straight from the file to the connection where the
+ * platform allows. The server closes the channel once the region has been sent, or the connection
+ * has failed.
+ */
+public final class FileRegion implements Closeable {
+  public final FileChannel channel;
+  public final long position;
+  public final long count;
+  private long sent;
+
+  public FileRegion(final FileChannel channel, final long position, final long count) {
+    if (position < 0 || count < 0) {
+      throw new IllegalArgumentException("Negative file region");
+    }
+    this.channel = channel;
+    this.position = position;
+    this.count = count;
+  }
+
+  /** The whole of a file, as it is now. */
+  public static FileRegion of(final Path path) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new FileRegion(channel, 0, channel.size());
+    } catch (final IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Send as much of what is left as {@code target} takes.
+   *
+   * @return Whether all of it has been sent; if not, a non-blocking target is full.
+   */
+  boolean transferTo(final WritableByteChannel target) throws IOException {
+    while (sent < count) {
+      final long n = channel.transferTo(position + sent, count - sent, target);
+      if (n == 0) {
+        if (position + sent >= channel.size()) {
+          throw new IOException("File is shorter than its region");
+        }
+        return false;
+      }
+      sent += n;
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
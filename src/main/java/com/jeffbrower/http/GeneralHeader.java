@@ -44,11 +44,7 @@ public enum GeneralHeader implements Header {
   }
 
   public static Optional<GeneralHeader> of(final String s) {
-    for (final GeneralHeader h : values()) {
-      if (s.equalsIgnoreCase(h.s)) {
-        return Optional.of(h);
-      }
-    }
-    return Optional.empty();
+    final Header h = HeaderNames.find(s);
+    return h instanceof GeneralHeader ? Optional.of((GeneralHeader) h) : Optional.empty();
   }
 }
@@ -18,6 +18,15 @@ public interface Header {
     }
   }
 
+  static boolean hasToken(final String header, final String token) {
+    for (final String part : COMMA.split(header)) {
+      if (token.equalsIgnoreCase(part.trim())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   static WithParams[] parseWithParams(final String header) {
     final String[] parts = COMMA.split(header);
     final WithParams[] headers = new WithParams[parts.length];
@@ -0,0 +1,141 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Numbers every known {@link Header} constant, general then request, response and entity headers,
+ * and looks names up in a case-insensitive open-addressing hash table over the lower-cased ASCII
+ * names and aliases, which can be probed with a {@link String} or straight from the parsed bytes.
+ */
+final class HeaderNames {
+  static final int GENERAL = 0;
+  static final int REQUEST = GENERAL + GeneralHeader.values().length;
+  static final int RESPONSE = REQUEST + RequestHeader.values().length;
+  static final int ENTITY = RESPONSE + ResponseHeader.values().length;
+  static final int COUNT = ENTITY + EntityHeader.values().length;
+
+  private static final Header[] HEADERS = new Header[COUNT];
+  private static final byte[] LOWER = new byte[256];
+  private static final byte[][] KEYS;
+  private static final int[] INDEXES;
+  private static final int MASK;
+
+  static {
+    for (int i = 0; i < LOWER.length; i++) {
+      LOWER[i] = (byte) (i >= 'A' && i <= 'Z' ? i | 0x20 : i);
+    }
+
+    // about a quarter full, so probe sequences stay short
+    final int size = Integer.highestOneBit(COUNT * 4 - 1) << 1;
+    KEYS = new byte[size][];
+    INDEXES = new int[size];
+    MASK = size - 1;
+
+    for (final GeneralHeader h : GeneralHeader.values()) {
+      put(h.s, GENERAL + h.ordinal(), h);
+    }
+    for (final RequestHeader h : RequestHeader.values()) {
+      put(h.s, REQUEST + h.ordinal(), h);
+      for (final String alias : h.aliases) {
+        put(alias, REQUEST + h.ordinal(), h);
+      }
+    }
+    for (final ResponseHeader h : ResponseHeader.values()) {
+      put(h.s, RESPONSE + h.ordinal(), h);
+      for (final String alias : h.aliases) {
+        put(alias, RESPONSE + h.ordinal(), h);
+      }
+    }
+    for (final EntityHeader h : EntityHeader.values()) {
+      put(h.s, ENTITY + h.ordinal(), h);
+    }
+  }
+
+  private HeaderNames() {}
+
+  private static void put(final String name, final int index, final Header h) {
+    HEADERS[index] = h;
+    final byte[] key = name.getBytes(US_ASCII);
+    for (int i = 0; i < key.length; i++) {
+      key[i] = LOWER[key[i] & 0xff];
+    }
+    if (indexOf(key, 0, key.length) != -1) {
+      throw new IllegalStateException("Duplicate header name: " + name);
+    }
+    int slot = hash(key, 0, key.length) & MASK;
+    while (KEYS[slot] != null) {
+      slot = (slot + 1) & MASK;
+    }
+    KEYS[slot] = key;
+    INDEXES[slot] = index;
+  }
+
+  private static int hash(final byte[] a, final int from, final int to) {
+    int h = to - from;
+    for (int i = from; i < to; i++) {
+      h = 31 * h + LOWER[a[i] & 0xff];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /** The header with the given index. */
+  static Header header(final int index) {
+    return HEADERS[index];
+  }
+
+  /** The header named by {@code name}, or null if it is not one we know. */
+  static Header find(final String name) {
+    final int index = indexOf(name);
+    return index == -1 ? null : HEADERS[index];
+  }
+
+  /** The index of the header named by {@code a[from, to)}, or -1 if it is not one we know. */
+  static int indexOf(final byte[] a, final int from, final int to) {
+    final int length = to - from;
+    for (int slot = hash(a, from, to) & MASK; KEYS[slot] != null; slot = (slot + 1) & MASK) {
+      final byte[] key = KEYS[slot];
+      if (key.length == length && equalsLower(key, a, from)) {
+        return INDEXES[slot];
+      }
+    }
+    return -1;
+  }
+
+  /** The index of the header named by {@code name}, or -1 if it is not one we know. */
+  static int indexOf(final String name) {
+    final int length = name.length();
+    int h = length;
+    for (int i = 0; i < length; i++) {
+      final char c = name.charAt(i);
+      if (c > 0xff) {
+        return -1;
+      }
+      h = 31 * h + LOWER[c];
+    }
+    h ^= h >>> 16;
+
+    outer:
+    for (int slot = h & MASK; KEYS[slot] != null; slot = (slot + 1) & MASK) {
+      final byte[] key = KEYS[slot];
+      if (key.length != length) {
+        continue;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key[i] != LOWER[name.charAt(i)]) {
+          continue outer;
+        }
+      }
+      return INDEXES[slot];
+    }
+    return -1;
+  }
+
+  private static boolean equalsLower(final byte[] key, final byte[] a, final int from) {
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] != LOWER[a[from + i] & 0xff]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,118 +1,284 @@
 package com.jeffbrower.http;
 
-import java.util.EnumMap;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.stream.Stream;
-
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * The headers of a request or response, stored flat: known headers in one array indexed by {@link
+ * HeaderNames} with a bitmap of which are set, and any others in a small side table in the order
+ * they were added. {@link #forEach(BiConsumer)} and the package-private cursor ({@link #next}) walk
+ * them without allocating.
+ *
+ * <p>Headers parsed from a request keep their values as raw bytes until first read.
+ */
 public final class Headers implements Iterable<Map.Entry<String, String>> {
+  private static final int COUNT = HeaderNames.COUNT;
+
   public final GeneralHeaders general;
   public final RequestHeaders request;
   public final ResponseHeaders response;
   public final EntityHeaders entity;
   public final Map<String, String> additional;
 
+  private final boolean isRequest;
+  private final String[] known = new String[COUNT];
+  private final long[] present = new long[(COUNT + 63) >>> 6];
+  private String[] names = new String[4];
+  private String[] values = new String[4];
+  private int size;
+
+  // values not decoded yet: the source of each, and its cursor position, bounds and whether folded
+  private byte[][] rawSources;
+  private int[] raw;
+  private int rawCount;
+
   Headers(final boolean request) {
-    general = new GeneralHeaders();
-    this.request = new RequestHeaders(request);
-    response = new ResponseHeaders(!request);
-    entity = new EntityHeaders();
-    additional = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    isRequest = request;
+    general = new GeneralHeaders(this);
+    this.request = new RequestHeaders(this, request);
+    response = new ResponseHeaders(this, !request);
+    entity = new EntityHeaders(this);
+    additional = new AdditionalHeaders();
   }
 
   public void reset() {
-    general.reset();
-    request.reset();
-    response.reset();
-    entity.reset();
-    additional.clear();
+    Arrays.fill(known, null);
+    Arrays.fill(present, 0);
+    Arrays.fill(names, 0, size, null);
+    Arrays.fill(values, 0, size, null);
+    size = 0;
+    clearRaw();
   }
 
   public Optional<String> get(final String key) {
-    final Optional<ResponseHeader> res = ResponseHeader.of(key);
-    if (res.isPresent()) {
-      return response.get(res.get());
+    final int index = HeaderNames.indexOf(key);
+    if (index == -1) {
+      return Optional.ofNullable(additional.get(key));
     }
+    return Optional.ofNullable(allowed(index) ? value(index) : null);
+  }
 
-    final Optional<RequestHeader> req = RequestHeader.of(key);
-    if (req.isPresent()) {
-      return request.get(req.get());
+  public Optional<String> replace(final String key, final String value) {
+    final int index = HeaderNames.indexOf(key);
+    if (index == -1) {
+      return Optional.ofNullable(additional.put(key, value));
     }
+    return Optional.ofNullable(replace(checkAllowed(index), value));
+  }
 
-    final Optional<GeneralHeader> g = GeneralHeader.of(key);
-    if (g.isPresent()) {
-      return general.get(g.get());
+  public Optional<String> add(final String key, final String value) {
+    final int index = HeaderNames.indexOf(key);
+    if (index == -1) {
+      return Optional.ofNullable(addAdditional(key, value));
     }
+    return Optional.ofNullable(add(checkAllowed(index), value));
+  }
 
-    final Optional<EntityHeader> e = EntityHeader.of(key);
-    if (e.isPresent()) {
-      return entity.get(e.get());
+  /** Add a header whose name is {@code a[from, to)}, only making a string of unknown names. */
+  Optional<String> add(final byte[] a, final int from, final int to, final String value) {
+    final int index = HeaderNames.indexOf(a, from, to);
+    if (index == -1) {
+      return Optional.ofNullable(addAdditional(new String(a, from, to - from, ISO_8859_1), value));
     }
+    return Optional.ofNullable(add(checkAllowed(index), value));
+  }
 
-    return Optional.ofNullable(additional.get(key));
+  /**
+   * Add a header whose name is {@code a[nameFrom, nameTo)} and value {@code a[valueFrom, valueTo)},
+   * which {@code a} must not change. The value is only decoded once read, but a duplicate of a
+   * single-valued header is still rejected here.
+   */
+  void addRaw(
+      final byte[] a,
+      final int nameFrom,
+      final int nameTo,
+      final int valueFrom,
+      final int valueTo,
+      final boolean folded) {
+    int cursor = HeaderNames.indexOf(a, nameFrom, nameTo);
+    if (cursor == -1) {
+      final String name = new String(a, nameFrom, nameTo - nameFrom, ISO_8859_1);
+      if (indexOfAdditional(name) != -1) {
+        addAdditional(name, RequestParser.fieldValue(a, valueFrom, valueTo, folded));
+        return;
+      }
+      cursor = COUNT + size;
+      addAdditional(name, null);
+    } else if (isSet(checkAllowed(cursor))) {
+      add(cursor, RequestParser.fieldValue(a, valueFrom, valueTo, folded));
+      return;
+    } else {
+      present[cursor >>> 6] |= 1L << cursor;
+    }
+
+    if (raw == null) {
+      rawSources = new byte[8][];
+      raw = new int[8 * 4];
+    } else if (rawCount == rawSources.length) {
+      rawSources = Arrays.copyOf(rawSources, rawCount * 2);
+      raw = Arrays.copyOf(raw, rawCount * 2 * 4);
+    }
+    rawSources[rawCount] = a;
+    raw[rawCount * 4] = cursor;
+    raw[rawCount * 4 + 1] = valueFrom;
+    raw[rawCount * 4 + 2] = valueTo;
+    raw[rawCount * 4 + 3] = folded ? 1 : 0;
+    rawCount++;
   }
 
-  public Optional<String> replace(final String key, final String value) {
-    final Optional<ResponseHeader> res = ResponseHeader.of(key);
-    if (res.isPresent()) {
-      return response.replace(res.get(), value);
+  /** Decode the raw value at a cursor position. */
+  private String decode(final int cursor) {
+    for (int i = rawCount - 1; i >= 0; i--) {
+      if (raw[i * 4] == cursor) {
+        final String value =
+            RequestParser.fieldValue(
+                rawSources[i], raw[i * 4 + 1], raw[i * 4 + 2], raw[i * 4 + 3] != 0);
+        if (cursor < COUNT) {
+          known[cursor] = value;
+        } else {
+          values[cursor - COUNT] = value;
+        }
+        return value;
+      }
     }
+    throw new IllegalStateException("No value for header " + name(cursor));
+  }
 
-    final Optional<RequestHeader> req = RequestHeader.of(key);
-    if (req.isPresent()) {
-      return request.replace(req.get(), value);
+  private void clearRaw() {
+    if (rawSources != null) {
+      Arrays.fill(rawSources, 0, rawCount, null);
     }
+    rawCount = 0;
+  }
 
-    final Optional<GeneralHeader> g = GeneralHeader.of(key);
-    if (g.isPresent()) {
-      return general.replace(g.get(), value);
+  /** Call {@code action} with the name and value of every header. */
+  public void forEach(final BiConsumer<? super String, ? super String> action) {
+    for (int i = next(0); i != -1; i = next(i + 1)) {
+      action.accept(name(i), value(i));
     }
+  }
 
-    final Optional<EntityHeader> e = EntityHeader.of(key);
-    if (e.isPresent()) {
-      return entity.replace(e.get(), value);
+  /**
+   * The first header at or after {@code cursor}, or -1 if there are none. Start from 0 and continue
+   * from one past the previous result.
+   */
+  int next(final int cursor) {
+    if (cursor < COUNT) {
+      final int known = nextKnown(cursor, COUNT);
+      if (known != -1) {
+        return known;
+      }
+      return size == 0 ? -1 : COUNT;
     }
+    return cursor - COUNT < size ? cursor : -1;
+  }
 
-    return Optional.ofNullable(additional.put(key, value));
+  String name(final int cursor) {
+    return cursor < COUNT ? HeaderNames.header(cursor).toString() : names[cursor - COUNT];
   }
 
-  public Optional<String> add(final String key, final String value) {
-    final Optional<ResponseHeader> res = ResponseHeader.of(key);
-    if (res.isPresent()) {
-      return response.add(res.get(), value);
+  /** The value at a cursor position, or null if it is a known header that is not set. */
+  String value(final int cursor) {
+    final String value = cursor < COUNT ? known[cursor] : values[cursor - COUNT];
+    if (value != null || (cursor < COUNT && !isSet(cursor))) {
+      return value;
+    }
+    return decode(cursor);
+  }
+
+  private boolean isSet(final int index) {
+    return (present[index >>> 6] & 1L << index) != 0;
+  }
+
+  private int nextKnown(final int from, final int to) {
+    for (int w = from >>> 6; w << 6 < to; w++) {
+      // shifts are mod 64, so this masks off the bits below from in its own word only
+      final long bits = w == from >>> 6 ? present[w] & -1L << from : present[w];
+      if (bits != 0) {
+        final int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+        return i < to ? i : -1;
+      }
     }
+    return -1;
+  }
 
-    final Optional<RequestHeader> req = RequestHeader.of(key);
-    if (req.isPresent()) {
-      return request.add(req.get(), value);
+  private boolean allowed(final int index) {
+    if (index >= HeaderNames.REQUEST && index < HeaderNames.RESPONSE) {
+      return isRequest;
+    }
+    if (index >= HeaderNames.RESPONSE && index < HeaderNames.ENTITY) {
+      return !isRequest;
     }
+    return true;
+  }
 
-    final Optional<GeneralHeader> g = GeneralHeader.of(key);
-    if (g.isPresent()) {
-      return general.add(g.get(), value);
+  private int checkAllowed(final int index) {
+    if (!allowed(index)) {
+      throw Status.BAD_REQUEST.exception("Header '" + HeaderNames.header(index) + "' not allowed");
     }
+    return index;
+  }
+
+  private String replace(final int index, final String value) {
+    final String existing = value(index);
+    known[index] = value;
+    if (value == null) {
+      present[index >>> 6] &= ~(1L << index);
+    } else {
+      present[index >>> 6] |= 1L << index;
+    }
+    return existing;
+  }
 
-    final Optional<EntityHeader> e = EntityHeader.of(key);
-    if (e.isPresent()) {
-      return entity.add(e.get(), value);
+  /** Like {@link Map#merge}, returns the combined value. */
+  private String add(final int index, final String value) {
+    final String existing = value(index);
+    final String combined =
+        existing == null ? value : HeaderNames.header(index).combineMultiple(existing, value);
+    replace(index, combined);
+    return combined;
+  }
+
+  private int indexOfAdditional(final Object key) {
+    if (key instanceof String) {
+      for (int i = 0; i < size; i++) {
+        if (names[i].equalsIgnoreCase((String) key)) {
+          return i;
+        }
+      }
     }
+    return -1;
+  }
 
-    return Optional.ofNullable(
-        additional.merge(
-            key, value, (a, b) -> Header.combineMultiple0(key, Header.Type.SINGLE_VALUE, a, b)));
+  private String addAdditional(final String key, final String value) {
+    final int i = indexOfAdditional(key);
+    if (i != -1) {
+      values[i] = Header.combineMultiple0(key, Header.Type.SINGLE_VALUE, value(COUNT + i), value);
+      return values[i];
+    }
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    names[size] = key;
+    values[size] = value;
+    size++;
+    return value;
   }
 
   @Override
   public Iterator<Map.Entry<String, String>> iterator() {
-    return Stream.concat(
-            general.stringStream(),
-            Stream.concat(
-                Stream.concat(request.stringStream(), response.stringStream()),
-                Stream.concat(entity.stringStream(), additional.entrySet().stream())))
-        .iterator();
+    return new Cursor<>(this, 0, Integer.MAX_VALUE, i -> Map.entry(name(i), value(i)));
   }
 
   @Override
@@ -136,88 +302,226 @@ public final class Headers implements Iterable<Map.Entry<String, String>> {
     return b.append(']').toString();
   }
 
+  /** Iterates the headers between two cursor positions. */
+  private static final class Cursor<T> implements Iterator<T> {
+    private final Headers headers;
+    private final int to;
+    private final IntFunction<T> get;
+    private int next;
+
+    Cursor(final Headers headers, final int from, final int to, final IntFunction<T> get) {
+      this.headers = headers;
+      this.to = to;
+      this.get = get;
+      next = headers.next(from);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != -1 && next < to;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final T t = get.apply(next);
+      next = headers.next(next + 1);
+      return t;
+    }
+  }
+
+  /** The headers whose names are not known, matched case-insensitively. */
+  private final class AdditionalHeaders extends AbstractMap<String, String> {
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      return indexOfAdditional(key) != -1;
+    }
+
+    @Override
+    public String get(final Object key) {
+      final int i = indexOfAdditional(key);
+      return i == -1 ? null : value(COUNT + i);
+    }
+
+    @Override
+    public String put(final String key, final String value) {
+      final int i = indexOfAdditional(key);
+      if (i == -1) {
+        addAdditional(key, value);
+        return null;
+      }
+      final String existing = value(COUNT + i);
+      values[i] = value;
+      return existing;
+    }
+
+    @Override
+    public String remove(final Object key) {
+      final int i = indexOfAdditional(key);
+      if (i == -1) {
+        return null;
+      }
+      final String existing = value(COUNT + i);
+      // the cursor positions of raw values are about to shift
+      for (int c = next(0); c != -1; c = next(c + 1)) {
+        value(c);
+      }
+      clearRaw();
+      System.arraycopy(names, i + 1, names, i, size - i - 1);
+      System.arraycopy(values, i + 1, values, i, size - i - 1);
+      size--;
+      names[size] = null;
+      values[size] = null;
+      return existing;
+    }
+
+    @Override
+    public void clear() {
+      Arrays.fill(names, 0, size, null);
+      Arrays.fill(values, 0, size, null);
+      size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        @Override
+        public int size() {
+          return size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+          return new Cursor<>(
+              Headers.this, COUNT, Integer.MAX_VALUE, i -> Map.entry(name(i), value(i)));
+        }
+      };
+    }
+  }
+
   public static final class GeneralHeaders extends EnumHeaders<GeneralHeader> {
-    private GeneralHeaders() {
-      super(GeneralHeader.class);
+    private GeneralHeaders(final Headers headers) {
+      super(headers, GeneralHeader.class, HeaderNames.GENERAL, true);
     }
   }
 
   public static final class RequestHeaders extends EnumHeaders<RequestHeader> {
-    private RequestHeaders(final boolean allow) {
-      super(allow ? RequestHeader.class : null);
+    private RequestHeaders(final Headers headers, final boolean allow) {
+      super(headers, RequestHeader.class, HeaderNames.REQUEST, allow);
     }
   }
 
   public static final class ResponseHeaders extends EnumHeaders<ResponseHeader> {
-    private ResponseHeaders(final boolean allow) {
-      super(allow ? ResponseHeader.class : null);
+    private ResponseHeaders(final Headers headers, final boolean allow) {
+      super(headers, ResponseHeader.class, HeaderNames.RESPONSE, allow);
     }
   }
 
   public static final class EntityHeaders extends EnumHeaders<EntityHeader> {
-    private EntityHeaders() {
-      super(EntityHeader.class);
+    private EntityHeaders(final Headers headers) {
+      super(headers, EntityHeader.class, HeaderNames.ENTITY, true);
     }
   }
 
+  /** A typed view of one kind of known header. */
   public abstract static class EnumHeaders<K extends Enum<K> & Header>
       implements Iterable<Map.Entry<K, String>> {
-    private final EnumMap<K, String> map;
+    private final Headers headers;
+    private final K[] keys;
+    private final int base;
+    private final boolean allow;
 
-    private EnumHeaders(final Class<K> keyClass) {
-      this.map = keyClass == null ? null : new EnumMap<>(keyClass);
+    private EnumHeaders(
+        final Headers headers, final Class<K> keyClass, final int base, final boolean allow) {
+      this.headers = headers;
+      keys = keyClass.getEnumConstants();
+      this.base = base;
+      this.allow = allow;
     }
 
     public void reset() {
-      if (map != null) {
-        map.clear();
+      for (int i = next(base); i != -1; i = next(i + 1)) {
+        headers.replace(i, null);
       }
     }
 
     public boolean isEmpty() {
-      return map == null || map.isEmpty();
+      return next(base) == -1;
     }
 
     public boolean contains(final K key) {
-      return map != null && map.containsKey(key);
+      return allow && headers.isSet(base + key.ordinal());
     }
 
     public Optional<String> get(final K key) {
-      return map == null ? Optional.empty() : Optional.ofNullable(map.get(key));
+      return allow ? Optional.ofNullable(headers.value(base + key.ordinal())) : Optional.empty();
     }
 
     public Optional<String> replace(final K key, final String value) {
-      if (map == null) {
-        throw Status.BAD_REQUEST.exception("Header '" + key + "' not allowed");
-      }
-      return Optional.ofNullable(map.put(key, value));
+      checkAllowed(key);
+      return Optional.ofNullable(headers.replace(base + key.ordinal(), value));
     }
 
     public Optional<String> add(final K key, final String value) {
-      if (map == null) {
-        throw Status.BAD_REQUEST.exception("Header '" + key + "' not allowed");
-      }
-      return Optional.ofNullable(
-          map.merge(key, value, (existing, newValue) -> key.combineMultiple(existing, newValue)));
+      checkAllowed(key);
+      return Optional.ofNullable(headers.add(base + key.ordinal(), value));
     }
 
-    public Set<Map.Entry<K, String>> asSet() {
-      return map == null ? Set.of() : map.entrySet();
+    /** Call {@code action} with every header of this kind and its value. */
+    public void forEach(final BiConsumer<? super K, ? super String> action) {
+      for (int i = next(base); i != -1; i = next(i + 1)) {
+        action.accept(keys[i - base], headers.value(i));
+      }
     }
 
-    Stream<Map.Entry<String, String>> stringStream() {
-      return asSet().stream().map(e -> Map.entry(e.getKey().toString(), e.getValue()));
+    public Set<Map.Entry<K, String>> asSet() {
+      return new AbstractSet<Map.Entry<K, String>>() {
+        @Override
+        public int size() {
+          int size = 0;
+          for (int i = next(base); i != -1; i = next(i + 1)) {
+            size++;
+          }
+          return size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, String>> iterator() {
+          return EnumHeaders.this.iterator();
+        }
+      };
     }
 
     @Override
     public Iterator<Map.Entry<K, String>> iterator() {
-      return asSet().iterator();
+      return new Cursor<>(
+          headers,
+          allow ? base : 0,
+          allow ? base + keys.length : 0,
+          i -> Map.entry(keys[i - base], headers.value(i)));
+    }
+
+    private int next(final int cursor) {
+      return allow ? headers.nextKnown(cursor, base + keys.length) : -1;
+    }
+
+    private void checkAllowed(final K key) {
+      if (!allow) {
+        throw Status.BAD_REQUEST.exception("Header '" + key + "' not allowed");
+      }
     }
 
     @Override
     public String toString() {
       final StringBuilder b = new StringBuilder().append('[').append(System.lineSeparator());
-      map.forEach(
+      forEach(
           (k, v) -> b.append('\t').append(k).append(": ").append(v).append(System.lineSeparator()));
       return b.append(']').toString();
     }
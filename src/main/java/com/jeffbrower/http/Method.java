@@ -1,5 +1,7 @@
 package com.jeffbrower.http;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
 public enum Method implements RequestMatcher {
   GET(true, true),
   HEAD(true, true),
@@ -10,6 +12,8 @@ public enum Method implements RequestMatcher {
   OPTIONS(true, true),
   TRACE(true, true);
 
+  private static final Method[] VALUES = values();
+
   public final boolean safe;
   public final boolean idempotent;
 
@@ -31,4 +35,22 @@ public enum Method implements RequestMatcher {
     }
     throw Status.METHOD_NOT_ALLOWED.exception(s);
   }
+
+  static Method of(final byte[] a, final int from, final int to) {
+    outer:
+    for (final Method m : VALUES) {
+      final String name = m.name();
+      if (name.length() != to - from) {
+        continue;
+      }
+      for (int i = 0; i < name.length(); i++) {
+        // method names are all letters, so this folds case exactly
+        if ((a[from + i] | 0x20) != (name.charAt(i) | 0x20)) {
+          continue outer;
+        }
+      }
+      return m;
+    }
+    throw Status.METHOD_NOT_ALLOWED.exception(new String(a, from, to - from, US_ASCII));
+  }
 }
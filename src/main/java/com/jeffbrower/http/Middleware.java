@@ -0,0 +1,35 @@
+package com.jeffbrower.http;
+
+/**
+ * What {@link Server#withSerializer}, {@link Server#withDeserializer} and {@link Server#withMapper}
+ * register: settings, rather than code, so that the router can fold runs of them together and apply
+ * them without calling their matchers wherever the trie already decides.
+ */
+final class Middleware implements RequestHandler {
+  // null if left as it is
+  final Serializer serializer;
+  final Deserializer deserializer;
+
+  Middleware(final Serializer serializer, final Deserializer deserializer) {
+    this.serializer = serializer;
+    this.deserializer = deserializer;
+  }
+
+  @Override
+  public boolean handle(final Request req, final Response res) {
+    if (serializer != null) {
+      res.serializer = serializer;
+    }
+    if (deserializer != null) {
+      req.deserializer = deserializer;
+    }
+    return false;
+  }
+
+  /** The same as applying this, then {@code that}. */
+  Middleware then(final Middleware that) {
+    return new Middleware(
+        that.serializer == null ? serializer : that.serializer,
+        that.deserializer == null ? deserializer : that.deserializer);
+  }
+}
@@ -0,0 +1,265 @@
+package com.jeffbrower.http;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * The range of a numeric path param, written {@code {name[min,max,step,rounding]}} with {@code [}
+ * or {@code (} and {@code ]} or {@code )} for inclusive or exclusive bounds:
+ *
+ * <ul>
+ *   <li>A missing min or max is negative or positive infinity, and its bound must be open.
+ *   <li>Values must be a multiple of the step, unless a rounding mode ({@code round}, {@code floor}
+ *       or {@code ceiling}) is given to round them to the nearest one. If the step is left out it
+ *       is inferred from the precision of min and max; if it is {@code unlimited}, any precision is
+ *       accepted and nothing is rounded.
+ * </ul>
+ *
+ * <p>Values are plain decimals such as {@code -12} or {@code 0.5}. Those of ranges with a whole
+ * step are parsed as {@code long}s, the others as {@code double}s.
+ */
+final class NumericRange {
+  /** What a value looks like, for paths that are matched with a regex. */
+  static final String REGEX = "-?\\d+(?:\\.\\d+)?";
+
+  private final BigDecimal min;
+  private final boolean minInclusive;
+  private final BigDecimal max;
+  private final boolean maxInclusive;
+  // null if unlimited
+  private final BigDecimal step;
+  // null if values must already be a multiple of the step
+  private final RoundingMode rounding;
+  final boolean integral;
+
+  // for integral ranges: the step, and the lowest and highest whole values in range
+  private final long longStep;
+  private final long lo;
+  private final long hi;
+
+  private NumericRange(
+      final BigDecimal min,
+      final boolean minInclusive,
+      final BigDecimal max,
+      final boolean maxInclusive,
+      final BigDecimal step,
+      final RoundingMode rounding) {
+    this.min = min;
+    this.minInclusive = minInclusive;
+    this.max = max;
+    this.maxInclusive = maxInclusive;
+    this.step = step;
+    this.rounding = rounding;
+    integral =
+        step != null
+            && step.stripTrailingZeros().scale() <= 0
+            && step.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0;
+    longStep = integral ? step.longValueExact() : 0;
+    lo =
+        min == null
+            ? Long.MIN_VALUE
+            : clamp(minInclusive ? ceil(min) : floor(min).add(BigDecimal.ONE));
+    hi =
+        max == null
+            ? Long.MAX_VALUE
+            : clamp(maxInclusive ? floor(max) : ceil(max).subtract(BigDecimal.ONE));
+  }
+
+  private static BigDecimal floor(final BigDecimal d) {
+    return d.setScale(0, RoundingMode.FLOOR);
+  }
+
+  private static BigDecimal ceil(final BigDecimal d) {
+    return d.setScale(0, RoundingMode.CEILING);
+  }
+
+  private static long clamp(final BigDecimal d) {
+    return d.max(BigDecimal.valueOf(Long.MIN_VALUE))
+        .min(BigDecimal.valueOf(Long.MAX_VALUE))
+        .longValue();
+  }
+
+  /**
+   * Parse a range from the brackets onwards, e.g. {@code (0,1,0.001]}.
+   *
+   * @throws IllegalArgumentException If it is malformed.
+   */
+  static NumericRange parse(final String spec) {
+    final int last = spec.length() - 1;
+    if (spec.length() < 2
+        || (spec.charAt(0) != '[' && spec.charAt(0) != '(')
+        || (spec.charAt(last) != ']' && spec.charAt(last) != ')')) {
+      throw new IllegalArgumentException("Malformed numeric range: " + spec);
+    }
+    final boolean minInclusive = spec.charAt(0) == '[';
+    final boolean maxInclusive = spec.charAt(last) == ']';
+    final String[] parts = spec.substring(1, last).split(",", -1);
+    if (parts.length < 2 || parts.length > 4) {
+      throw new IllegalArgumentException("Malformed numeric range: " + spec);
+    }
+
+    final BigDecimal min = bound(parts[0], minInclusive, spec);
+    final BigDecimal max = bound(parts[1], maxInclusive, spec);
+    if (min != null && max != null && min.compareTo(max) > 0) {
+      throw new IllegalArgumentException("Empty numeric range: " + spec);
+    }
+
+    final BigDecimal step;
+    if (parts.length < 3 || parts[2].isEmpty()) {
+      final int scale =
+          Math.max(0, Math.max(min == null ? 0 : min.scale(), max == null ? 0 : max.scale()));
+      step = BigDecimal.ONE.movePointLeft(scale);
+    } else if ("unlimited".equals(parts[2])) {
+      step = null;
+    } else {
+      step = decimal(parts[2], spec);
+      if (step.signum() <= 0) {
+        throw new IllegalArgumentException("Numeric range step must be positive: " + spec);
+      }
+    }
+
+    RoundingMode rounding = null;
+    if (parts.length == 4) {
+      switch (parts[3]) {
+        case "round":
+          rounding = RoundingMode.HALF_UP;
+          break;
+        case "floor":
+          rounding = RoundingMode.FLOOR;
+          break;
+        case "ceiling":
+          rounding = RoundingMode.CEILING;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown rounding mode: " + spec);
+      }
+      if (step == null) {
+        throw new IllegalArgumentException("Cannot round to an unlimited step: " + spec);
+      }
+    }
+    return new NumericRange(min, minInclusive, max, maxInclusive, step, rounding);
+  }
+
+  private static BigDecimal bound(final String s, final boolean inclusive, final String spec) {
+    if (s.isEmpty()) {
+      if (inclusive) {
+        throw new IllegalArgumentException("Unbounded numeric range must be open: " + spec);
+      }
+      return null;
+    }
+    return decimal(s, spec);
+  }
+
+  private static BigDecimal decimal(final String s, final String spec) {
+    if (!isDecimal(s, 0, s.length())) {
+      throw new IllegalArgumentException("Malformed number in numeric range: " + spec);
+    }
+    return new BigDecimal(s);
+  }
+
+  /** Whether {@code s[from, to)} is a plain decimal: an optional minus, digits, and a fraction. */
+  private static boolean isDecimal(final CharSequence s, final int from, final int to) {
+    int i = from < to && s.charAt(from) == '-' ? from + 1 : from;
+    final int digits = i;
+    while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+      i++;
+    }
+    if (i == digits) {
+      return false;
+    }
+    if (i == to) {
+      return true;
+    }
+    if (s.charAt(i) != '.' || ++i == to) {
+      return false;
+    }
+    while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+      i++;
+    }
+    return i == to;
+  }
+
+  /**
+   * Parse {@code s[from, to)} and check it is in range.
+   *
+   * @param out Where to put the value: a {@code long} if {@link #integral}, otherwise the bits of a
+   *     {@code double}.
+   * @return Whether the value is valid.
+   */
+  boolean parse(final String s, final int from, final int to, final long[] out, final int i) {
+    if (!isDecimal(s, from, to)) {
+      return false;
+    }
+
+    if (integral && !hasFraction(s, from, to)) {
+      // whole values of whole ranges: no need for BigDecimal
+      long v;
+      try {
+        v = Long.parseLong(s, from, to, 10);
+      } catch (final NumberFormatException e) {
+        return false;
+      }
+      final long r = Math.floorMod(v, longStep);
+      if (r != 0) {
+        if (rounding == null) {
+          return false;
+        }
+        v = round(v, r);
+      }
+      if (v < lo || v > hi) {
+        return false;
+      }
+      out[i] = v;
+      return true;
+    }
+
+    BigDecimal v = new BigDecimal(s.substring(from, to));
+    if (step != null) {
+      if (rounding != null) {
+        v = v.divide(step, 0, rounding).multiply(step);
+      } else if (v.remainder(step).signum() != 0) {
+        return false;
+      }
+    }
+    if (min != null && (minInclusive ? v.compareTo(min) < 0 : v.compareTo(min) <= 0)) {
+      return false;
+    }
+    if (max != null && (maxInclusive ? v.compareTo(max) > 0 : v.compareTo(max) >= 0)) {
+      return false;
+    }
+    if (!integral) {
+      out[i] = Double.doubleToRawLongBits(v.doubleValue());
+      return true;
+    }
+    try {
+      out[i] = v.longValueExact();
+    } catch (final ArithmeticException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean hasFraction(final String s, final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == '.') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Round a whole value, {@code r} above a multiple of the step, as {@link #rounding} would. */
+  private long round(final long v, final long r) {
+    final long below = v - r;
+    switch (rounding) {
+      case FLOOR:
+        return below;
+      case CEILING:
+        return below + longStep;
+      default:
+        // HALF_UP: ties go away from zero
+        final long twice = 2 * r;
+        return twice > longStep || (twice == longStep && v > 0) ? below + longStep : below;
+    }
+  }
+}
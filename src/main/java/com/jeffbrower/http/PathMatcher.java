@@ -1,6 +1,8 @@
 package com.jeffbrower.http;
 
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.regex.MatchResult;
@@ -21,19 +23,6 @@ public class PathMatcher implements RequestMatcher {
 
   private static Pattern parsePath(
       final String path, final boolean ignoreCase, final PathMatcher self) {
-    // TODO add support for numeric ranges (min, max, step, roundingMode)
-    // step enforces that the given value is a multiple of the step, unless roundingMode is set
-    // roundingMode rounds to the nearest step, and is one of: round, floor, ceiling
-    // if step is left out, it is inferred from min/max
-    // if step is "unlimited", arbitrary precision is accepted and no rounding is performed
-    // if min/max are left out, they are inferred to be negative/positive infinity (but must be open
-    // bound)
-    // {param[0,10]}
-    // {param(-1.23,4.56)}
-    // {param(0,1,0.001]}
-    // {param[0,1,unlimited]}
-    // {param(,10]}
-    // {param[10,)}
     if (!path.startsWith("/")) {
       throw new IllegalArgumentException("Path must start with /");
     }
@@ -52,9 +41,18 @@ public class PathMatcher implements RequestMatcher {
       for (int i = open + 1; i < path.length(); i++) {
         final char c = path.charAt(i);
         if (c == '}') {
-          final String name = validateName(path.substring(open + 1, close = i));
-          regex.append("(?<" + name + ">[^/]+?)");
-          self.names.add(name);
+          final String param = path.substring(open + 1, close = i);
+          final int range = rangeStart(param);
+          if (range == -1) {
+            final String name = validateName(param);
+            regex.append("(?<" + name + ">[^/]+?)");
+            self.names.add(name);
+          } else {
+            final String name = validateName(param.substring(0, range));
+            regex.append("(?<" + name + ">" + NumericRange.REGEX + ")");
+            self.names.add(name);
+            self.ranges.put(name, NumericRange.parse(param.substring(range)));
+          }
           continue outer;
         }
         if (c == ':') {
@@ -92,6 +90,17 @@ public class PathMatcher implements RequestMatcher {
     return true;
   }
 
+  /** Where a numeric range starts in the inside of a {@code {param}}, or -1 if it has none. */
+  private static int rangeStart(final String param) {
+    for (int i = 0; i < param.length(); i++) {
+      final char c = param.charAt(i);
+      if (c == '[' || c == '(') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   private static String validateName(final String name) {
     if (!NAME_VALIDATOR.matcher(name).matches()) {
       throw new IllegalArgumentException("Unexpected path variable name: " + name);
@@ -99,15 +108,69 @@ public class PathMatcher implements RequestMatcher {
     return name;
   }
 
+  /**
+   * Split a path into the segments between its slashes, if each is either literal or a single
+   * {@code {name}} param, optionally numeric, so that it can be matched without its regex.
+   */
+  private static Segment[] parseSegments(final String path) {
+    final String[] parts = path.substring(1).split("/", -1);
+    final Segment[] segments = new Segment[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      final String part = parts[i];
+      if (part.indexOf('{') == -1 && part.indexOf('}') == -1) {
+        segments[i] = new Segment(part, null, null);
+        continue;
+      }
+      if (!part.startsWith("{")
+          || part.indexOf('{', 1) != -1
+          || part.indexOf('}') != part.length() - 1
+          || part.indexOf(':') != -1) {
+        return null;
+      }
+      final String param = part.substring(1, part.length() - 1);
+      final int range = rangeStart(param);
+      segments[i] =
+          range == -1
+              ? new Segment(null, param, null)
+              : new Segment(
+                  null, param.substring(0, range), NumericRange.parse(param.substring(range)));
+    }
+    return segments;
+  }
+
+  /** One segment of a path: a literal, or a param matching any non-empty segment or a number. */
+  static final class Segment {
+    final String literal;
+    final String param;
+    final NumericRange range;
+
+    Segment(final String literal, final String param, final NumericRange range) {
+      this.literal = literal;
+      this.param = param;
+      this.range = range;
+    }
+  }
+
   private final Set<String> names = new HashSet<>();
+  private final Map<String, NumericRange> ranges = new LinkedHashMap<>();
   public final Pattern pattern;
+  final boolean ignoreCase;
+  // null if the path can only be matched with its regex
+  final Segment[] segments;
+  final boolean hasParams;
 
   public PathMatcher(final String path, final boolean ignoreCase) {
     this.pattern = parsePath(path, ignoreCase, this);
+    this.ignoreCase = ignoreCase;
+    segments = parseSegments(path);
+    hasParams = !names.isEmpty();
   }
 
   public PathMatcher(final Pattern pattern) {
     this.pattern = pattern;
+    ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+    segments = null;
+    hasParams = false;
   }
 
   public Optional<MatchResult> startsWith(final Request req) {
@@ -117,11 +180,148 @@ public class PathMatcher implements RequestMatcher {
 
   @Override
   public boolean matches(final Request req) {
+    final String url = req.url;
+    if (segments == null) {
+      return matchesPattern(req);
+    }
+    if (!url.startsWith("/")) {
+      return false;
+    }
+
+    for (int i = 0, from = 1; i < segments.length; i++) {
+      int end = url.indexOf('/', from);
+      if (end == -1) {
+        end = url.length();
+      }
+      if ((end == url.length()) != (i == segments.length - 1)) {
+        return false;
+      }
+      final String literal = segments[i].literal;
+      if (literal == null
+          ? end == from
+          : literal.length() != end - from || !regionMatches(url, from, literal)) {
+        return false;
+      }
+      from = end + 1;
+    }
+    return bind(url, req);
+  }
+
+  private boolean regionMatches(final String url, final int from, final String literal) {
+    if (!ignoreCase) {
+      return url.regionMatches(from, literal, 0, literal.length());
+    }
+    // like Pattern.CASE_INSENSITIVE, only fold ASCII
+    for (int i = 0; i < literal.length(); i++) {
+      final char a = url.charAt(from + i);
+      final char b = literal.charAt(i);
+      if (a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Set the params of a URL whose segments are known to match the shape of {@link #segments}.
+   *
+   * @return Whether every numeric param is in range; if not, nothing is set.
+   */
+  boolean bind(final String url, final Request req) {
+    if (!hasParams) {
+      return true;
+    }
+    final Binding b = binding(url);
+    if (b == null) {
+      return false;
+    }
+    b.apply(req);
+    return true;
+  }
+
+  /**
+   * The params of a URL whose segments are known to match the shape of {@link #segments}, or null
+   * if a numeric param is out of range.
+   */
+  Binding binding(final String url) {
+    if (!hasParams) {
+      return Binding.NONE;
+    }
+
+    final String[] values = new String[segments.length];
+    final long[] numbers = ranges.isEmpty() ? null : new long[segments.length];
+    for (int i = 0, from = 1; i < segments.length; i++) {
+      final int end = segmentEnd(url, from);
+      final Segment s = segments[i];
+      if (s.range != null && !s.range.parse(url, from, end, numbers, i)) {
+        return null;
+      }
+      if (s.param != null) {
+        values[i] = url.substring(from, end);
+      }
+      from = end + 1;
+    }
+    return new Binding(segments, values, numbers);
+  }
+
+  /** The params of one URL, to be set on any number of requests for it. */
+  static final class Binding {
+    static final Binding NONE = new Binding(new Segment[0], null, null);
+
+    private final Segment[] segments;
+    // by segment
+    private final String[] values;
+    private final long[] numbers;
+
+    private Binding(final Segment[] segments, final String[] values, final long[] numbers) {
+      this.segments = segments;
+      this.values = values;
+      this.numbers = numbers;
+    }
+
+    void apply(final Request req) {
+      for (int i = 0; i < segments.length; i++) {
+        final Segment s = segments[i];
+        if (s.param != null) {
+          req.pathParams.put(s.param, values[i]);
+        }
+        if (s.range != null) {
+          req.numericParam(s.param, numbers[i], s.range.integral);
+        }
+      }
+    }
+  }
+
+  /** Whether {@link #bind} always succeeds, so matching the shape of the path is enough. */
+  boolean alwaysBinds() {
+    return ranges.isEmpty();
+  }
+
+  private static int segmentEnd(final String url, final int from) {
+    final int end = url.indexOf('/', from);
+    return end == -1 ? url.length() : end;
+  }
+
+  private boolean matchesPattern(final Request req) {
     final Matcher m = pattern.matcher(req.url);
     if (!m.matches()) {
       return false;
     }
+
+    final long[] numbers = ranges.isEmpty() ? null : new long[ranges.size()];
+    int n = 0;
+    for (final Map.Entry<String, NumericRange> e : ranges.entrySet()) {
+      final String value = m.group(e.getKey());
+      if (!e.getValue().parse(value, 0, value.length(), numbers, n++)) {
+        return false;
+      }
+    }
+
     names.forEach(name -> req.pathParams.put(name, m.group(name)));
+    n = 0;
+    for (final Map.Entry<String, NumericRange> e : ranges.entrySet()) {
+      req.numericParam(e.getKey(), numbers[n++], e.getValue().integral);
+    }
     return true;
   }
 
@@ -1,27 +1,221 @@
 package com.jeffbrower.http;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 public class Request {
   public Method method;
   public String url;
+  public int majorVersion = 1;
+  public int minorVersion = 1;
   public final Map<String, String> pathParams = new HashMap<>();
-  public final Map<String, List<String>> queryParams = new HashMap<>();
+  public final Map<String, List<String>> queryParams = new QueryParams();
   public final Headers headers = new Headers(true);
   public Deserializer deserializer;
   public byte[] body;
+  // set when the body is streamed, and not yet read into body
+  BodyStream bodySource;
+  // the codings to undo as the streamed body is read, if any
+  String[] bodyCodings;
+  BodyDecoding bodyDecoding;
+  private InputStream bodyStream;
+
+  // numeric path params, as parsed by their ranges: longs, or the bits of doubles
+  private String[] numericNames = new String[0];
+  private long[] numericValues = new long[0];
+  private boolean[] numericIntegral = new boolean[0];
 
   Request() {}
 
+  void numericParam(final String name, final long value, final boolean integral) {
+    int i = numericIndex(name);
+    if (i == -1) {
+      i = numericNames.length;
+      numericNames = Arrays.copyOf(numericNames, i + 1);
+      numericValues = Arrays.copyOf(numericValues, i + 1);
+      numericIntegral = Arrays.copyOf(numericIntegral, i + 1);
+      numericNames[i] = name;
+    }
+    numericValues[i] = value;
+    numericIntegral[i] = integral;
+  }
+
+  private int numericIndex(final String name) {
+    for (int i = 0; i < numericNames.length; i++) {
+      if (numericNames[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The value of a numeric path param whose range has a whole step, e.g. {@code {id[1,)}}.
+   *
+   * @throws IllegalArgumentException If there is no such param.
+   */
+  public long longParam(final String name) {
+    final int i = numericIndex(name);
+    if (i == -1 || !numericIntegral[i]) {
+      throw new IllegalArgumentException("No whole numeric path param: " + name);
+    }
+    return numericValues[i];
+  }
+
+  /**
+   * The value of any numeric path param, e.g. {@code {ratio[0,1,unlimited]}}.
+   *
+   * @throws IllegalArgumentException If there is no such param.
+   */
+  public double doubleParam(final String name) {
+    final int i = numericIndex(name);
+    if (i == -1) {
+      throw new IllegalArgumentException("No numeric path param: " + name);
+    }
+    return numericIntegral[i] ? numericValues[i] : Double.longBitsToDouble(numericValues[i]);
+  }
+
+  /** Set the raw query string, which is only decoded into {@link #queryParams} once read. */
+  void query(final byte[] query, final Charset charset) {
+    final QueryParams params = (QueryParams) queryParams;
+    params.raw = query;
+    params.charset = charset;
+  }
+
+  /** The query string as received, or null if there is none or the params were cleared. */
+  String rawQuery() {
+    final byte[] raw = ((QueryParams) queryParams).raw;
+    return raw == null ? null : new String(raw, ISO_8859_1);
+  }
+
+  /** A copy of the request line and headers, to handle again apart from this request. */
+  Request copyHead() {
+    final Request copy = new Request();
+    copy.method = method;
+    copy.url = url;
+    copy.majorVersion = majorVersion;
+    copy.minorVersion = minorVersion;
+    final QueryParams params = (QueryParams) queryParams;
+    if (params.raw != null) {
+      copy.query(params.raw, params.charset);
+    }
+    headers.forEach(copy.headers::add);
+    return copy;
+  }
+
+  /** Whether the client allows the connection to persist after this request (RFC 7230 6.3). */
+  boolean keepAlive() {
+    final Optional<String> connection = headers.general.get(GeneralHeader.CONNECTION);
+    if (majorVersion == 1 && minorVersion == 0) {
+      return connection.isPresent() && Header.hasToken(connection.get(), "keep-alive");
+    }
+    return !connection.isPresent() || !Header.hasToken(connection.get(), "close");
+  }
+
+  /**
+   * The body as a stream. When bodies are streamed this reads from the connection as it goes, and
+   * can only be read once; the rest of the body is discarded, or the connection closed, once the
+   * response is sent.
+   */
+  public InputStream getBodyStream() {
+    if (bodySource == null) {
+      return new ByteArrayInputStream(body == null ? new byte[0] : body);
+    }
+    if (bodyStream == null) {
+      try {
+        bodyStream =
+            bodyCodings == null ? bodySource : bodyDecoding.decode(bodySource, bodyCodings);
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return bodyStream;
+  }
+
   public <T> T getBody(final Class<? extends T> clazz) {
     if (deserializer == null) {
+      if (bodySource != null && clazz == byte[].class) {
+        try {
+          body = getBodyStream().readAllBytes();
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        bodySource = null;
+      }
       if (body == null || clazz == byte[].class) {
         return (T) body;
       }
       throw new IllegalArgumentException("No deserializer specified");
     }
+    if (bodySource != null) {
+      return deserializer.deserialize(this, getBodyStream(), clazz);
+    }
     return deserializer.deserialize(this, clazz);
   }
+
+  private static final class QueryParams extends AbstractMap<String, List<String>> {
+    private Map<String, List<String>> map;
+    private byte[] raw;
+    private Charset charset;
+
+    private Map<String, List<String>> map() {
+      if (map == null) {
+        final Map<String, List<String>> decoded = new HashMap<>();
+        if (raw != null) {
+          // kept, as what caches and coalescing tell requests apart by
+          UrlDecoder.decodeParams(raw, 0, raw.length, charset, decoded);
+        }
+        map = decoded;
+      }
+      return map;
+    }
+
+    @Override
+    public int size() {
+      return map().size();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      return map().containsKey(key);
+    }
+
+    @Override
+    public List<String> get(final Object key) {
+      return map().get(key);
+    }
+
+    @Override
+    public List<String> put(final String key, final List<String> value) {
+      return map().put(key, value);
+    }
+
+    @Override
+    public List<String> remove(final Object key) {
+      return map().remove(key);
+    }
+
+    @Override
+    public void clear() {
+      raw = null;
+      map = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, List<String>>> entrySet() {
+      return map().entrySet();
+    }
+  }
 }
@@ -0,0 +1,196 @@
+package com.jeffbrower.http;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Handles identical {@code GET} and {@code HEAD} requests that arrive while one of them is being
+ * handled only once: the others wait for it, without holding a thread, and are answered with a copy
+ * of its status, headers and body, each then going on to any conditional request or range of its
+ * own. Requests are identical if they have the same key, by default their method, URL and query
+ * string.
+ *
+ * <p>A response only the first request may have is not shared, and the others are handled after
+ * all: one that sets a cookie, or whose body is streamed or a file. Nor is one that varies by a
+ * request header the others do not have the same value for, such as {@code Accept-Encoding} once it
+ * is compressed. If handling fails, they all fail the same way. Requests with {@code Authorization}
+ * or {@code Cookie} are handled on their own unless {@link #withCredentials} allows otherwise.
+ */
+public final class RequestCoalescing {
+  private final ConcurrentHashMap<Object, CompletableFuture<Shared>> flights =
+      new ConcurrentHashMap<>();
+  private Function<Request, ?> key = req -> Arrays.asList(req.method, req.url, req.rawQuery());
+  private boolean credentials;
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * Coalesce requests with the same {@code key}, rather than method, URL and query string; those it
+   * maps to null are handled on their own.
+   */
+  public RequestCoalescing withKey(final Function<Request, ?> key) {
+    this.key = key;
+    return this;
+  }
+
+  /**
+   * Coalesce requests with {@code Authorization} or {@code Cookie} too, which is only safe if their
+   * keys tell apart everyone who may get a different response.
+   */
+  public RequestCoalescing withCredentials() {
+    credentials = true;
+    return this;
+  }
+
+  /** How many requests were answered with the response to another. */
+  public long coalesced() {
+    return coalesced.sum();
+  }
+
+  /** What a request is coalesced by, or null if it is handled on its own. */
+  Object key(final Request req) {
+    if ((req.method != Method.GET && req.method != Method.HEAD)
+        || (!credentials
+            && (req.headers.request.contains(RequestHeader.AUTHORIZATION)
+                || req.headers.request.contains(RequestHeader.COOKIE)))) {
+      return null;
+    }
+    return key.apply(req);
+  }
+
+  /**
+   * Produce the response to a request with {@code handle}, unless one with the same key is already
+   * being handled, in which case copy that into {@code res} once it is done. If that response may
+   * not be shared with this request, {@code handle} runs after all, on {@code executor} rather than
+   * on whatever thread completed the other.
+   */
+  CompletionStage<Response> share(
+      final Object key,
+      final Response res,
+      final Supplier<CompletionStage<Response>> handle,
+      final Executor executor) {
+    final CompletableFuture<Shared> flight = new CompletableFuture<>();
+    final CompletableFuture<Shared> leader = flights.putIfAbsent(key, flight);
+    if (leader != null) {
+      return leader.thenCompose(
+          shared -> {
+            if (shared == null || !shared.matches(res.request)) {
+              try {
+                return CompletableFuture.supplyAsync(handle, executor)
+                    .thenCompose(Function.identity());
+              } catch (final RejectedExecutionException e) {
+                throw Status.SERVICE_UNAVAILABLE.exception("Executor rejected the request", e);
+              }
+            }
+            coalesced.increment();
+            shared.fill(res);
+            return CompletableFuture.completedFuture(res);
+          });
+    }
+
+    CompletionStage<Response> handled;
+    try {
+      handled = handle.get();
+    } catch (final Throwable t) {
+      handled = CompletableFuture.failedFuture(t);
+    }
+    return handled.whenComplete(
+        (r, t) -> {
+          // before this request goes on to change its response
+          flights.remove(key, flight);
+          if (t != null) {
+            flight.completeExceptionally(t);
+          } else {
+            flight.complete(Shared.of(r));
+          }
+        });
+  }
+
+  /** A response as the handlers produced it, to copy. */
+  private static final class Shared {
+    final Status status;
+    // names and values, alternating
+    final String[] headers;
+    // a byte[] or ByteBuffer, or null
+    final Object body;
+    // lowercase, and the values the first request had for them
+    final String[] varyNames;
+    final String[] varyValues;
+
+    private Shared(
+        final Status status,
+        final String[] headers,
+        final Object body,
+        final String[] varyNames,
+        final String[] varyValues) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.varyNames = varyNames;
+      this.varyValues = varyValues;
+    }
+
+    /** A copy of a response, or null if it must not be shared. */
+    static Shared of(final Response res) {
+      if (ResponseEncoder.streaming(res)
+          || (res.body != null
+              && ResponseEncoder.sentAsIs(res.body)
+              && !(res.body instanceof ByteBuffer))
+          || res.headers.response.contains(ResponseHeader.SET_COOKIE)) {
+        return null;
+      }
+      final String[] varyNames = ResponseCache.varyNames(res);
+      if (varyNames == null) {
+        return null;
+      }
+      final String[] varyValues = new String[varyNames.length];
+      for (int i = 0; i < varyNames.length; i++) {
+        varyValues[i] = res.request.headers.get(varyNames[i]).orElse(null);
+      }
+      if (res.body != null && !(res.body instanceof ByteBuffer)) {
+        res.body = res.serializeBody();
+        res.serializer = null;
+      }
+      final Headers h = res.headers;
+      int count = 0;
+      for (int i = h.next(0); i != -1; i = h.next(i + 1)) {
+        count++;
+      }
+      final String[] headers = new String[2 * count];
+      int n = 0;
+      for (int i = h.next(0); i != -1; i = h.next(i + 1)) {
+        headers[n++] = h.name(i);
+        headers[n++] = h.value(i);
+      }
+      return new Shared(res.status, headers, res.body, varyNames, varyValues);
+    }
+
+    /** Whether {@code req} has the same values as the first request for the headers in Vary. */
+    boolean matches(final Request req) {
+      for (int i = 0; i < varyNames.length; i++) {
+        final String value = req.headers.get(varyNames[i]).orElse(null);
+        if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void fill(final Response res) {
+      res.status = status;
+      for (int i = 0; i < headers.length; i += 2) {
+        res.headers.add(headers[i], headers[i + 1]);
+      }
+      res.serializer = null;
+      // buffers are only ever read through duplicates
+      res.body = body;
+    }
+  }
+}
@@ -63,7 +63,7 @@ public enum RequestHeader implements Header {
 
   public final Header.Type type;
   public final String s;
-  private final String[] aliases;
+  final String[] aliases;
 
   private RequestHeader() {
     this(null);
@@ -90,16 +90,7 @@ public enum RequestHeader implements Header {
   }
 
   public static Optional<RequestHeader> of(final String s) {
-    for (final RequestHeader h : values()) {
-      if (s.equalsIgnoreCase(h.s)) {
-        return Optional.of(h);
-      }
-      for (final String alias : h.aliases) {
-        if (s.equalsIgnoreCase(alias)) {
-          return Optional.of(h);
-        }
-      }
-    }
-    return Optional.empty();
+    final Header h = HeaderNames.find(s);
+    return h instanceof RequestHeader ? Optional.of((RequestHeader) h) : Optional.empty();
   }
 }
@@ -2,7 +2,7 @@ package com.jeffbrower.http;
 
 public interface RequestMatcher {
   static RequestMatcher all() {
-    return req -> true;
+    return CompositeMatcher.ALL;
   }
 
   static RequestMatcher none() {
@@ -16,10 +16,10 @@ public interface RequestMatcher {
   }
 
   default RequestMatcher and(final RequestMatcher that) {
-    return req -> matches(req) && that.matches(req);
+    return new CompositeMatcher(true, this, that);
   }
 
   default RequestMatcher or(final RequestMatcher that) {
-    return req -> matches(req) || that.matches(req);
+    return new CompositeMatcher(false, this, that);
   }
 }
@@ -0,0 +1,746 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Parses HTTP/1.1 requests incrementally from {@link ByteBuffer}s as bytes arrive. The request head
+ * is scanned in bulk and only copied aside when it spans more than one buffer. An instance holds
+ * the state of one connection and must not be shared.
+ */
+final class RequestParser {
+  /** Upper bound on the size of a request head, or of a chunked body's trailers. */
+  static final int MAX_HEAD_SIZE = 64 * 1024;
+  // what a body buffer starts at, before doubling as the body arrives
+  private static final int INITIAL_BODY_SIZE = 16 * 1024;
+
+  // byte classes
+  private static final byte FIELD = 1; // allowed anywhere in a head line: VCHAR, SP, HTAB
+  private static final byte VCHAR = 2; // visible ASCII
+  private static final byte TCHAR = 4; // token, as in header names
+  private static final byte WORD = 8; // \w, as in methods
+  private static final byte[] CLASSES = new byte[256];
+  static final byte[] HEX = new byte[256];
+
+  static {
+    for (int c = 0x21; c < 0x7F; c++) {
+      CLASSES[c] = FIELD | VCHAR;
+    }
+    CLASSES[' '] = FIELD;
+    CLASSES['\t'] = FIELD;
+    for (final char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+      CLASSES[c] |= TCHAR;
+    }
+    Arrays.fill(HEX, (byte) -1);
+    for (int c = '0'; c <= '9'; c++) {
+      CLASSES[c] |= TCHAR | WORD;
+      HEX[c] = (byte) (c - '0');
+    }
+    for (int c = 'A'; c <= 'Z'; c++) {
+      CLASSES[c] |= TCHAR | WORD;
+      CLASSES[c | 0x20] |= TCHAR | WORD;
+    }
+    for (int c = 'A'; c <= 'F'; c++) {
+      HEX[c] = HEX[c | 0x20] = (byte) (c - 'A' + 10);
+    }
+    CLASSES['_'] |= WORD;
+  }
+
+  private static boolean is(final byte b, final byte clazz) {
+    return (CLASSES[b & 0xFF] & clazz) != 0;
+  }
+
+  private final Charset urlCharset;
+  // return requests once their heads are parsed, leaving their bodies to be read through body()
+  private final boolean streaming;
+  private final BodyDecoding decoding;
+
+  RequestParser(final Charset urlCharset) {
+    this(urlCharset, false);
+  }
+
+  RequestParser(final Charset urlCharset, final boolean streaming) {
+    this(urlCharset, streaming, new BodyDecoding());
+  }
+
+  RequestParser(final Charset urlCharset, final boolean streaming, final BodyDecoding decoding) {
+    this.urlCharset = urlCharset;
+    this.streaming = streaming;
+    this.decoding = decoding;
+  }
+
+  private enum State {
+    HEAD,
+    BODY,
+    CHUNK_SIZE,
+    CHUNK_DATA,
+    CHUNK_DATA_CR,
+    CHUNK_DATA_LF,
+    TRAILERS
+  }
+
+  private enum HeaderParseState {
+    NONE,
+    CR,
+    CR_LF,
+    CR_LF_CR
+  }
+
+  private enum ChunkParseState {
+    EMPTY,
+    NUM,
+    EXT,
+    CR
+  }
+
+  private State state = State.HEAD;
+  private Request request = new Request();
+
+  // head
+  private HeaderParseState headState = HeaderParseState.NONE;
+  private byte[] head;
+  private int headLength;
+
+  // body
+  private Header.WithParams[] encodings;
+  // the codings to undo once the body is read, if any
+  private String[] codings;
+  private long remaining;
+  // grown as the body arrives, so a large Content-Length alone holds no memory
+  private byte[] body;
+  private int bodyLength;
+  private ByteArrayOutputStream chunks;
+  private ChunkParseState chunkState;
+  private int chunkSize;
+  // whether the current request has been returned, with its body still to come
+  private boolean streamed;
+
+  /** The request currently being parsed, which may be incomplete. */
+  Request request() {
+    return request;
+  }
+
+  /** Whether the body of the request last returned is still being read through {@link #body}. */
+  boolean streamingBody() {
+    return state != State.HEAD && streamed;
+  }
+
+  /** Whether any of the current request has been received. */
+  private boolean started() {
+    return state != State.HEAD || headLength != 0;
+  }
+
+  /**
+   * Read one request from a blocking stream.
+   *
+   * @param buf A heap buffer, in read mode, holding bytes received ahead of this request; on return
+   *     it holds those received ahead of the next.
+   * @return The request; or {@code null} if the connection was closed, or sat idle past its
+   *     timeout, before the request started.
+   */
+  Request read(final InputStream is, final ByteBuffer buf) throws IOException {
+    try {
+      Request req;
+      while ((req = parse(buf)) == null) {
+        buf.clear();
+        final int n = is.read(buf.array(), buf.arrayOffset(), buf.capacity());
+        if (n == -1) {
+          if (!started()) {
+            return null;
+          }
+          throw Status.BAD_REQUEST.exception("Connection closed before the request was complete");
+        }
+        buf.limit(n);
+      }
+      return req;
+    } catch (final SocketTimeoutException e) {
+      if (!started()) {
+        return null;
+      }
+      throw Status.REQUEST_TIMEOUT.exception("Timed out reading request", e);
+    }
+  }
+
+  /**
+   * Consume as many bytes from {@code buf} as are needed to complete the current request.
+   *
+   * @param buf A heap buffer, in read mode.
+   * @return The completed request, leaving any following bytes in {@code buf}; or {@code null} if
+   *     all of {@code buf} was consumed and the request is still incomplete.
+   */
+  Request parse(final ByteBuffer buf) {
+    if (streamed) {
+      throw new IllegalStateException("The body of the last request has not been read");
+    }
+    while (buf.hasRemaining()) {
+      switch (state) {
+        case HEAD:
+          if (!head(buf)) {
+            return null;
+          }
+          encodings = startBody(request);
+          codings = decoding.codings(request, encodings);
+          if (streaming && (encodings != null || remaining != 0)) {
+            if (encodings != null) {
+              startChunk();
+            } else {
+              state = State.BODY;
+            }
+            streamed = true;
+            if (codings != null) {
+              request.bodyCodings = codings;
+              request.bodyDecoding = decoding;
+              request.headers.entity.replace(EntityHeader.CONTENT_LENGTH, null);
+            }
+            return request;
+          }
+          if (encodings != null) {
+            chunks = new ByteArrayOutputStream();
+            startChunk();
+          } else if (remaining != 0) {
+            if (remaining > decoding.maxBodySize()) {
+              throw Status.PAYLOAD_TOO_LARGE.exception(
+                  "Body exceeds " + decoding.maxBodySize() + " bytes");
+            }
+            body = new byte[(int) Math.min(remaining, INITIAL_BODY_SIZE)];
+            bodyLength = 0;
+            state = State.BODY;
+          } else {
+            return finish();
+          }
+          break;
+
+        case BODY:
+          {
+            final int n = (int) Math.min(remaining, buf.remaining());
+            if (bodyLength + n > body.length) {
+              body =
+                  Arrays.copyOf(
+                      body,
+                      (int)
+                          Math.min(
+                              bodyLength + remaining, Math.max(2L * body.length, bodyLength + n)));
+            }
+            buf.get(body, bodyLength, n);
+            bodyLength += n;
+            if ((remaining -= n) == 0) {
+              request.body = body;
+              decodeBody();
+              return finish();
+            }
+          }
+          break;
+
+        case CHUNK_DATA:
+          {
+            final int n = (int) Math.min(remaining, buf.remaining());
+            if (chunks.size() + n > decoding.maxBodySize()) {
+              throw Status.PAYLOAD_TOO_LARGE.exception(
+                  "Body exceeds " + decoding.maxBodySize() + " bytes");
+            }
+            chunks.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+            buf.position(buf.position() + n);
+            if ((remaining -= n) == 0) {
+              state = State.CHUNK_DATA_CR;
+            }
+          }
+          break;
+
+        case TRAILERS:
+          if (!head(buf)) {
+            return null;
+          }
+          request.body = chunks.toByteArray();
+          decodeBody();
+          return finish();
+
+        default:
+          framing(buf);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Decode the body of the request last returned in streaming mode from {@code buf}, still
+   * transfer-coded apart from {@code chunked}.
+   *
+   * @return How many bytes were put in {@code out}; 0 if all of {@code buf} was consumed first; or
+   *     -1 once the body is complete, leaving any following bytes in {@code buf}.
+   */
+  int body(final ByteBuffer buf, final byte[] out, final int off, final int len) {
+    while (true) {
+      switch (state) {
+        case HEAD:
+          return -1;
+
+        case BODY:
+        case CHUNK_DATA:
+          {
+            if (!buf.hasRemaining()) {
+              return 0;
+            }
+            final int n = (int) Math.min(Math.min(remaining, buf.remaining()), len);
+            buf.get(out, off, n);
+            if ((remaining -= n) == 0) {
+              if (state == State.BODY) {
+                finish();
+              } else {
+                state = State.CHUNK_DATA_CR;
+              }
+            }
+            return n;
+          }
+
+        case TRAILERS:
+          if (!head(buf)) {
+            return 0;
+          }
+          finish();
+          return -1;
+
+        default:
+          if (!buf.hasRemaining()) {
+            return 0;
+          }
+          framing(buf);
+      }
+    }
+  }
+
+  /** Consume one byte of chunked framing outside the chunk data and trailers. */
+  private void framing(final ByteBuffer buf) {
+    switch (state) {
+      case CHUNK_SIZE:
+        chunkSize(buf.get() & 0xFF);
+        break;
+
+      case CHUNK_DATA_CR:
+        if (buf.get() != '\r') {
+          throw Status.BAD_REQUEST.exception("Expected CRLF after chunk data");
+        }
+        state = State.CHUNK_DATA_LF;
+        break;
+
+      case CHUNK_DATA_LF:
+        if (buf.get() != '\n') {
+          throw Status.BAD_REQUEST.exception("Expected CRLF after chunk data");
+        }
+        startChunk();
+        break;
+
+      default:
+        throw new IllegalStateException(state.name());
+    }
+  }
+
+  private Request finish() {
+    final Request done = request;
+    request = new Request();
+    state = State.HEAD;
+    headState = HeaderParseState.NONE;
+    headLength = 0;
+    encodings = null;
+    codings = null;
+    remaining = 0;
+    body = null;
+    bodyLength = 0;
+    chunks = null;
+    streamed = false;
+    return done;
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // head
+
+  /**
+   * Scan {@code buf} for the blank line ending the head (or trailers), checking that every CR is
+   * followed by LF, every LF is preceded by CR, and every other byte is visible ASCII or horizontal
+   * whitespace. Once the blank line is found, the head is parsed into {@link #request}.
+   */
+  private boolean head(final ByteBuffer buf) {
+    final byte[] a = buf.array();
+    final int from = buf.arrayOffset() + buf.position();
+    final int end = buf.arrayOffset() + buf.limit();
+
+    boolean done = false;
+    int i = from;
+    scan:
+    while (i < end) {
+      int c = a[i] & 0xFF;
+      switch (headState) {
+        case NONE:
+          // skip over field content in bulk
+          while ((CLASSES[c] & FIELD) != 0) {
+            if (++i == end) {
+              break scan;
+            }
+            c = a[i] & 0xFF;
+          }
+          if (c == '\r') {
+            headState = HeaderParseState.CR;
+            i++;
+            continue;
+          }
+          if (c == '\n') {
+            // no preceding CR
+            throw Status.BAD_REQUEST.exception("Unexpected LF");
+          }
+          // only support visible ASCII
+          throw Status.BAD_REQUEST.exception(String.format("Unexpected char %s (0x%02x)", c, c));
+
+        case CR:
+        case CR_LF_CR:
+          if (c != '\n') {
+            throw Status.BAD_REQUEST.exception(
+                c == '\r' ? "Unexpected CR" : "Unexpected single CR");
+          }
+          i++;
+          if (headState == HeaderParseState.CR_LF_CR) {
+            done = true;
+            break scan;
+          }
+          headState = HeaderParseState.CR_LF;
+          continue;
+
+        case CR_LF:
+          if (c == '\r') {
+            headState = HeaderParseState.CR_LF_CR;
+            i++;
+            continue;
+          }
+          if (c == '\n') {
+            throw Status.BAD_REQUEST.exception("Unexpected LF");
+          }
+          headState = HeaderParseState.NONE;
+          continue;
+      }
+    }
+    buf.position(i - buf.arrayOffset());
+
+    final int length = headLength + (i - from);
+    if (length > MAX_HEAD_SIZE) {
+      throw Status.REQUEST_HEADER_FIELDS_TOO_LARGE.exception(
+          "Request head exceeds " + MAX_HEAD_SIZE + " bytes");
+    }
+    if (done && headLength == 0) {
+      // the common case: the whole head arrived at once, so parse it in place
+      lines(a, from, i);
+      return true;
+    }
+
+    // otherwise collect it across reads
+    if (head == null) {
+      head = new byte[Math.max(1024, length)];
+    } else if (head.length < length) {
+      head = Arrays.copyOf(head, Math.max(2 * head.length, length));
+    }
+    System.arraycopy(a, from, head, headLength, i - from);
+    headLength = length;
+    if (!done) {
+      return false;
+    }
+    lines(head, 0, headLength);
+    headLength = 0;
+    return true;
+  }
+
+  /**
+   * Parse a complete head, which has already been validated by {@link #head(ByteBuffer)}: every
+   * line, including the last and empty one, ends with CRLF.
+   */
+  private void lines(byte[] a, int pos, final int end) {
+    if (state == State.HEAD) {
+      // a client may send an empty line before the request line (RFC 7230 3.5)
+      if (a[pos] == '\r') {
+        pos += 2;
+      }
+      final int eol = lineEnd(a, pos);
+      if (eol == pos) {
+        throw Status.BAD_REQUEST.exception("Empty request");
+      }
+      if (a[eol + 2] == ' ' || a[eol + 2] == '\t') {
+        throw Status.BAD_REQUEST.exception(
+            "Malformed request line: " + new String(a, pos, lineEnd(a, eol + 2) - pos, ISO_8859_1));
+      }
+      requestLine(a, pos, eol);
+      pos = eol + 2;
+    }
+
+    if (a[pos] != '\r') {
+      // header values are only decoded when asked for, from a copy of the field lines since the
+      // buffer will be reused
+      a = Arrays.copyOfRange(a, pos, end);
+      pos = 0;
+    }
+    for (int eol; (eol = lineEnd(a, pos)) != pos; pos = eol + 2) {
+      // legacy: allow for continuation of the previous header
+      boolean folded = false;
+      while (a[eol + 2] == ' ' || a[eol + 2] == '\t') {
+        folded = true;
+        eol = lineEnd(a, eol + 2);
+      }
+      field(a, pos, eol, folded);
+    }
+  }
+
+  private static int lineEnd(final byte[] a, int pos) {
+    while (a[pos] != '\r') {
+      pos++;
+    }
+    return pos;
+  }
+
+  private void requestLine(final byte[] a, final int from, final int to) {
+    // METHOD SP request-target SP HTTP/d.d
+    int i = from;
+    while (i < to && is(a[i], WORD)) {
+      i++;
+    }
+    final int methodEnd = i;
+    final int targetStart = skipWhitespace(a, i, to);
+    i = targetStart;
+    while (i < to && is(a[i], VCHAR)) {
+      i++;
+    }
+    final int targetEnd = i;
+    final int version = skipWhitespace(a, i, to);
+    if (methodEnd == from
+        || targetStart == methodEnd
+        || targetEnd == targetStart
+        || version == targetEnd
+        || to - version != 8
+        || a[version] != 'H'
+        || a[version + 1] != 'T'
+        || a[version + 2] != 'T'
+        || a[version + 3] != 'P'
+        || a[version + 4] != '/'
+        || HEX[a[version + 5] & 0xFF] < 0
+        || HEX[a[version + 5] & 0xFF] > 9
+        || a[version + 6] != '.'
+        || HEX[a[version + 7] & 0xFF] < 0
+        || HEX[a[version + 7] & 0xFF] > 9) {
+      throw Status.BAD_REQUEST.exception(
+          "Malformed request line: " + new String(a, from, to - from, ISO_8859_1));
+    }
+
+    request.method = Method.of(a, from, methodEnd);
+    request.majorVersion = a[version + 5] - '0';
+    request.minorVersion = a[version + 7] - '0';
+    if (request.majorVersion != 1) {
+      throw Status.HTTP_VERSION_NOT_SUPPORTED.exception(
+          "HTTP/" + request.majorVersion + "." + request.minorVersion);
+    }
+
+    int q = targetStart;
+    while (q < targetEnd && a[q] != '?') {
+      q++;
+    }
+    request.url = UrlDecoder.decode(a, targetStart, q, urlCharset);
+    if (q < targetEnd) {
+      request.query(Arrays.copyOfRange(a, q + 1, targetEnd), urlCharset);
+    }
+  }
+
+  private static int skipWhitespace(final byte[] a, int i, final int to) {
+    while (i < to && (a[i] == ' ' || a[i] == '\t')) {
+      i++;
+    }
+    return i;
+  }
+
+  private void field(final byte[] a, final int from, final int to, final boolean folded) {
+    int colon = from;
+    while (colon < to && a[colon] != ':') {
+      colon++;
+    }
+    if (colon == to) {
+      throw Status.BAD_REQUEST.exception("Malformed header: " + fieldValue(a, from, to, folded));
+    }
+    for (int i = from; i < colon; i++) {
+      if (!is(a[i], TCHAR)) {
+        throw Status.BAD_REQUEST.exception(
+            "Malformed header field: " + fieldValue(a, from, colon, folded));
+      }
+    }
+    if (colon == from) {
+      throw Status.BAD_REQUEST.exception("Malformed header field: ");
+    }
+
+    request.headers.addRaw(a, from, colon, colon + 1, to, folded);
+  }
+
+  /**
+   * Decode a header value: trimmed, with each run of horizontal whitespace (and any line folds
+   * within it) replaced by a single space.
+   */
+  static String fieldValue(final byte[] a, int from, int to, final boolean folded) {
+    while (from < to && isFoldedWhitespace(a[from])) {
+      from++;
+    }
+    while (to > from && isFoldedWhitespace(a[to - 1])) {
+      to--;
+    }
+
+    boolean plain = !folded;
+    for (int i = from; plain && i < to; i++) {
+      plain = a[i] != '\t' && (a[i] != ' ' || a[i + 1] != ' ');
+    }
+    if (plain) {
+      return new String(a, from, to - from, ISO_8859_1);
+    }
+
+    final StringBuilder b = new StringBuilder(to - from);
+    for (int i = from; i < to; i++) {
+      if (!isFoldedWhitespace(a[i])) {
+        b.append((char) a[i]);
+      } else if (!isFoldedWhitespace(a[i - 1])) {
+        b.append(' ');
+      }
+    }
+    return b.toString();
+  }
+
+  private static boolean isFoldedWhitespace(final byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // body
+
+  /**
+   * Validate the message framing of a request whose head has been parsed.
+   *
+   * @return The transfer encodings if the body is chunked, otherwise {@code null} with {@link
+   *     #remaining} set to the length of the body.
+   */
+  private Header.WithParams[] startBody(final Request request) {
+    // get message body, if present
+    final Optional<String> transferEncoding =
+        request.headers.general.get(GeneralHeader.TRANSFER_ENCODING);
+    final Optional<String> contentLength = request.headers.entity.get(EntityHeader.CONTENT_LENGTH);
+    if (transferEncoding.isPresent()) {
+      if (contentLength.isPresent()) {
+        throw Status.BAD_REQUEST.exception("Cannot send both Transfer-Encoding and Content-Length");
+      }
+
+      // split list of encodings
+      final Header.WithParams[] encs = Header.parseWithParams(transferEncoding.get());
+      final Header.WithParams lastEnc = encs[encs.length - 1];
+      if (!"chunked".equalsIgnoreCase(lastEnc.value)) {
+        throw Status.BAD_REQUEST.exception("Last Transfer-Encoding of request must be 'chunked'");
+      }
+      if (!lastEnc.params.isEmpty()) {
+        throw Status.BAD_REQUEST.exception("Transfer-Encoding value cannot have params");
+      }
+      return encs;
+    }
+
+    remaining = 0;
+    if (contentLength.isPresent()) {
+      final int size;
+      try {
+        size = Integer.parseInt(contentLength.get());
+      } catch (final NumberFormatException e) {
+        throw Status.BAD_REQUEST.exception("Malformed Content-Length: " + contentLength.get(), e);
+      }
+      if (size < 0) {
+        throw Status.BAD_REQUEST.exception("Negative Content-Length: " + size);
+      }
+      remaining = size;
+    }
+    return null;
+  }
+
+  private void startChunk() {
+    state = State.CHUNK_SIZE;
+    chunkState = ChunkParseState.EMPTY;
+    chunkSize = 0;
+  }
+
+  private void chunkSize(final int c) {
+    if (c == '\r') {
+      switch (chunkState) {
+        case NUM:
+        case EXT:
+          chunkState = ChunkParseState.CR;
+          return;
+        default:
+          throw Status.BAD_REQUEST.exception("Unexpected CR in 'chunked' body");
+      }
+    }
+
+    if (c == '\n') {
+      if (chunkState != ChunkParseState.CR) {
+        throw Status.BAD_REQUEST.exception("Unexpected LF in 'chunked' body");
+      }
+      if (chunkSize == 0) {
+        // last chunk, followed by trailers
+        state = State.TRAILERS;
+        headState = HeaderParseState.CR_LF;
+      } else {
+        state = State.CHUNK_DATA;
+        remaining = chunkSize;
+      }
+      return;
+    }
+
+    if (c == ';') {
+      if (chunkState != ChunkParseState.NUM) {
+        throw Status.BAD_REQUEST.exception("Unexpected ';' in 'chunked' body");
+      }
+      chunkState = ChunkParseState.EXT;
+      return;
+    }
+
+    switch (chunkState) {
+      case EXT:
+        return;
+
+      case EMPTY:
+        chunkState = ChunkParseState.NUM;
+      case NUM:
+        final int d = HEX[c];
+        if (d == -1) {
+          throw Status.BAD_REQUEST.exception("Expected chunk size but found '" + c + "'");
+        }
+
+        // would cause overflow on shift
+        if ((chunkSize & 0x7800_0000) != 0) {
+          throw Status.BAD_REQUEST.exception("Chunk size too large");
+        }
+
+        chunkSize = chunkSize << 4 | d;
+        return;
+
+      default:
+        throw Status.BAD_REQUEST.exception("Unexpected single CR in 'chunked' body");
+    }
+  }
+
+  /** Undo the codings of a body read in full. */
+  private void decodeBody() {
+    if (codings == null) {
+      return;
+    }
+    try {
+      request.body =
+          decoding.decode(new ByteArrayInputStream(request.body), codings).readAllBytes();
+    } catch (final IOException e) {
+      throw Status.BAD_REQUEST.exception("Malformed coded body: " + e.getMessage(), e);
+    }
+    if (request.headers.entity.contains(EntityHeader.CONTENT_LENGTH)) {
+      request.headers.entity.replace(
+          EntityHeader.CONTENT_LENGTH, Integer.toString(request.body.length));
+    }
+  }
+}
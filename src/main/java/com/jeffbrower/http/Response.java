@@ -3,12 +3,22 @@ package com.jeffbrower.http;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
 
 public class Response {
   public final Request request;
   public Status status = Status.OK;
   public final Headers headers = new Headers(false);
   public Serializer serializer;
+
+  /**
+   * Serialized by {@link #serializer}, unless it is a {@code byte[]}, a {@link StreamingBody}, or
+   * one of the bodies sent as they are, with no copy on the heap: a {@link java.nio.file.Path}, a
+   * {@link FileRegion}, a {@link java.nio.ByteBuffer}, or a {@code ByteBuffer[]} sent one after the
+   * other.
+   */
   public Object body;
 
   Response(final Request request) {
@@ -25,6 +35,35 @@ public class Response {
     return this;
   }
 
+  /** Write the body as it is produced, once the handlers are done, rather than holding it. */
+  public Response streamBody(final StreamingBody body) {
+    this.body = body;
+    return this;
+  }
+
+  /**
+   * Declare the validators of the body this response would have, before producing it, and check the
+   * request's preconditions against them. If they fail, the response becomes a {@code 304 Not
+   * Modified} or {@code 412 Precondition Failed} with no body, and the handler should stop there.
+   *
+   * @param etag The entity tag, quoted and with any {@code W/} prefix; or null.
+   * @param lastModified When the body last changed; or null.
+   * @return Whether the handler should go on to produce the body.
+   */
+  public boolean checkPreconditions(final String etag, final Instant lastModified) {
+    if (etag != null) {
+      headers.response.replace(ResponseHeader.ETAG, etag);
+    }
+    Optional<Instant> modified = Optional.empty();
+    if (lastModified != null) {
+      // HTTP dates only have seconds
+      modified = Optional.of(lastModified.truncatedTo(ChronoUnit.SECONDS));
+      headers.entity.replace(
+          EntityHeader.LAST_MODIFIED, ResponseEncoder.GMT_FORMAT.format(modified.get()));
+    }
+    return ConditionalRequests.evaluate(this, etag, modified);
+  }
+
   public void reset() {
     status = Status.OK;
     headers.reset();
@@ -0,0 +1,539 @@
+package com.jeffbrower.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory cache of whole responses to safe requests, as a shared cache would keep them
+ * (RFC 7234), keyed by method, URL and query string, and by the request headers the response's
+ * {@code Vary} names. A response is stored only if it says for how long with {@code s-maxage} or
+ * {@code max-age}, and it is not {@code no-store}, {@code no-cache} or {@code private}, sets no
+ * cookie, and has a body held in memory. While it is fresh, requests for it are answered from the
+ * cache without running any handler or serializer, with an {@code Age}; for {@code
+ * stale-while-revalidate} seconds after that, they are still answered from it while one request is
+ * handled again in the background to replace it.
+ *
+ * <p>Requests with {@code Authorization} are only answered with, and only store, responses marked
+ * {@code public}, {@code s-maxage} or {@code must-revalidate}. Other request headers, including
+ * {@code Cookie}, only matter if the response names them in {@code Vary}. Cache directives in
+ * requests are ignored, so clients cannot make every request reach the handlers.
+ *
+ * <p>Responses are bounded by their size in bytes. Entries are split among segments by hash, each a
+ * segmented LRU: a response comes in on probation, and only moves to the protected part, which
+ * holds most of the segment, once requested again, so a run of requests for things asked for only
+ * once evicts only other such things. A cache serves one server only.
+ */
+public final class ResponseCache {
+  private static final int MAX_SEGMENTS = 16;
+  private static final long MIN_SEGMENT = 4 * 1024 * 1024;
+  // the share of a segment kept for responses requested more than once, out of 100
+  private static final int PROTECTED_PERCENT = 80;
+  // what an entry costs beyond its body and headers
+  private static final int OVERHEAD = 128;
+  private static final int MAX_VARIANTS = 8;
+  private static final int[] CACHEABLE = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+  private final Segment[] segments;
+  private final int mask;
+  private int maxEntrySize = 1024 * 1024;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private boolean attached;
+
+  /**
+   * @param maxBytes How much to hold at most, counting bodies and headers.
+   */
+  public ResponseCache(final long maxBytes) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    final int count =
+        (int) Math.max(1, Math.min(MAX_SEGMENTS, Long.highestOneBit(maxBytes / MIN_SEGMENT)));
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(maxBytes / count + (i < maxBytes % count ? 1 : 0));
+    }
+    mask = count - 1;
+  }
+
+  synchronized void attach() {
+    if (attached) {
+      throw new IllegalStateException("ResponseCache is already in use by another server");
+    }
+    attached = true;
+  }
+
+  /** Leave responses whose body is larger than {@code maxEntrySize} bytes out of the cache. */
+  public ResponseCache withMaxEntrySize(final int maxEntrySize) {
+    if (maxEntrySize < 0) {
+      throw new IllegalArgumentException("maxEntrySize must not be negative");
+    }
+    this.maxEntrySize = maxEntrySize;
+    return this;
+  }
+
+  /** How many requests were answered from the cache, fresh or stale. */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** How many requests that could have been answered from the cache had to be handled. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** How many method, URL and query string combinations are cached. */
+  public int size() {
+    int size = 0;
+    for (final Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.probation.size() + segment.protect.size();
+      }
+    }
+    return size;
+  }
+
+  /** What a request is cached under, or null if its response is never cached. */
+  Key key(final Request req) {
+    if (req.method == null || !req.method.safe || req.url == null) {
+      return null;
+    }
+    return new Key(req.method, req.url, req.rawQuery());
+  }
+
+  /**
+   * The cached response to a request, or null if there is none to answer it with. A stale one must
+   * be revalidated, by whoever first wins {@link Entry#revalidating}.
+   */
+  Entry get(final Key key, final Request req) {
+    final Segment segment = segments[key.hash & mask];
+    final long now = System.nanoTime();
+    final boolean authorized = req.headers.request.contains(RequestHeader.AUTHORIZATION);
+    Entry hit = null;
+    synchronized (segment) {
+      final Entry[] variants = segment.peek(key);
+      if (variants != null) {
+        final List<Entry> live = new ArrayList<>(variants.length);
+        for (final Entry e : variants) {
+          if (!e.usable(now)) {
+            continue;
+          }
+          live.add(e);
+          if (hit == null && (e.shared || !authorized) && e.matches(req)) {
+            hit = e;
+          }
+        }
+        if (live.isEmpty()) {
+          segment.remove(key);
+        } else if (live.size() < variants.length) {
+          segment.put(key, live.toArray(new Entry[0]));
+        }
+        if (hit != null) {
+          segment.promote(key);
+        }
+      }
+    }
+    if (hit == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return hit;
+  }
+
+  /** Store the response to a request, if it may be, in place of what it was answered with. */
+  void put(final Key key, final Response res) {
+    final Entry entry = entry(res);
+    if (entry == null) {
+      return;
+    }
+    final Segment segment = segments[key.hash & mask];
+    synchronized (segment) {
+      final Entry[] old = segment.peek(key);
+      final List<Entry> variants = new ArrayList<>();
+      variants.add(entry);
+      if (old != null) {
+        final long now = System.nanoTime();
+        for (final Entry e : old) {
+          // the same variant, or one cached under names the response no longer varies by
+          if (variants.size() < MAX_VARIANTS
+              && e.usable(now)
+              && Arrays.equals(e.varyNames, entry.varyNames)
+              && !Arrays.equals(e.varyValues, entry.varyValues)) {
+            variants.add(e);
+          }
+        }
+      }
+      segment.put(key, variants.toArray(new Entry[0]));
+    }
+  }
+
+  /** The entry to cache for a response, or null if it must not be cached. */
+  private Entry entry(final Response res) {
+    if (Arrays.binarySearch(CACHEABLE, res.status.statusCode) < 0
+        || ResponseEncoder.streaming(res)
+        || (res.body != null
+            && ResponseEncoder.sentAsIs(res.body)
+            && !(res.body instanceof ByteBuffer))
+        || res.headers.response.contains(ResponseHeader.SET_COOKIE)) {
+      return null;
+    }
+    final Optional<String> cacheControl = res.headers.general.get(GeneralHeader.CACHE_CONTROL);
+    if (!cacheControl.isPresent()) {
+      return null;
+    }
+    long maxAge = -1;
+    long sMaxAge = -1;
+    long stale = 0;
+    boolean shared = false;
+    boolean mustRevalidate = false;
+    for (final String directive : cacheControl.get().split(",")) {
+      final int eq = directive.indexOf('=');
+      final String name =
+          (eq == -1 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+      final String value = eq == -1 ? null : unquote(directive.substring(eq + 1).trim());
+      switch (name) {
+        case "no-store":
+        case "no-cache":
+        case "private":
+          return null;
+        case "must-revalidate":
+          mustRevalidate = true;
+          shared = true;
+          break;
+        case "public":
+          shared = true;
+          break;
+        case "max-age":
+          maxAge = seconds(value);
+          break;
+        case "s-maxage":
+          sMaxAge = seconds(value);
+          shared = true;
+          break;
+        case "stale-while-revalidate":
+          stale = Math.max(0, seconds(value));
+          break;
+        default:
+          break;
+      }
+    }
+    final long ttl = sMaxAge != -1 ? sMaxAge : maxAge;
+    if (ttl <= 0
+        || (!shared && res.request.headers.request.contains(RequestHeader.AUTHORIZATION))) {
+      return null;
+    }
+
+    final String[] varyNames = varyNames(res);
+    if (varyNames == null) {
+      return null;
+    }
+    Arrays.sort(varyNames);
+
+    final byte[] body;
+    if (res.body instanceof ByteBuffer) {
+      final ByteBuffer buffer = ((ByteBuffer) res.body).duplicate();
+      if (buffer.remaining() > maxEntrySize) {
+        return null;
+      }
+      body = new byte[buffer.remaining()];
+      buffer.get(body);
+    } else {
+      body = res.serializeBody();
+      res.body = body;
+      res.serializer = null;
+    }
+    if (body != null && body.length > maxEntrySize) {
+      return null;
+    }
+
+    final List<String> headers = new ArrayList<>();
+    final Headers h = res.headers;
+    for (int i = h.next(0); i != -1; i = h.next(i + 1)) {
+      final String name = h.name(i);
+      if (!name.equalsIgnoreCase("Date")
+          && !name.equalsIgnoreCase("Age")
+          && !name.equalsIgnoreCase("Content-Length")
+          && !name.equalsIgnoreCase("Connection")
+          && !name.equalsIgnoreCase("Transfer-Encoding")) {
+        headers.add(name);
+        headers.add(h.value(i));
+      }
+    }
+    final String[] varyValues = new String[varyNames.length];
+    for (int i = 0; i < varyNames.length; i++) {
+      varyValues[i] = res.request.headers.get(varyNames[i]).orElse(null);
+    }
+    final long now = System.nanoTime();
+    return new Entry(
+        res.status,
+        headers.toArray(new String[0]),
+        body,
+        varyNames,
+        varyValues,
+        shared,
+        now,
+        now + TimeUnit.SECONDS.toNanos(ttl),
+        mustRevalidate ? 0 : TimeUnit.SECONDS.toNanos(stale));
+  }
+
+  /**
+   * The request headers a response names in {@code Vary}, lowercase, or null if it is {@code *}.
+   */
+  static String[] varyNames(final Response res) {
+    final Optional<String> vary = res.headers.response.get(ResponseHeader.VARY);
+    if (!vary.isPresent()) {
+      return new String[0];
+    }
+    final String[] names = vary.get().split(",");
+    int n = 0;
+    for (final String name : names) {
+      final String trimmed = name.trim();
+      if (trimmed.equals("*")) {
+        return null;
+      }
+      if (!trimmed.isEmpty()) {
+        names[n++] = trimmed.toLowerCase(Locale.ROOT);
+      }
+    }
+    return Arrays.copyOf(names, n);
+  }
+
+  private static String unquote(final String s) {
+    return s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"'
+        ? s.substring(1, s.length() - 1)
+        : s;
+  }
+
+  /** A number of seconds, or -1 if malformed, capped so it cannot overflow as nanoseconds. */
+  private static long seconds(final String value) {
+    if (value == null || value.isEmpty()) {
+      return -1;
+    }
+    long n = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      n = Math.min(n * 10 + c - '0', Integer.MAX_VALUE);
+    }
+    return n;
+  }
+
+  static final class Key {
+    final Method method;
+    final String url;
+    // null if there is none
+    final String query;
+    final int hash;
+
+    Key(final Method method, final String url, final String query) {
+      this.method = method;
+      this.url = url;
+      this.query = query;
+      final int h =
+          31 * (31 * url.hashCode() + (query == null ? 0 : query.hashCode())) + method.ordinal();
+      hash = h ^ (h >>> 16);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return method == that.method
+          && url.equals(that.url)
+          && (query == null ? that.query == null : query.equals(that.query));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /** A stored response, and the request headers it was chosen by. */
+  static final class Entry {
+    final Status status;
+    // names and values, alternating
+    final String[] headers;
+    // null if there is none
+    final byte[] body;
+    // lower case and sorted
+    final String[] varyNames;
+    // null where the request had no such header
+    final String[] varyValues;
+    // whether it may answer requests with Authorization
+    final boolean shared;
+    final long stored;
+    final long expires;
+    final long staleNanos;
+    final long weight;
+    // set while one request is handled again to replace it
+    final AtomicBoolean revalidating = new AtomicBoolean();
+
+    Entry(
+        final Status status,
+        final String[] headers,
+        final byte[] body,
+        final String[] varyNames,
+        final String[] varyValues,
+        final boolean shared,
+        final long stored,
+        final long expires,
+        final long staleNanos) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.varyNames = varyNames;
+      this.varyValues = varyValues;
+      this.shared = shared;
+      this.stored = stored;
+      this.expires = expires;
+      this.staleNanos = staleNanos;
+      long w = OVERHEAD + (body == null ? 0 : body.length);
+      for (final String s : headers) {
+        w += s.length();
+      }
+      for (final String s : varyValues) {
+        w += s == null ? 0 : s.length();
+      }
+      weight = w;
+    }
+
+    /** Whether it was chosen by the same values of the headers it varies by as {@code req} has. */
+    boolean matches(final Request req) {
+      for (int i = 0; i < varyNames.length; i++) {
+        final String value = req.headers.get(varyNames[i]).orElse(null);
+        if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Whether it may still answer a request, fresh or stale, at a {@link System#nanoTime}. */
+    boolean usable(final long now) {
+      return now - expires < staleNanos;
+    }
+
+    /** Whether it is past its freshness lifetime, so it must be revalidated. */
+    boolean stale() {
+      return System.nanoTime() - expires >= 0;
+    }
+
+    /** Answer with it, as if the handlers and serializer had produced it. */
+    void fill(final Response res) {
+      res.status = status;
+      for (int i = 0; i < headers.length; i += 2) {
+        res.headers.add(headers[i], headers[i + 1]);
+      }
+      res.headers.response.replace(
+          ResponseHeader.AGE,
+          Long.toString(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - stored)));
+      res.serializer = null;
+      res.body = body;
+    }
+  }
+
+  /**
+   * Part of the cache, evicting what was requested only once before anything requested again, and
+   * each in least recently used order.
+   */
+  private static final class Segment {
+    private final long capacity;
+    private final long protectedCapacity;
+    final LinkedHashMap<Key, Entry[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    final LinkedHashMap<Key, Entry[]> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    Segment(final long capacity) {
+      this.capacity = capacity;
+      protectedCapacity = capacity / 100 * PROTECTED_PERCENT;
+    }
+
+    /** Mark the variants under a key as used, promoting them if they were on probation. */
+    void promote(final Key key) {
+      if (protect.get(key) != null) {
+        return;
+      }
+      final Entry[] variants = probation.remove(key);
+      if (variants == null) {
+        return;
+      }
+      probationBytes -= weight(variants);
+      protect.put(key, variants);
+      protectedBytes += weight(variants);
+      // the least recently used protected entries go back on probation, as the most recent there
+      final Iterator<Map.Entry<Key, Entry[]>> it = protect.entrySet().iterator();
+      while (protectedBytes > protectedCapacity && it.hasNext()) {
+        final Map.Entry<Key, Entry[]> eldest = it.next();
+        it.remove();
+        protectedBytes -= weight(eldest.getValue());
+        probation.put(eldest.getKey(), eldest.getValue());
+        probationBytes += weight(eldest.getValue());
+      }
+    }
+
+    /** The variants under a key, without promoting them. */
+    Entry[] peek(final Key key) {
+      final Entry[] variants = protect.get(key);
+      return variants != null ? variants : probation.get(key);
+    }
+
+    void put(final Key key, final Entry[] variants) {
+      if (weight(variants) > capacity) {
+        remove(key);
+        return;
+      }
+      if (protect.containsKey(key)) {
+        protectedBytes += weight(variants) - weight(protect.put(key, variants));
+      } else {
+        final Entry[] old = probation.put(key, variants);
+        probationBytes += weight(variants) - (old == null ? 0 : weight(old));
+      }
+      final Iterator<Entry[]> probationIt = probation.values().iterator();
+      while (probationBytes + protectedBytes > capacity && probationIt.hasNext()) {
+        probationBytes -= weight(probationIt.next());
+        probationIt.remove();
+      }
+      final Iterator<Entry[]> protectedIt = protect.values().iterator();
+      while (probationBytes + protectedBytes > capacity && protectedIt.hasNext()) {
+        protectedBytes -= weight(protectedIt.next());
+        protectedIt.remove();
+      }
+    }
+
+    void remove(final Key key) {
+      final Entry[] p = protect.remove(key);
+      if (p != null) {
+        protectedBytes -= weight(p);
+      }
+      final Entry[] q = probation.remove(key);
+      if (q != null) {
+        probationBytes -= weight(q);
+      }
+    }
+
+    private static long weight(final Entry[] variants) {
+      long weight = 0;
+      for (final Entry e : variants) {
+        weight += e.weight;
+      }
+      return weight;
+    }
+  }
+}
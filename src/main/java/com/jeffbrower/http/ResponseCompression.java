@@ -0,0 +1,246 @@
+package com.jeffbrower.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with gzip or deflate, whichever the client's {@code Accept-Encoding}
+ * gives the higher q-value, once the handlers are done. Only serialized bodies of at least a
+ * minimum size and of an allowed content type are compressed; streamed, file and buffer bodies, and
+ * responses that already have a {@code Content-Encoding}, are sent as they are. A strong {@code
+ * ETag} a handler set gets the coding appended, as in {@code "abc-gzip"}.
+ *
+ * <p>{@link Deflater}s are pooled, since each holds native zlib state that is only freed once it is
+ * ended or collected.
+ */
+public final class ResponseCompression {
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final int GZIP_TRAILER = 8;
+
+  private int minSize = 1024;
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private final List<String> contentTypes =
+      new ArrayList<>(
+          Arrays.asList(
+              "text/*",
+              "application/json",
+              "application/*+json",
+              "application/javascript",
+              "application/xml",
+              "application/*+xml",
+              "image/svg+xml"));
+  private final BlockingQueue<Deflater> gzipPool;
+  private final BlockingQueue<Deflater> deflatePool;
+
+  public ResponseCompression() {
+    final int poolSize = 2 * Runtime.getRuntime().availableProcessors();
+    gzipPool = new ArrayBlockingQueue<>(poolSize);
+    deflatePool = new ArrayBlockingQueue<>(poolSize);
+  }
+
+  /** Leave bodies shorter than this many bytes uncompressed. */
+  public ResponseCompression withMinSize(final int minSize) {
+    if (minSize < 0) {
+      throw new IllegalArgumentException("minSize must not be negative");
+    }
+    this.minSize = minSize;
+    return this;
+  }
+
+  /** The zlib compression level, from 1 (fastest) to 9 (smallest). */
+  public ResponseCompression withLevel(final int level) {
+    if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Compression level must be from 1 to 9");
+    }
+    this.level = level;
+    return this;
+  }
+
+  /**
+   * Only compress these content types, replacing the defaults. A {@code *} matches any part of a
+   * type, as in {@code text/*} or {@code application/*+json}.
+   */
+  public ResponseCompression withContentTypes(final String... contentTypes) {
+    this.contentTypes.clear();
+    for (final String type : contentTypes) {
+      this.contentTypes.add(type.toLowerCase(Locale.ROOT));
+    }
+    return this;
+  }
+
+  /** Compress the body of a response the handlers are done with, if it qualifies. */
+  void apply(final Response res) {
+    final int code = res.status.statusCode;
+    if (res.body == null
+        || code < 200
+        || code == 204
+        || code == 206
+        || code == 304
+        || ResponseEncoder.streaming(res)
+        || ResponseEncoder.sentAsIs(res.body)
+        || res.headers.entity.contains(EntityHeader.CONTENT_ENCODING)
+        || !compressible(res.headers.entity.get(EntityHeader.CONTENT_TYPE))) {
+      return;
+    }
+    final byte[] body = res.serializeBody();
+    res.body = body;
+    res.serializer = null;
+    if (body.length < minSize) {
+      return;
+    }
+
+    // whether or not this client gets it compressed, others may
+    vary(res, RequestHeader.ACCEPT_ENCODING.toString());
+    final Optional<String> accept = res.request.headers.request.get(RequestHeader.ACCEPT_ENCODING);
+    if (!accept.isPresent()) {
+      return;
+    }
+    final double gzip = quality(accept.get(), "gzip");
+    final double deflate = quality(accept.get(), "deflate");
+    if (gzip <= 0 && deflate <= 0) {
+      return;
+    }
+    final String coding = gzip >= deflate ? "gzip" : "deflate";
+    res.body = compress(body, gzip >= deflate);
+    res.headers.entity.replace(EntityHeader.CONTENT_ENCODING, coding);
+
+    // a strong tag names one representation, and each coding is another
+    final Optional<String> etag = res.headers.response.get(ResponseHeader.ETAG);
+    if (etag.isPresent() && etag.get().length() >= 2 && etag.get().startsWith("\"")) {
+      final String tag = etag.get();
+      res.headers.response.replace(
+          ResponseHeader.ETAG, tag.substring(0, tag.length() - 1) + "-" + coding + "\"");
+    }
+  }
+
+  private boolean compressible(final Optional<String> contentType) {
+    if (!contentType.isPresent()) {
+      return false;
+    }
+    final String type = contentType.get();
+    final int semicolon = type.indexOf(';');
+    final String mediaType =
+        (semicolon == -1 ? type : type.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+    for (final String allowed : contentTypes) {
+      final int star = allowed.indexOf('*');
+      if (star == -1
+          ? allowed.equals(mediaType)
+          : mediaType.length() >= allowed.length() - 1
+              && mediaType.startsWith(allowed.substring(0, star))
+              && mediaType.endsWith(allowed.substring(star + 1))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ByteBuffer compress(final byte[] body, final boolean gzip) {
+    final BlockingQueue<Deflater> pool = gzip ? gzipPool : deflatePool;
+    Deflater deflater = pool.poll();
+    if (deflater == null) {
+      // gzip frames raw deflate data itself; deflate means zlib's format
+      deflater = new Deflater(level, gzip);
+    }
+    try {
+      deflater.setInput(body);
+      deflater.finish();
+      byte[] out = new byte[Math.max(64, body.length / 2)];
+      int n = 0;
+      if (gzip) {
+        System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+        n = GZIP_HEADER.length;
+      }
+      while (!deflater.finished()) {
+        if (n == out.length) {
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        n += deflater.deflate(out, n, out.length - n);
+      }
+      if (gzip) {
+        if (n + GZIP_TRAILER > out.length) {
+          out = Arrays.copyOf(out, n + GZIP_TRAILER);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        n = putIntLe(out, n, (int) crc.getValue());
+        n = putIntLe(out, n, body.length);
+      }
+      return ByteBuffer.wrap(out, 0, n);
+    } finally {
+      deflater.reset();
+      if (!pool.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  private static int putIntLe(final byte[] a, int i, final int v) {
+    a[i++] = (byte) v;
+    a[i++] = (byte) (v >>> 8);
+    a[i++] = (byte) (v >>> 16);
+    a[i++] = (byte) (v >>> 24);
+    return i;
+  }
+
+  /**
+   * The q-value an {@code Accept-Encoding} header gives a content coding, either by name or through
+   * {@code *}; zero if it names neither. Entries that cannot be parsed are ignored, as is a header
+   * that cannot be parsed at all, since the response is fine without compressing it.
+   */
+  static double quality(final String acceptEncoding, final String coding) {
+    final Header.WithParams[] accepts;
+    try {
+      accepts = Header.parseWithParams(acceptEncoding);
+    } catch (final ErrorResponseException e) {
+      return 0;
+    }
+    double any = 0;
+    for (final Header.WithParams accepted : accepts) {
+      final double q = qValue(accepted.params.get("q"));
+      if (q < 0) {
+        continue;
+      }
+      if (coding.equalsIgnoreCase(accepted.value)) {
+        return q;
+      }
+      if ("*".equals(accepted.value)) {
+        any = q;
+      }
+    }
+    return any;
+  }
+
+  /** A q-value, or -1 if it is malformed. */
+  private static double qValue(final String q) {
+    if (q == null) {
+      return 1;
+    }
+    try {
+      final double value = Double.parseDouble(q);
+      if (value >= 0 && value <= 1) {
+        return value;
+      }
+    } catch (final NumberFormatException e) {
+      // fall through
+    }
+    return -1;
+  }
+
+  /** Add a request header to the response's {@code Vary}, unless it is already there. */
+  static void vary(final Response res, final String header) {
+    final Optional<String> vary = res.headers.response.get(ResponseHeader.VARY);
+    if (!vary.isPresent()) {
+      res.headers.response.replace(ResponseHeader.VARY, header);
+    } else if (!Header.hasToken(vary.get(), header) && !Header.hasToken(vary.get(), "*")) {
+      res.headers.response.replace(ResponseHeader.VARY, vary.get() + ", " + header);
+    }
+  }
+}
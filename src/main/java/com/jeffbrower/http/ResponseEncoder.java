@@ -0,0 +1,266 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Encodes a {@link Response} for the wire. The status lines and known header names are encoded once
+ * up front, and the {@code Date} at most once a second, so a head is copied together into a single
+ * array sized for it.
+ */
+final class ResponseEncoder {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  static final DateTimeFormatter GMT_FORMAT =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+          .withZone(ZoneOffset.UTC);
+
+  // by Status ordinal, e.g. "HTTP/1.1 200 OK\r\n"
+  private static final byte[][] STATUS_LINES = new byte[Status.values().length][];
+  // by HeaderNames index, e.g. "Content-Type: "
+  private static final byte[][] HEADER_NAMES = new byte[HeaderNames.COUNT][];
+
+  static {
+    for (final Status status : Status.values()) {
+      STATUS_LINES[status.ordinal()] = ascii("HTTP/1.1 " + status + "\r\n");
+    }
+    for (int i = 0; i < HeaderNames.COUNT; i++) {
+      HEADER_NAMES[i] = ascii(HeaderNames.header(i) + ": ");
+    }
+  }
+
+  private static byte[] ascii(final String s) {
+    return s.getBytes(US_ASCII);
+  }
+
+  /** The current second, formatted for the {@code Date} header. */
+  private static final class Clock {
+    final long second;
+    final String date;
+
+    Clock(final long second) {
+      this.second = second;
+      date = GMT_FORMAT.format(Instant.ofEpochSecond(second));
+    }
+  }
+
+  private static volatile Clock clock = new Clock(System.currentTimeMillis() / 1000);
+
+  /** Now, formatted for the {@code Date} header; formatted again only once the second changes. */
+  static String date() {
+    final long second = System.currentTimeMillis() / 1000;
+    Clock c = clock;
+    if (c.second != second) {
+      // racing threads format the same value
+      clock = c = new Clock(second);
+    }
+    return c.date;
+  }
+
+  private ResponseEncoder() {}
+
+  /** Whether both sides allow the connection to persist after this response. */
+  static boolean keepAlive(final Response res) {
+    final Optional<String> connection = res.headers.general.get(GeneralHeader.CONNECTION);
+    return res.request.keepAlive()
+        && !(connection.isPresent() && Header.hasToken(connection.get(), "close"))
+        // an HTTP/1.0 client can only tell where a body of unknown length ends when we close
+        && !(streaming(res)
+            && res.request.minorVersion == 0
+            && !res.headers.entity.contains(EntityHeader.CONTENT_LENGTH));
+  }
+
+  /** Whether the body is written as it is produced, by {@link #stream}, after the head. */
+  static boolean streaming(final Response res) {
+    return res.body instanceof StreamingBody
+        || (res.body != null
+            && !sentAsIs(res.body)
+            && res.serializer instanceof StreamingSerializer);
+  }
+
+  /** Whether a body is sent without a serializer: files and buffers. */
+  static boolean sentAsIs(final Object body) {
+    return body instanceof Path
+        || body instanceof FileRegion
+        || body instanceof ByteBuffer
+        || body instanceof ByteBuffer[];
+  }
+
+  /** Whether a streamed body is sent in chunks: if its length is unknown, and the client can. */
+  private static boolean chunked(final Response res) {
+    return !res.headers.entity.contains(EntityHeader.CONTENT_LENGTH)
+        && res.request.minorVersion != 0;
+  }
+
+  private static boolean bodyless(final Response res) {
+    final int code = res.status.statusCode;
+    return code < 200 || code == 204 || code == 304;
+  }
+
+  /**
+   * Write a streamed body to {@code sink}, as framed by the head from {@link #encode}. If this
+   * throws, the body is incomplete and the connection must be closed.
+   */
+  static void stream(final Response res, final ResponseStream.Sink sink) throws IOException {
+    if (bodyless(res) || res.request.method == Method.HEAD) {
+      return;
+    }
+    final Optional<String> length = res.headers.entity.get(EntityHeader.CONTENT_LENGTH);
+    final ResponseStream out =
+        new ResponseStream(
+            sink, chunked(res), length.isPresent() ? Long.parseLong(length.get()) : -1);
+    if (res.body instanceof StreamingBody) {
+      ((StreamingBody) res.body).write(out);
+    } else {
+      ((StreamingSerializer) res.serializer).serialize(res, out);
+    }
+    // not on failure: a chunked body must not look complete
+    out.close();
+  }
+
+  /**
+   * Serialize the response and frame it for a connection that will be closed afterwards unless
+   * {@code keepAlive} is set. A {@link Path} body is opened as a {@link FileRegion}, which replaces
+   * it, or is closed again if there is nothing to send or this throws.
+   *
+   * @return The head and body buffers, to be written in order; just the head if the body is {@link
+   *     #streaming} or a {@link #fileRegion}.
+   */
+  static ByteBuffer[] encode(final Response res, final boolean keepAlive) throws IOException {
+    final boolean streaming = streaming(res);
+    if (res.body instanceof Path) {
+      res.body = FileRegion.of((Path) res.body);
+    }
+    // files and buffers are sent as they are
+    final ByteBuffer[] buffers;
+    if (res.body instanceof ByteBuffer) {
+      buffers = new ByteBuffer[] {((ByteBuffer) res.body).duplicate()};
+    } else if (res.body instanceof ByteBuffer[]) {
+      buffers = ((ByteBuffer[]) res.body).clone();
+      for (int i = 0; i < buffers.length; i++) {
+        buffers[i] = buffers[i].duplicate();
+      }
+    } else {
+      buffers = null;
+    }
+    final FileRegion file = res.body instanceof FileRegion ? (FileRegion) res.body : null;
+    final byte[] body =
+        res.body == null || streaming || sentAsIs(res.body) ? null : res.serializeBody();
+
+    // every response is delimited by Content-Length, unless its status forbids a body or it is
+    // streamed
+    final boolean bodyless = bodyless(res);
+    if (streaming) {
+      if (!bodyless && chunked(res)) {
+        res.headers.general.replace(GeneralHeader.TRANSFER_ENCODING, "chunked");
+      }
+    } else if (!bodyless) {
+      long length = file != null ? file.count : body == null ? 0 : body.length;
+      if (buffers != null) {
+        for (final ByteBuffer buf : buffers) {
+          length += buf.remaining();
+        }
+      }
+      res.headers.entity.replace(EntityHeader.CONTENT_LENGTH, Long.toString(length));
+    }
+
+    if (!keepAlive) {
+      res.headers.general.replace(GeneralHeader.CONNECTION, "close");
+    } else if (res.request.minorVersion == 0) {
+      // HTTP/1.0 connections only persist when both sides say so
+      res.headers.general.replace(GeneralHeader.CONNECTION, "keep-alive");
+    }
+
+    final boolean sendBody = !bodyless && res.request.method != Method.HEAD;
+    if (file != null && !sendBody) {
+      res.body = null;
+      file.close();
+    }
+    final ByteBuffer head;
+    try {
+      head = head(res);
+    } catch (final IOException | RuntimeException e) {
+      // nothing will be sent, so nothing else will close it
+      if (file != null && sendBody) {
+        file.close();
+      }
+      throw e;
+    }
+    if (streaming || (file != null && sendBody)) {
+      return new ByteBuffer[] {head};
+    }
+    if (!sendBody || (body == null && buffers == null)) {
+      return new ByteBuffer[] {head, EMPTY};
+    }
+    if (buffers == null) {
+      return new ByteBuffer[] {head, ByteBuffer.wrap(body)};
+    }
+    final ByteBuffer[] bufs = new ByteBuffer[buffers.length + 1];
+    bufs[0] = head;
+    System.arraycopy(buffers, 0, bufs, 1, buffers.length);
+    return bufs;
+  }
+
+  /** The file to send after the buffers from {@link #encode}, or null if there is none. */
+  static FileRegion fileRegion(final Response res) {
+    return res.body instanceof FileRegion ? (FileRegion) res.body : null;
+  }
+
+  private static ByteBuffer head(final Response res) throws UnmappableCharacterException {
+    if (!res.headers.general.contains(GeneralHeader.DATE)) {
+      res.headers.general.add(GeneralHeader.DATE, date());
+    }
+
+    // size the head first, so it is written straight into an array of the right length
+    final Headers headers = res.headers;
+    final byte[] statusLine = STATUS_LINES[res.status.ordinal()];
+    int length = statusLine.length + 2;
+    for (int i = headers.next(0); i != -1; i = headers.next(i + 1)) {
+      length +=
+          (i < HeaderNames.COUNT ? HEADER_NAMES[i].length : headers.name(i).length() + 2)
+              + headers.value(i).length()
+              + 2;
+    }
+
+    final byte[] a = new byte[length];
+    System.arraycopy(statusLine, 0, a, 0, statusLine.length);
+    int n = statusLine.length;
+    for (int i = headers.next(0); i != -1; i = headers.next(i + 1)) {
+      if (i < HeaderNames.COUNT) {
+        System.arraycopy(HEADER_NAMES[i], 0, a, n, HEADER_NAMES[i].length);
+        n += HEADER_NAMES[i].length;
+      } else {
+        n = put(a, n, headers.name(i));
+        a[n++] = ':';
+        a[n++] = ' ';
+      }
+      n = put(a, n, headers.value(i));
+      a[n++] = '\r';
+      a[n++] = '\n';
+    }
+    a[n++] = '\r';
+    a[n] = '\n';
+    return ByteBuffer.wrap(a);
+  }
+
+  private static int put(final byte[] a, int n, final String s)
+      throws UnmappableCharacterException {
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c > 0x7F) {
+        throw new UnmappableCharacterException(1);
+      }
+      a[n++] = (byte) c;
+    }
+    return n;
+  }
+}
@@ -72,7 +72,7 @@ public enum ResponseHeader implements Header {
 
   public final Header.Type type;
   public final String s;
-  private final String[] aliases;
+  final String[] aliases;
 
   private ResponseHeader() {
     this(null);
@@ -99,16 +99,7 @@ public enum ResponseHeader implements Header {
   }
 
   public static Optional<ResponseHeader> of(final String s) {
-    for (final ResponseHeader h : values()) {
-      if (s.equalsIgnoreCase(h.s)) {
-        return Optional.of(h);
-      }
-      for (final String alias : h.aliases) {
-        if (s.equalsIgnoreCase(alias)) {
-          return Optional.of(h);
-        }
-      }
-    }
-    return Optional.empty();
+    final Header h = HeaderNames.find(s);
+    return h instanceof ResponseHeader ? Optional.of((ResponseHeader) h) : Optional.empty();
   }
 }
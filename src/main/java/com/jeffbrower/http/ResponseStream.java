@@ -0,0 +1,128 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Where a {@link StreamingBody} or {@link StreamingSerializer} writes the body of a response. Its
+ * head has already been sent: with {@code Content-Length} if the handler set one, otherwise with
+ * {@code Transfer-Encoding: chunked}, which lets {@link #trailers} follow the body. Writes are
+ * buffered into chunks of a few kilobytes; {@link #flush} sends what has been written so far.
+ */
+public final class ResponseStream extends OutputStream {
+  private static final int CHUNK_SIZE = 8 * 1024;
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  /** Sent after a chunked body. Ignored otherwise. */
+  public final Headers trailers = new Headers(false);
+
+  private final Sink sink;
+  private final boolean chunked;
+  // -1 if unknown
+  private long remaining;
+  private final byte[] buf = new byte[CHUNK_SIZE];
+  private int count;
+  private boolean closed;
+
+  /** Where the framed body goes, buffer by buffer; each buffer is the sink's to keep. */
+  interface Sink {
+    void send(ByteBuffer buf) throws IOException;
+
+    default void flush() throws IOException {}
+  }
+
+  ResponseStream(final Sink sink) {
+    this(sink, false, -1);
+  }
+
+  ResponseStream(final Sink sink, final boolean chunked, final long length) {
+    this.sink = sink;
+    this.chunked = chunked;
+    remaining = length;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    ensureOpen();
+    if (count == buf.length) {
+      emit();
+    }
+    buf[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    ensureOpen();
+    if (count + len > buf.length) {
+      emit();
+    }
+    if (len >= buf.length) {
+      send(b, off, len);
+      return;
+    }
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    emit();
+    sink.flush();
+  }
+
+  /** End the body, with its trailers if chunked. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    emit();
+    if (remaining > 0) {
+      throw new IOException("Response body is " + remaining + " bytes short of its Content-Length");
+    }
+    closed = true;
+    if (chunked) {
+      final StringBuilder b = new StringBuilder("0\r\n");
+      for (int i = trailers.next(0); i != -1; i = trailers.next(i + 1)) {
+        b.append(trailers.name(i)).append(": ").append(trailers.value(i)).append("\r\n");
+      }
+      sink.send(ByteBuffer.wrap(b.append("\r\n").toString().getBytes(US_ASCII)));
+    }
+    sink.flush();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Response body is closed");
+    }
+  }
+
+  private void emit() throws IOException {
+    if (count > 0) {
+      send(buf, 0, count);
+      count = 0;
+    }
+  }
+
+  private void send(final byte[] b, final int off, final int len) throws IOException {
+    if (remaining != -1) {
+      if (len > remaining) {
+        throw new IOException("Response body exceeds its Content-Length");
+      }
+      remaining -= len;
+    }
+    if (!chunked) {
+      sink.send(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+      return;
+    }
+    final byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(US_ASCII);
+    final ByteBuffer chunk = ByteBuffer.allocate(size.length + len + CRLF.length);
+    chunk.put(size).put(b, off, len).put(CRLF).flip();
+    sink.send(chunk);
+  }
+}
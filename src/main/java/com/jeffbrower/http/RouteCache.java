@@ -0,0 +1,134 @@
+package com.jeffbrower.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of what routing works out from a request's method and URL alone: which handlers
+ * may apply, in order, and the path params each of them binds. Matchers that look at anything else,
+ * such as custom {@link RequestMatcher} lambdas, are still called on every request, so they never
+ * see a stale answer.
+ *
+ * <p>Entries are split among segments by hash, each evicting its least recently used entry once
+ * full, so that concurrent requests seldom wait for one another. A cache serves one server only.
+ */
+public final class RouteCache {
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT = 64;
+
+  private final Segment[] segments;
+  private final int mask;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private Router router;
+
+  /**
+   * @param maxEntries How many method and URL pairs to remember at most.
+   */
+  public RouteCache(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    // small caches get one segment, so they evict exactly the least recently used entry
+    final int count =
+        Math.max(1, Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxEntries / MIN_SEGMENT)));
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      // spread the remainder so the total is exactly maxEntries
+      segments[i] = new Segment(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+    }
+    mask = count - 1;
+  }
+
+  synchronized void attach(final Router router) {
+    if (this.router != null) {
+      throw new IllegalStateException("RouteCache is already in use by another server");
+    }
+    this.router = router;
+  }
+
+  Router.Resolution get(final Method method, final String url) {
+    final Key key = new Key(method, url);
+    final Segment segment = segments[key.hash & mask];
+    Router.Resolution resolution;
+    synchronized (segment) {
+      resolution = segment.get(key);
+    }
+    if (resolution != null) {
+      hits.increment();
+      return resolution;
+    }
+
+    misses.increment();
+    resolution = router.resolve(method, url);
+    synchronized (segment) {
+      segment.put(key, resolution);
+    }
+    return resolution;
+  }
+
+  /** How many requests were routed from the cache. */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** How many requests had to be routed from scratch. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** How many method and URL pairs are cached. */
+  public int size() {
+    int size = 0;
+    for (final Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  private static final class Key {
+    final Method method;
+    final String url;
+    final int hash;
+
+    Key(final Method method, final String url) {
+      this.method = method;
+      this.url = url;
+      final int h = 31 * url.hashCode() + (method == null ? 0 : method.ordinal() + 1);
+      hash = h ^ (h >>> 16);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return method == that.method && url.equals(that.url);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Segment extends LinkedHashMap<Key, Router.Resolution> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    Segment(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Key, Router.Resolution> eldest) {
+      return size() > capacity;
+    }
+  }
+}
@@ -0,0 +1,476 @@
+package com.jeffbrower.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A server's handlers compiled for dispatch. Handlers whose matchers are built from {@link Method}s
+ * and {@link PathMatcher}s made of whole literal or {@code {name}} segments are placed in a trie
+ * keyed by path segment, with their routes split by method at each leaf, so finding them costs one
+ * table lookup per segment whatever the number of routes. Any other matcher is tried on every
+ * request, and matchers that are only partly understood are tried on every request the trie selects
+ * them for.
+ *
+ * <p>Candidates run in the order their handlers were added, and each handler that returns {@code
+ * false} passes the request on to the next, just as if every matcher had been tried in turn.
+ *
+ * <p>Each leaf also keeps its routes already merged with the pathless ones, which is all a request
+ * matching no other leaf needs. There, consecutive {@link Middleware} routes the trie fully decides
+ * are folded into one, and any such middleware is applied without calling its matcher or binding
+ * its params.
+ */
+final class Router {
+  private static final Method[] METHODS = Method.values();
+  // one slot per method, and one for requests without one
+  private static final int SLOTS = METHODS.length + 1;
+  private static final Route[] NO_ROUTES = {};
+  private static final CompletableFuture<Boolean> HANDLED = CompletableFuture.completedFuture(true);
+  private static final CompletableFuture<Boolean> NOT_HANDLED =
+      CompletableFuture.completedFuture(false);
+
+  private final Node root = new Node();
+  private final Route[][] pathless = new Route[SLOTS][];
+  // pathless, with runs of middleware folded together
+  private final Route[][] pathlessPipelines = new Route[SLOTS][];
+
+  // null if every request is routed from scratch
+  private final RouteCache cache;
+
+  Router(final List<Map.Entry<RequestMatcher, RequestHandler>> handlers) {
+    this(handlers, null);
+  }
+
+  Router(final List<Map.Entry<RequestMatcher, RequestHandler>> handlers, final RouteCache cache) {
+    this.cache = cache;
+    if (cache != null) {
+      cache.attach(this);
+    }
+    final List<Route> pathlessRoutes = new ArrayList<>();
+    for (int i = 0; i < handlers.size(); i++) {
+      final Map.Entry<RequestMatcher, RequestHandler> e = handlers.get(i);
+      final Route r = analyze(e.getKey());
+      r.index = r.last = i;
+      r.handler = e.getValue();
+      if (r.handler instanceof Middleware
+          && r.residual == null
+          && (r.path == null || r.path.alwaysBinds())) {
+        r.middleware = (Middleware) r.handler;
+      }
+
+      if (r.path == null) {
+        pathlessRoutes.add(r);
+        continue;
+      }
+      Node node = root;
+      for (final PathMatcher.Segment s : r.path.segments) {
+        if (s.param != null) {
+          if (node.param == null) {
+            node.param = new Node();
+          }
+          node = node.param;
+        } else if (r.path.ignoreCase) {
+          node = node.foldedChildren.computeIfAbsent(fold(s.literal), x -> new Node());
+        } else {
+          node = node.exactChildren.computeIfAbsent(s.literal, x -> new Node());
+        }
+      }
+      node.leafRoutes.add(r);
+    }
+
+    for (int slot = 0; slot < SLOTS; slot++) {
+      pathless[slot] = bySlot(pathlessRoutes, slot);
+      pathlessPipelines[slot] = fold(pathless[slot]);
+    }
+    root.compile(pathless);
+  }
+
+  /**
+   * Run the handlers matching a request, in order, until one of them handles it.
+   *
+   * @return Whether a handler handled the request, already complete unless an {@link AsyncHandler}
+   *     is still running.
+   */
+  CompletionStage<Boolean> handle(final Request req, final Response res) {
+    return handle(req, res, 0);
+  }
+
+  private CompletionStage<Boolean> handle(final Request req, final Response res, int from) {
+    while (true) {
+      final String url = req.url;
+      final Method method = req.method;
+      final Route[] routes;
+      final PathMatcher.Binding[] bindings;
+      if (cache == null || url == null) {
+        routes = candidates(url, method);
+        bindings = null;
+      } else {
+        final Resolution resolution = cache.get(method, url);
+        routes = resolution.routes;
+        bindings = resolution.bindings;
+      }
+      for (int i = 0; i < routes.length; i++) {
+        final Route r = routes[i];
+        if (r.last < from) {
+          continue;
+        }
+        if (r.middleware != null) {
+          // the trie already decided it matches
+          if (r.index >= from) {
+            r.middleware.handle(req, res);
+          } else {
+            for (final Route m : r.members) {
+              if (m.index >= from) {
+                m.middleware.handle(req, res);
+              }
+            }
+          }
+          continue;
+        }
+        if (bindings != null && r.path != null) {
+          if (bindings[i] == null) {
+            continue;
+          }
+          bindings[i].apply(req);
+        } else if (r.path != null && !r.path.bind(url, req)) {
+          // a numeric param is out of range
+          continue;
+        }
+        if (r.residual != null && !r.residual.matches(req)) {
+          continue;
+        }
+        if (r.handler instanceof AsyncHandler) {
+          // carry on from the next handler once this one is done, as if the request were rewritten
+          final int next = r.index + 1;
+          return ((AsyncHandler) r.handler)
+              .start(req, res)
+              .thenCompose(handled -> handled ? HANDLED : handle(req, res, next));
+        }
+        if (r.handler.handle(req, res)) {
+          return HANDLED;
+        }
+        if (req.url != url || req.method != method) {
+          // a filter rewrote the request: route it again, from the next handler on
+          from = r.index + 1;
+          break;
+        }
+      }
+      if (req.url == url && req.method == method) {
+        return NOT_HANDLED;
+      }
+    }
+  }
+
+  /** The routes a request may match, and the params each binds, for {@link RouteCache}. */
+  static final class Resolution {
+    private final Route[] routes;
+    // by route; null if a numeric param is out of range
+    private final PathMatcher.Binding[] bindings;
+
+    private Resolution(final Route[] routes, final PathMatcher.Binding[] bindings) {
+      this.routes = routes;
+      this.bindings = bindings;
+    }
+  }
+
+  Resolution resolve(final Method method, final String url) {
+    final Route[] routes = candidates(url, method);
+    final PathMatcher.Binding[] bindings = new PathMatcher.Binding[routes.length];
+    for (int i = 0; i < routes.length; i++) {
+      if (routes[i].path != null && routes[i].middleware == null) {
+        bindings[i] = routes[i].path.binding(url);
+      }
+    }
+    return new Resolution(routes, bindings);
+  }
+
+  private Route[] candidates(final String url, final Method method) {
+    final int slot = method == null ? METHODS.length : method.ordinal();
+    if (url == null || !url.startsWith("/")) {
+      return pathlessPipelines[slot];
+    }
+    final Leaves leaves = new Leaves();
+    collect(root, url, 1, leaves);
+    if (leaves.size == 0) {
+      return pathlessPipelines[slot];
+    }
+    if (leaves.size == 1) {
+      // the usual case: everything was worked out in advance
+      return leaves.nodes[0].pipelines[slot];
+    }
+
+    int size = pathless[slot].length;
+    for (int i = 0; i < leaves.size; i++) {
+      size += leaves.nodes[i].routes[slot].length;
+    }
+    final Route[] out = Arrays.copyOf(pathless[slot], size);
+    size = pathless[slot].length;
+    for (int i = 0; i < leaves.size; i++) {
+      final Route[] more = leaves.nodes[i].routes[slot];
+      System.arraycopy(more, 0, out, size, more.length);
+      size += more.length;
+    }
+    Arrays.sort(out, (a, b) -> Integer.compare(a.index, b.index));
+    return out;
+  }
+
+  /** Collect the leaves under {@code node} matching the rest of the path from {@code from}. */
+  private static void collect(final Node node, final String url, final int from, final Leaves out) {
+    int end = url.indexOf('/', from);
+    if (end == -1) {
+      end = url.length();
+    }
+    if (node.exact != null) {
+      visit(node.exact.get(url, from, end), url, end, out);
+    }
+    if (node.folded != null) {
+      visit(node.folded.get(url, from, end), url, end, out);
+    }
+    if (node.param != null && end > from) {
+      visit(node.param, url, end, out);
+    }
+  }
+
+  private static void visit(final Node node, final String url, final int end, final Leaves out) {
+    if (node == null) {
+      return;
+    }
+    if (end < url.length()) {
+      collect(node, url, end + 1, out);
+    } else if (node.routes != null) {
+      out.add(node);
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------------
+  // compilation
+
+  /** A handler, and what its matcher requires of a request as far as routing can tell. */
+  private static final class Route {
+    int index;
+    // the index of the last route folded into this one
+    int last;
+    RequestHandler handler;
+    // set if the trie alone decides whether the middleware applies
+    Middleware middleware;
+    // the routes folded into this one, if more than one
+    Route[] members;
+    // null if any method will do
+    EnumSet<Method> methods;
+    // null if any path will do
+    PathMatcher path;
+    // what remains to be checked once the method and path match; null if nothing
+    RequestMatcher residual;
+
+    boolean accepts(final int slot) {
+      return methods == null || (slot < METHODS.length && methods.contains(METHODS[slot]));
+    }
+  }
+
+  private static Route analyze(final RequestMatcher matcher) {
+    final Route r = new Route();
+    if (matcher instanceof Method) {
+      r.methods = EnumSet.of((Method) matcher);
+    } else if (matcher instanceof PathMatcher && ((PathMatcher) matcher).segments != null) {
+      r.path = (PathMatcher) matcher;
+    } else if (matcher == CompositeMatcher.ALL) {
+      return r;
+    } else if (matcher instanceof CompositeMatcher) {
+      final CompositeMatcher c = (CompositeMatcher) matcher;
+      final Route left = analyze(c.left);
+      final Route right = analyze(c.right);
+      if (c.and) {
+        r.methods =
+            left.methods == null
+                ? right.methods
+                : right.methods == null ? left.methods : intersect(left.methods, right.methods);
+        r.path = left.path == null ? right.path : left.path;
+        // only one path fits in the trie; the other has to be checked as usual
+        final RequestMatcher other = left.path != null && right.path != null ? right.path : null;
+        r.residual = and(and(left.residual, right.residual), other);
+      } else if (left.path == null
+          && left.residual == null
+          && right.path == null
+          && right.residual == null) {
+        if (left.methods != null && right.methods != null) {
+          r.methods = EnumSet.copyOf(left.methods);
+          r.methods.addAll(right.methods);
+        }
+      } else {
+        r.residual = matcher;
+      }
+    } else {
+      r.residual = matcher;
+    }
+    return r;
+  }
+
+  private static EnumSet<Method> intersect(final EnumSet<Method> a, final EnumSet<Method> b) {
+    final EnumSet<Method> both = EnumSet.copyOf(a);
+    both.retainAll(b);
+    return both;
+  }
+
+  private static RequestMatcher and(final RequestMatcher a, final RequestMatcher b) {
+    return a == null ? b : b == null ? a : a.and(b);
+  }
+
+  private static Route[] bySlot(final List<Route> routes, final int slot) {
+    return routes.stream().filter(r -> r.accepts(slot)).toArray(Route[]::new);
+  }
+
+  /** Fold each run of middleware in {@code routes} into a single route that applies them all. */
+  private static Route[] fold(final Route[] routes) {
+    final List<Route> out = new ArrayList<>(routes.length);
+    for (int i = 0, j; i < routes.length; i = j) {
+      j = i + 1;
+      if (routes[i].middleware == null) {
+        out.add(routes[i]);
+        continue;
+      }
+      Middleware combined = routes[i].middleware;
+      while (j < routes.length && routes[j].middleware != null) {
+        combined = combined.then(routes[j++].middleware);
+      }
+      if (j == i + 1) {
+        out.add(routes[i]);
+        continue;
+      }
+      final Route r = new Route();
+      r.index = routes[i].index;
+      r.last = routes[j - 1].index;
+      r.handler = r.middleware = combined;
+      r.members = Arrays.copyOfRange(routes, i, j);
+      out.add(r);
+    }
+    return out.toArray(NO_ROUTES);
+  }
+
+  /** Merge two lists of routes, each in order. */
+  private static Route[] merge(final Route[] a, final Route[] b) {
+    final Route[] out = new Route[a.length + b.length];
+    for (int i = 0, j = 0, k = 0; k < out.length; k++) {
+      out[k] = j == b.length || (i < a.length && a[i].index < b[j].index) ? a[i++] : b[j++];
+    }
+    return out;
+  }
+
+  private static final class Node {
+    final Map<String, Node> exactChildren = new HashMap<>();
+    // keyed by the ASCII lower-cased segment, as for Pattern.CASE_INSENSITIVE
+    final Map<String, Node> foldedChildren = new HashMap<>();
+    Node param;
+    final List<Route> leafRoutes = new ArrayList<>();
+
+    // compiled
+    Children exact;
+    Children folded;
+    Route[][] routes;
+    // routes merged with the pathless ones, for URLs matching no other leaf
+    Route[][] pipelines;
+
+    void compile(final Route[][] pathless) {
+      if (!exactChildren.isEmpty()) {
+        exact = new Children(exactChildren, false);
+      }
+      if (!foldedChildren.isEmpty()) {
+        folded = new Children(foldedChildren, true);
+      }
+      if (!leafRoutes.isEmpty()) {
+        routes = new Route[SLOTS][];
+        pipelines = new Route[SLOTS][];
+        for (int slot = 0; slot < SLOTS; slot++) {
+          routes[slot] = bySlot(leafRoutes, slot);
+          pipelines[slot] = fold(merge(pathless[slot], routes[slot]));
+        }
+      }
+      exactChildren.values().forEach(n -> n.compile(pathless));
+      foldedChildren.values().forEach(n -> n.compile(pathless));
+      if (param != null) {
+        param.compile(pathless);
+      }
+    }
+  }
+
+  /** Open-addressing table of child nodes, probed with a region of the URL. */
+  private static final class Children {
+    private final boolean fold;
+    private final String[] keys;
+    private final Node[] nodes;
+    private final int mask;
+
+    Children(final Map<String, Node> children, final boolean fold) {
+      this.fold = fold;
+      final int size = Integer.highestOneBit(children.size() * 4 - 1) << 1;
+      keys = new String[size];
+      nodes = new Node[size];
+      mask = size - 1;
+      children.forEach(
+          (key, node) -> {
+            int slot = hash(key, 0, key.length()) & mask;
+            while (keys[slot] != null) {
+              slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            nodes[slot] = node;
+          });
+    }
+
+    Node get(final String s, final int from, final int to) {
+      outer:
+      for (int slot = hash(s, from, to) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+        final String key = keys[slot];
+        if (key.length() != to - from) {
+          continue;
+        }
+        for (int i = 0; i < key.length(); i++) {
+          final char c = s.charAt(from + i);
+          if (key.charAt(i) != (fold ? fold(c) : c)) {
+            continue outer;
+          }
+        }
+        return nodes[slot];
+      }
+      return null;
+    }
+
+    private int hash(final String s, final int from, final int to) {
+      int h = 0;
+      for (int i = from; i < to; i++) {
+        final char c = s.charAt(i);
+        h = 31 * h + (fold ? fold(c) : c);
+      }
+      return h ^ (h >>> 16);
+    }
+  }
+
+  private static char fold(final char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c | 0x20) : c;
+  }
+
+  private static String fold(final String s) {
+    final char[] chars = s.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = fold(chars[i]);
+    }
+    return new String(chars);
+  }
+
+  /** The leaves whose paths match a request. */
+  private static final class Leaves {
+    Node[] nodes = new Node[2];
+    int size;
+
+    void add(final Node node) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * size);
+      }
+      nodes[size++] = node;
+    }
+  }
+}
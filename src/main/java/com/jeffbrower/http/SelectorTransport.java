@@ -0,0 +1,795 @@
+package com.jeffbrower.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking transport: a few event-loop threads each own many connections through a {@link
+ * Selector}, parsing requests as bytes arrive. Only complete requests are handed to the {@link
+ * Executor}, or with streamed bodies complete heads, so an idle connection costs its parser state
+ * and nothing else.
+ */
+final class SelectorTransport implements Runnable {
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_PIPELINED = 16;
+  // how much of a streamed body may arrive before the handler reads it
+  private static final int MAX_QUEUED_BODY = 64 * 1024;
+  // how much of a streamed response may wait to be written before its writer waits
+  private static final int MAX_QUEUED_RESPONSE = 64 * 1024;
+
+  private final int port;
+  private final Charset urlCharset;
+  private final boolean streamBodies;
+  private final BodyDecoding bodyDecoding;
+  private final int maxRequests;
+  private final long idleTimeoutNanos;
+  private final Dispatcher dispatcher;
+  private final Executor executor;
+  private final EventLoop[] loops;
+
+  SelectorTransport(
+      final int port,
+      final int eventLoops,
+      final Charset urlCharset,
+      final boolean streamBodies,
+      final BodyDecoding bodyDecoding,
+      final int maxRequests,
+      final long idleTimeoutMillis,
+      final Dispatcher dispatcher,
+      final Executor executor) {
+    this.port = port;
+    this.urlCharset = urlCharset;
+    this.streamBodies = streamBodies;
+    this.bodyDecoding = bodyDecoding;
+    this.maxRequests = maxRequests;
+    idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.dispatcher = dispatcher;
+    this.executor = executor;
+    loops = new EventLoop[eventLoops];
+  }
+
+  @Override
+  public void run() {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(port));
+      for (int i = 0; i < loops.length; i++) {
+        loops[i] = new EventLoop();
+        final Thread t = new Thread(loops[i], "http-event-loop-" + (i + 1));
+        t.setDaemon(true);
+        t.start();
+      }
+      System.out.println("Server started...");
+      for (int next = 0; ; next = (next + 1) % loops.length) {
+        final SocketChannel channel = server.accept();
+        final EventLoop loop = loops[next];
+        loop.execute(() -> loop.register(channel));
+      }
+    } catch (final IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private final class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // shared by every connection of this loop; parsers copy out only what they keep
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // connections waiting for input, ordered by deadline since they all share one timeout
+    private Connection idleHead;
+    private Connection idleTail;
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /** Run a task on this loop's thread. Safe to call from any thread. */
+    void execute(final Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    void register(final SocketChannel channel) {
+      try {
+        channel.configureBlocking(false);
+        final Connection c = new Connection(this, channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        idle(c);
+      } catch (final IOException e) {
+        e.printStackTrace();
+        try {
+          channel.close();
+        } catch (final IOException e2) {
+          e2.printStackTrace();
+        }
+      }
+    }
+
+    /** Start or restart the idle timeout of a connection that is waiting for input. */
+    void idle(final Connection c) {
+      busy(c);
+      c.deadline = System.nanoTime() + idleTimeoutNanos;
+      c.prev = idleTail;
+      if (idleTail == null) {
+        idleHead = c;
+      } else {
+        idleTail.next = c;
+      }
+      idleTail = c;
+    }
+
+    /** Stop the idle timeout of a connection. */
+    void busy(final Connection c) {
+      if (c.prev != null) {
+        c.prev.next = c.next;
+      } else if (idleHead == c) {
+        idleHead = c.next;
+      } else {
+        return;
+      }
+      if (c.next != null) {
+        c.next.prev = c.prev;
+      } else {
+        idleTail = c.prev;
+      }
+      c.prev = c.next = null;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          if (idleHead == null) {
+            selector.select();
+          } else {
+            final long wait = idleHead.deadline - System.nanoTime();
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+          }
+        } catch (final IOException e) {
+          e.printStackTrace();
+          return;
+        }
+
+        for (Runnable task; (task = tasks.poll()) != null; ) {
+          task.run();
+        }
+
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          final Connection c = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              c.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              c.write();
+            }
+          } catch (final IOException e) {
+            c.close();
+          }
+        }
+
+        final long now = System.nanoTime();
+        while (idleHead != null && idleHead.deadline - now <= 0) {
+          idleHead.close();
+        }
+      }
+    }
+  }
+
+  /** One request on a connection, and its response once the handlers have produced it. */
+  private static final class Exchange {
+    final Request req;
+    final Throwable parseError;
+    final boolean last;
+    // set if the body is streamed
+    QueuedBody body;
+    boolean started;
+    // response bytes not yet taken for writing, up to all of them once done
+    final List<ByteBuffer> ready = new ArrayList<>();
+    boolean done;
+    boolean keepAlive;
+    // set while the body is streamed
+    StreamSink sink;
+    // sent after ready
+    FileRegion file;
+
+    Exchange(final Request req, final Throwable parseError, final boolean last) {
+      this.req = req;
+      this.parseError = parseError;
+      this.last = last;
+    }
+
+    /** Whether this request may be handled alongside the others in the pipeline. */
+    boolean safe() {
+      return parseError == null && req.method.safe;
+    }
+  }
+
+  private final class Connection {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final RequestParser parser;
+    private SelectionKey key;
+    private int count;
+
+    // no further requests will be read once set
+    private boolean closing;
+    // bytes received but left unparsed while the pipeline is full
+    private ByteBuffer pending;
+    // requests in the order received, until their responses have been written
+    private final Deque<Exchange> exchanges = new ArrayDeque<>();
+    // the body being streamed; nothing more is parsed until it is complete
+    private QueuedBody streaming;
+
+    // the write in progress: buffers, then a file
+    private ByteBuffer[] out;
+    private FileRegion outFile;
+    private boolean closeAfterOut;
+
+    // idle list
+    private long deadline;
+    private Connection prev;
+    private Connection next;
+
+    Connection(final EventLoop loop, final SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+      parser = new RequestParser(urlCharset, streamBodies, bodyDecoding);
+    }
+
+    void read() throws IOException {
+      final ByteBuffer buf = loop.readBuffer;
+      buf.clear();
+      if (channel.read(buf) == -1) {
+        // the client may still be waiting for responses to what it has already sent
+        closing = true;
+        if (streaming != null) {
+          streaming.fail();
+        }
+        update();
+        return;
+      }
+      buf.flip();
+      if (streaming != null) {
+        streaming.offer(copy(buf));
+      } else {
+        parse(buf);
+      }
+      update();
+    }
+
+    private void parse(final ByteBuffer buf) {
+      while (!closing && exchanges.size() < MAX_PIPELINED && buf.hasRemaining()) {
+        Request req;
+        Throwable parseError = null;
+        try {
+          req = parser.parse(buf);
+        } catch (final RuntimeException t) {
+          req = parser.request();
+          parseError = t;
+        }
+        if (req == null) {
+          break;
+        }
+
+        // after a malformed request we cannot tell where the next one would start
+        final boolean last = parseError != null || ++count >= maxRequests || !req.keepAlive();
+        closing = last;
+        final Exchange ex = new Exchange(req, parseError, last);
+        exchanges.add(ex);
+        if (parseError == null && parser.streamingBody()) {
+          req.bodySource = ex.body = streaming = new QueuedBody(this);
+          if (buf.hasRemaining()) {
+            streaming.offer(copy(buf));
+          }
+          break;
+        }
+      }
+      pending = closing || !buf.hasRemaining() ? null : buf == loop.readBuffer ? copy(buf) : buf;
+      dispatch();
+    }
+
+    /**
+     * Start handling every request that may run now. Safe requests run in parallel, but an unsafe
+     * one waits for all before it, and holds back all after it (RFC 7230 6.3.2).
+     */
+    private void dispatch() {
+      boolean earlierRunning = false;
+      boolean earlierUnsafe = false;
+      for (final Exchange ex : exchanges) {
+        if (!channel.isOpen()) {
+          return;
+        }
+        if (!ex.started) {
+          if (earlierRunning && (earlierUnsafe || !ex.safe())) {
+            return;
+          }
+          start(ex);
+        }
+        if (!ex.done) {
+          earlierRunning = true;
+          earlierUnsafe |= !ex.safe();
+        }
+      }
+    }
+
+    private void start(final Exchange ex) {
+      ex.started = true;
+      try {
+        executor.execute(
+            () ->
+                dispatcher
+                    .respond(ex.req, ex.parseError)
+                    .whenComplete(
+                        (res, t) -> {
+                          // on whatever thread completed the response, if a handler was async
+                          if (t != null) {
+                            t.printStackTrace();
+                            loop.execute(this::close);
+                            return;
+                          }
+                          respond(ex, res);
+                        }));
+      } catch (final RejectedExecutionException e) {
+        close();
+      }
+    }
+
+    private void respond(final Exchange ex, final Response res) {
+      // a body left unread means we cannot tell where the next request starts
+      final boolean keepAlive =
+          !ex.last
+              && (ex.body == null || ex.body.drainBuffered())
+              && ResponseEncoder.keepAlive(res);
+      final ByteBuffer[] bufs;
+      try {
+        bufs = ResponseEncoder.encode(res, keepAlive);
+      } catch (final Throwable t) {
+        t.printStackTrace();
+        loop.execute(this::close);
+        return;
+      }
+      if (!ResponseEncoder.streaming(res)) {
+        final FileRegion file = ResponseEncoder.fileRegion(res);
+        loop.execute(
+            () -> {
+              if (file != null && !channel.isOpen()) {
+                closeFile(file);
+                return;
+              }
+              ex.keepAlive = keepAlive;
+              ex.file = file;
+              Collections.addAll(ex.ready, bufs);
+              ex.done = true;
+              dispatch();
+              flush();
+            });
+        return;
+      }
+
+      final StreamSink sink = new StreamSink(ex, this);
+      loop.execute(
+          () -> {
+            ex.keepAlive = keepAlive;
+            ex.sink = sink;
+            Collections.addAll(ex.ready, bufs);
+            flush();
+          });
+      // on a worker, which the body may hold for as long as the client takes to read it
+      try {
+        executor.execute(
+            () -> {
+              try {
+                ResponseEncoder.stream(res, sink);
+              } catch (final Throwable t) {
+                t.printStackTrace();
+                loop.execute(this::close);
+                return;
+              }
+              loop.execute(
+                  () -> {
+                    ex.done = true;
+                    ex.sink = null;
+                    dispatch();
+                    flush();
+                  });
+            });
+      } catch (final RejectedExecutionException e) {
+        loop.execute(this::close);
+      }
+    }
+
+    /**
+     * Write every response that is ready, in request order, with a single gathering write up to the
+     * first file.
+     */
+    private void flush() {
+      if (writing() || !channel.isOpen()) {
+        // the write in progress picks these up when it completes
+        return;
+      }
+
+      final List<ByteBuffer> bufs = new ArrayList<>();
+      while (!exchanges.isEmpty()) {
+        final Exchange ex = exchanges.peek();
+        if (ex.sink != null) {
+          long taken = 0;
+          for (final ByteBuffer buf : ex.ready) {
+            taken += buf.remaining();
+          }
+          ex.sink.taken(taken);
+        }
+        bufs.addAll(ex.ready);
+        ex.ready.clear();
+        if (!ex.done) {
+          // the rest of a streamed response comes later
+          break;
+        }
+        exchanges.poll();
+        outFile = ex.file;
+        if (!ex.keepAlive) {
+          // anything after this is dropped along with the connection
+          closeAfterOut = true;
+          break;
+        }
+        if (outFile != null) {
+          break;
+        }
+      }
+      if (bufs.isEmpty()) {
+        return;
+      }
+
+      out = bufs.toArray(new ByteBuffer[0]);
+      try {
+        write();
+      } catch (final IOException e) {
+        close();
+      }
+    }
+
+    void write() throws IOException {
+      if (out != null) {
+        channel.write(out);
+        // the last buffer may be empty, with an earlier one not yet written
+        for (final ByteBuffer buf : out) {
+          if (buf.hasRemaining()) {
+            update();
+            return;
+          }
+        }
+        out = null;
+      }
+      if (outFile != null) {
+        // straight from the file to the socket
+        if (!outFile.transferTo(channel)) {
+          update();
+          return;
+        }
+        closeFile(outFile);
+        outFile = null;
+      }
+      if (closeAfterOut) {
+        close();
+        return;
+      }
+
+      // continue with anything that became ready, or was left unparsed, in the meantime
+      flush();
+      if (!channel.isOpen()) {
+        return;
+      }
+      if (!writing() && pending != null) {
+        parse(pending);
+      }
+      update();
+    }
+
+    private boolean writing() {
+      return out != null || outFile != null;
+    }
+
+    /** Sync the selector and idle timeout with what this connection is waiting for. */
+    private void update() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      if (closing && exchanges.isEmpty() && !writing()) {
+        close();
+        return;
+      }
+
+      int ops = 0;
+      if (streaming != null ? !streaming.full() : !closing && pending == null) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (writing()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+
+      if (exchanges.isEmpty() && !writing()) {
+        loop.idle(this);
+      } else {
+        loop.busy(this);
+      }
+    }
+
+    /** Carry on parsing what followed a streamed body, once it is complete. */
+    private void resume(final QueuedBody body) {
+      // including anything read since it was complete, which went to it all the same
+      final List<ByteBuffer> rest = body.rest();
+      streaming = null;
+      if (!channel.isOpen()) {
+        return;
+      }
+      for (final ByteBuffer buf : rest) {
+        if (streaming != null) {
+          // another streamed body started in an earlier buffer
+          streaming.offer(buf);
+        } else if (pending != null) {
+          pending = concat(pending, buf);
+        } else {
+          parse(buf);
+        }
+      }
+      update();
+    }
+
+    void close() {
+      if (streaming != null) {
+        streaming.fail();
+      }
+      for (final Exchange ex : exchanges) {
+        if (ex.sink != null) {
+          ex.sink.fail();
+        }
+        if (ex.file != null) {
+          closeFile(ex.file);
+        }
+      }
+      if (outFile != null) {
+        closeFile(outFile);
+      }
+      loop.busy(this);
+      key.cancel();
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static void closeFile(final FileRegion file) {
+    try {
+      file.close();
+    } catch (final IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Takes a streamed response body from the thread writing it to the event loop, making the writer
+   * wait while too much of it is waiting to be written.
+   */
+  private final class StreamSink implements ResponseStream.Sink {
+    private final Exchange ex;
+    private final Connection connection;
+    private long queued;
+    private boolean failed;
+
+    StreamSink(final Exchange ex, final Connection connection) {
+      this.ex = ex;
+      this.connection = connection;
+    }
+
+    @Override
+    public void send(final ByteBuffer buf) throws IOException {
+      synchronized (this) {
+        final long deadline = System.nanoTime() + idleTimeoutNanos;
+        while (queued >= MAX_QUEUED_RESPONSE && !failed) {
+          final long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (wait <= 0) {
+            throw new IOException("Timed out waiting for the client to read the response");
+          }
+          try {
+            wait(wait);
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        if (failed) {
+          throw new IOException("Connection closed before the response was complete");
+        }
+        queued += buf.remaining();
+      }
+      connection.loop.execute(
+          () -> {
+            ex.ready.add(buf);
+            connection.flush();
+          });
+    }
+
+    /** The event loop has taken this many bytes for writing. */
+    synchronized void taken(final long n) {
+      queued -= n;
+      notifyAll();
+    }
+
+    synchronized void fail() {
+      failed = true;
+      notifyAll();
+    }
+  }
+
+  /**
+   * A streamed body, fed by the event loop and read by the handler's thread. Reading from the
+   * connection pauses while too much is waiting to be read. Once the body is complete, whatever
+   * follows it goes back to the event loop to be parsed, along with anything the loop offers before
+   * it takes the rest back.
+   */
+  private final class QueuedBody extends BodyStream {
+    private final Connection connection;
+    private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+    private int queued;
+    private ByteBuffer current;
+    private boolean failed;
+    private boolean complete;
+
+    QueuedBody(final Connection connection) {
+      this.connection = connection;
+    }
+
+    // event loop
+
+    synchronized void offer(final ByteBuffer buf) {
+      queue.add(buf);
+      queued += buf.remaining();
+      notifyAll();
+    }
+
+    synchronized boolean full() {
+      return queued >= MAX_QUEUED_BODY;
+    }
+
+    synchronized void fail() {
+      failed = true;
+      notifyAll();
+    }
+
+    // handler
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (complete) {
+        return -1;
+      }
+      while (true) {
+        if (current != null) {
+          final int n = connection.parser.body(current, b, off, len);
+          if (n == -1) {
+            complete();
+            return -1;
+          }
+          if (n > 0) {
+            return n;
+          }
+        }
+        current = take();
+      }
+    }
+
+    private ByteBuffer take() throws IOException {
+      final long deadline = System.nanoTime() + idleTimeoutNanos;
+      while (queue.isEmpty()) {
+        if (failed) {
+          throw new EOFException("Connection closed before the request body was complete");
+        }
+        final long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (wait <= 0) {
+          throw Status.REQUEST_TIMEOUT.exception("Timed out reading request body");
+        }
+        try {
+          wait(wait);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      final boolean wasFull = full();
+      final ByteBuffer buf = queue.poll();
+      queued -= buf.remaining();
+      if (wasFull && !full()) {
+        connection.loop.execute(connection::update);
+      }
+      return buf;
+    }
+
+    /** Hand back whatever follows the body to the event loop. */
+    private void complete() {
+      complete = true;
+      connection.loop.execute(() -> connection.resume(this));
+    }
+
+    /** What followed the body, once it is complete, in the order it arrived. */
+    synchronized List<ByteBuffer> rest() {
+      final List<ByteBuffer> rest = new ArrayList<>();
+      if (current != null && current.hasRemaining()) {
+        rest.add(current);
+      }
+      rest.addAll(queue);
+      current = null;
+      queue.clear();
+      queued = 0;
+      return rest;
+    }
+
+    @Override
+    synchronized boolean drainBuffered() {
+      if (complete) {
+        return true;
+      }
+      final byte[] discard = new byte[READ_BUFFER_SIZE];
+      try {
+        while (!failed) {
+          if (current != null) {
+            final int n = connection.parser.body(current, discard, 0, discard.length);
+            if (n == -1) {
+              complete();
+              return true;
+            }
+            if (n > 0) {
+              continue;
+            }
+          }
+          if (queue.isEmpty()) {
+            return false;
+          }
+          current = take();
+        }
+      } catch (final ErrorResponseException | IOException e) {
+        // given up on
+      }
+      return false;
+    }
+  }
+
+  private static ByteBuffer copy(final ByteBuffer buf) {
+    final ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+    copy.put(buf).flip();
+    return copy;
+  }
+
+  private static ByteBuffer concat(final ByteBuffer a, final ByteBuffer b) {
+    final ByteBuffer both = ByteBuffer.allocate(a.remaining() + b.remaining());
+    both.put(a).put(b).flip();
+    return both;
+  }
+}
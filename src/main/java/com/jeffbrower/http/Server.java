@@ -1,51 +1,53 @@
 package com.jeffbrower.http;
 
-import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 public final class Server implements Runnable {
-  private static final String CRLF = "\r\n";
-
-  private static final Pattern FIRST_LINE =
-      Pattern.compile("(\\w+)[ \t]+(\\S+)[ \t]+HTTP/(\\d)\\.(\\d)");
-  private static final Pattern TOKEN = Pattern.compile("[0-9A-Za-z!#$%&'*+.^_`|~-]+");
-
-  private static final java.text.SimpleDateFormat GMT_FORMAT;
-
-  static {
-    GMT_FORMAT = new java.text.SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-    GMT_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-  }
+  private static final int BUFFER_SIZE = 16 * 1024;
 
   private final Charset urlCharset;
+  private int port = 80;
+  private Executor executor;
+  private int eventLoops;
+  private int maxRequests = 1000;
+  private long idleTimeoutMillis = 60_000;
+  private boolean streamBodies;
   private final List<Map.Entry<RequestMatcher, RequestHandler>> handlers = new ArrayList<>();
+  private RouteCache routeCache;
+  private ResponseCache responseCache;
+  private RequestCoalescing coalescing;
+  private ResponseCompression compression;
+  private ConditionalRequests conditional;
+  private ByteRanges ranges;
+  private BodyDecoding bodyDecoding = new BodyDecoding();
   private ErrorHandler errorHandler =
       (req, res, t) -> {
         t.printStackTrace();
@@ -78,32 +80,25 @@ public final class Server implements Runnable {
     return this;
   }
 
+  /**
+   * Like {@link #handle(RequestMatcher, RequestHandler)}, but for a handler that completes later,
+   * without holding a thread in the meantime. The handlers after it run once it completes with
+   * {@code false}.
+   */
+  public Server handleAsync(final RequestMatcher matcher, final AsyncRequestHandler handler) {
+    return handle(matcher, new AsyncHandler(handler));
+  }
+
   public Server withSerializer(final RequestMatcher matcher, final Serializer serializer) {
-    return handle(
-        matcher,
-        (req, res) -> {
-          res.serializer = serializer;
-          return false;
-        });
+    return handle(matcher, new Middleware(serializer, null));
   }
 
   public Server withDeserializer(final RequestMatcher matcher, final Deserializer deserializer) {
-    return handle(
-        matcher,
-        (req, res) -> {
-          req.deserializer = deserializer;
-          return false;
-        });
+    return handle(matcher, new Middleware(null, deserializer));
   }
 
   public Server withMapper(final RequestMatcher matcher, final Mapper mapper) {
-    return handle(
-        matcher,
-        (req, res) -> {
-          res.serializer = mapper;
-          req.deserializer = mapper;
-          return false;
-        });
+    return handle(matcher, new Middleware(mapper, mapper));
   }
 
   public Server withErrorHandler(final ErrorHandler errorHandler) {
@@ -112,428 +107,413 @@ public final class Server implements Runnable {
     return this;
   }
 
-  @Override
-  public void run() {
+  public Server withPort(final int port) {
     assertNotStarted();
-    started = true;
-
-    try (ServerSocket myServerSocket = new ServerSocket(80)) {
-      System.out.println("Server started...");
-      while (true) {
-        try (Socket s = myServerSocket.accept();
-            InputStream is = s.getInputStream();
-            OutputStream os = s.getOutputStream();
-            OutputStreamWriter osw = new OutputStreamWriter(os, US_ASCII.newEncoder())) {
-          final Request req = new Request();
-          final Response res = new Response(req);
-
-          // process request
-          try {
-            readRequest(is, req);
-            boolean handled = false;
-            for (final Map.Entry<RequestMatcher, RequestHandler> e : handlers) {
-              if (!e.getKey().matches(req)) {
-                continue;
-              }
-              if (e.getValue().handle(req, res)) {
-                handled = true;
-                break;
-              }
-            }
-            if (!handled) {
-              throw Status.NOT_FOUND.exception("URL not handled: " + req.url);
-            }
-          } catch (final Throwable t) {
-            errorHandler.handle(req, res, t);
-          }
+    this.port = port;
+    return this;
+  }
 
-          // set date header, if not already set
-          if (!res.headers.general.contains(GeneralHeader.DATE)) {
-            res.headers.general.add(GeneralHeader.DATE, GMT_FORMAT.format(new Date()));
-          }
+  /**
+   * Serve each connection on its own thread. Virtual threads are used when the runtime supports
+   * them, otherwise platform threads. This is the default.
+   */
+  public Server withThreadPerConnection() {
+    return withExecutor(threadPerConnection());
+  }
 
-          // build response
-          osw.write("HTTP/1.1 ");
-          osw.write(res.status.statusCode);
-          osw.write(' ');
-          osw.write(res.status.reasonPhrase);
-          osw.write(CRLF);
-          for (final Map.Entry<String, String> e : res.headers) {
-            osw.write(e.getKey());
-            osw.write(": ");
-            osw.write(e.getValue());
-            osw.write(CRLF);
-          }
-          osw.write(CRLF);
-          osw.flush();
-          if (res.body != null) {
-            os.write(res.serializeBody());
-          }
-        } catch (final IOException e) {
-          e.printStackTrace();
-        }
-      }
-    } catch (final IOException e) {
-      e.printStackTrace();
-    }
+  /**
+   * Serve connections on a fixed pool of platform threads. Connections accepted while all threads
+   * are busy wait in a queue of the given capacity; once that is full, new connections are closed
+   * immediately.
+   */
+  public Server withWorkerPool(final int threads, final int queueCapacity) {
+    return withExecutor(
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            platformThreads()));
   }
 
-  private Request readRequest(final InputStream is, final Request request) throws IOException {
-    parseHeaders(is, request);
+  /** Serve connections on a caller-supplied {@link Executor}. */
+  public Server withExecutor(final Executor executor) {
+    assertNotStarted();
+    this.executor = executor;
+    return this;
+  }
 
-    if (request.method == null) {
-      throw Status.BAD_REQUEST.exception("Empty request");
+  /**
+   * Close each connection after it has served this many requests. {@code 1} disables persistent
+   * connections.
+   */
+  public Server withMaxRequestsPerConnection(final int maxRequests) {
+    assertNotStarted();
+    if (maxRequests < 1) {
+      throw new IllegalArgumentException("maxRequests must be positive");
     }
+    this.maxRequests = maxRequests;
+    return this;
+  }
 
-    // get message body, if present
-    final Optional<String> transferEncoding =
-        request.headers.general.get(GeneralHeader.TRANSFER_ENCODING);
-    final Optional<String> contentLength = request.headers.entity.get(EntityHeader.CONTENT_LENGTH);
-    if (transferEncoding.isPresent()) {
-      if (contentLength.isPresent()) {
-        throw Status.BAD_REQUEST.exception("Cannot send both Transfer-Encoding and Content-Length");
-      }
-
-      // split list of encodings
-      final Header.WithParams[] encs = Header.parseWithParams(transferEncoding.get());
-      final Header.WithParams lastEnc = encs[encs.length - 1];
-      if (!"chunked".equalsIgnoreCase(lastEnc.value)) {
-        throw Status.BAD_REQUEST.exception("Last Transfer-Encoding of request must be 'chunked'");
-      }
-      if (!lastEnc.params.isEmpty()) {
-        throw Status.BAD_REQUEST.exception("Transfer-Encoding value cannot have params");
-      }
-
-      // read chunked body
-      final ByteArrayOutputStream os = new ByteArrayOutputStream();
-      for (byte[] chunk = readChunk(is); chunk != null; chunk = readChunk(is)) {
-        os.write(chunk);
-      }
-      request.body = os.toByteArray();
-
-      // read trailers
-      parseHeaders(is, request);
-
-      // apply subsequent encodings
-      for (int i = encs.length - 2; i >= 0; i--) {
-        final Header.WithParams enc = encs[i];
-        if (!enc.params.isEmpty()) {
-          throw Status.BAD_REQUEST.exception("Transfer-Encoding value cannot have params");
-        }
-        if ("chunked".equalsIgnoreCase(enc.value)) {
-          throw Status.BAD_REQUEST.exception("Duplicate Transfer-Encoding 'chunked'");
-        } else if ("deflate".equalsIgnoreCase(enc.value)) {
-          request.body =
-              new InflaterInputStream(new ByteArrayInputStream(request.body)).readAllBytes();
-        } else if ("gzip".equalsIgnoreCase(enc.value) || "x-gzip".equalsIgnoreCase(enc.value)) {
-          request.body = new GZIPInputStream(new ByteArrayInputStream(request.body)).readAllBytes();
-        } else if ("br".equalsIgnoreCase(enc.value)) {
-          throw Status.NOT_IMPLEMENTED.exception("'br' Transfer-Encoding is not supported");
-        } else if ("compress".equalsIgnoreCase(enc.value)
-            || "x-compress".equalsIgnoreCase(enc.value)) {
-          throw Status.NOT_IMPLEMENTED.exception("'compress' Transfer-Encoding is not supported");
-        } else {
-          throw Status.NOT_IMPLEMENTED.exception("Transfer-Encoding not supported: '" + enc + "'");
-        }
-      }
-    } else if (contentLength.isPresent()) {
-      final int size = Integer.parseInt(contentLength.get());
-      if (size < 0) {
-        throw Status.BAD_REQUEST.exception("Negative Content-Length: " + size);
-      }
-      if (size != 0) {
-        final byte[] body = is.readNBytes(size);
-        if (body.length < size) {
-          throw Status.BAD_REQUEST.exception(
-              "Only received partial request: " + body.length + " / " + size);
-        }
-        request.body = body;
-      }
+  /** Close connections that have been waiting this long for the client to send anything. */
+  public Server withIdleTimeout(final Duration idleTimeout) {
+    assertNotStarted();
+    final long millis = idleTimeout.toMillis();
+    if (millis < 1 || millis > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Unsupported idle timeout: " + idleTimeout);
     }
-
-    return request;
+    idleTimeoutMillis = millis;
+    return this;
   }
 
-  private enum HeaderParseState {
-    NONE,
-    CR,
-    CR_LF,
-    CR_LF_CR
+  /**
+   * Serve connections from the given number of non-blocking event-loop threads instead of one
+   * blocking thread per connection. The configured {@link Executor} then runs each request's
+   * handlers, rather than each connection; by default a virtual thread per request, or before Java
+   * 21 a pool of one platform thread per CPU.
+   */
+  public Server withSelectorTransport(final int eventLoops) {
+    assertNotStarted();
+    if (eventLoops < 1) {
+      throw new IllegalArgumentException("At least one event loop is required");
+    }
+    this.eventLoops = eventLoops;
+    return this;
   }
 
-  private void parseHeaders(final InputStream is, final Request request) throws IOException {
-    final StringBuilder headerLine = new StringBuilder();
-
-    final Runnable addHeader =
-        () -> {
-          if (headerLine.length() == 0) {
-            return;
-          }
-
-          final String line = headerLine.toString();
-          headerLine.setLength(0);
-
-          if (request.method != null) {
-            final int colon = line.indexOf(":");
-            if (colon == -1) {
-              throw Status.BAD_REQUEST.exception("Malformed header: " + line);
-            }
-
-            final String key = line.substring(0, colon);
-            if (!TOKEN.matcher(key).matches()) {
-              throw Status.BAD_REQUEST.exception("Malformed header field: " + key);
-            }
-
-            request.headers.add(key, line.substring(colon + 1).trim());
-            return;
-          }
+  /**
+   * Remember how requests are routed by method and URL, which pays off when most requests go to a
+   * limited set of URLs. Its counters show how often it is used.
+   */
+  public Server withRouteCache(final RouteCache routeCache) {
+    assertNotStarted();
+    this.routeCache = routeCache;
+    return this;
+  }
 
-          final Matcher m = FIRST_LINE.matcher(line);
-          if (!m.matches()) {
-            throw Status.BAD_REQUEST.exception("Malformed request line: " + line);
-          }
+  /**
+   * Answer safe requests from the responses to earlier ones, while their {@code Cache-Control}
+   * allows, without running the handlers. Its counters show how often it is used.
+   */
+  public Server withResponseCache(final ResponseCache responseCache) {
+    assertNotStarted();
+    this.responseCache = responseCache;
+    return this;
+  }
 
-          request.method = Method.of(m.group(1));
+  /**
+   * Handle identical {@code GET} and {@code HEAD} requests that arrive together only once, sharing
+   * the response, as configured.
+   */
+  public Server withRequestCoalescing(final RequestCoalescing coalescing) {
+    assertNotStarted();
+    this.coalescing = coalescing;
+    return this;
+  }
 
-          final String urlString = m.group(2);
-          final int q = urlString.indexOf('?');
-          if (q == -1) {
-            request.url = decodePercent(urlString, 0, urlString.length());
-          } else {
-            request.url = decodePercent(urlString, 0, q);
-            decodeParams(urlString, q + 1, request.queryParams);
-          }
-        };
-
-    // parse headers
-    boolean lastSpace = false;
-    HeaderParseState state = HeaderParseState.NONE;
-
-    outer:
-    for (int c = is.read(); c != -1; c = is.read()) {
-      if (c == '\r') {
-        switch (state) {
-          case NONE:
-            state = HeaderParseState.CR;
-            continue;
-          case CR_LF:
-            state = HeaderParseState.CR_LF_CR;
-            continue;
-          default:
-            // double CR
-            throw Status.BAD_REQUEST.exception("Unexpected CR");
-        }
-      }
+  /**
+   * Hand requests to handlers as soon as their heads are read, with their bodies streamed from the
+   * connection through {@link Request#getBodyStream} instead of read into {@link Request#body}
+   * beforehand, so large uploads need not fit in memory.
+   */
+  public Server withStreamingBodies() {
+    assertNotStarted();
+    streamBodies = true;
+    return this;
+  }
 
-      if (c == '\n') {
-        switch (state) {
-          case CR:
-            state = HeaderParseState.CR_LF;
-            continue;
-          case CR_LF_CR:
-            break outer;
-          default:
-            // no preceding CR
-            throw Status.BAD_REQUEST.exception("Unexpected LF");
-        }
-      }
+  /**
+   * Compress response bodies for clients that accept it, as configured. Error responses are sent as
+   * they are.
+   */
+  public Server withCompression(final ResponseCompression compression) {
+    assertNotStarted();
+    this.compression = compression;
+    return this;
+  }
 
-      // replace all horizontal whitespace with a single space
-      if (c == '\t') {
-        c = ' ';
-      }
+  /**
+   * Tag response bodies and answer conditional requests against the tags and {@code Last-Modified}
+   * handlers set, as configured.
+   */
+  public Server withConditionalRequests(final ConditionalRequests conditional) {
+    assertNotStarted();
+    this.conditional = conditional;
+    return this;
+  }
 
-      switch (state) {
-        case NONE:
-          break;
-        case CR_LF:
-          state = HeaderParseState.NONE;
-          // legacy: allow for continuation of the previous header
-          if (c != ' ') {
-            addHeader.run();
-            lastSpace = false;
-          }
-          break;
-        default:
-          // lone CR
-          throw Status.BAD_REQUEST.exception("Unexpected single CR");
-      }
+  /**
+   * Answer range requests for response bodies held in memory or in files, as configured, after any
+   * compression and conditional requests.
+   */
+  public Server withByteRanges(final ByteRanges ranges) {
+    assertNotStarted();
+    this.ranges = ranges;
+    return this;
+  }
 
-      // if horizontal whitespace, continue loop
-      if (c == ' ') {
-        if (!lastSpace) {
-          lastSpace = true;
-          headerLine.append(' ');
-        }
-        continue;
-      } else {
-        lastSpace = false;
-      }
+  /**
+   * Decode request bodies as configured, instead of only undoing their transfer codings within the
+   * default limits.
+   */
+  public Server withBodyDecoding(final BodyDecoding bodyDecoding) {
+    assertNotStarted();
+    this.bodyDecoding = bodyDecoding;
+    return this;
+  }
 
-      // only support visible ASCII
-      if (c < ' ' || c >= 0x7F) {
-        throw Status.BAD_REQUEST.exception(String.format("Unexpected char %s (0x%02x)", c, c));
-      }
+  private static ThreadFactory platformThreads() {
+    final AtomicInteger count = new AtomicInteger();
+    return r -> new Thread(r, "http-worker-" + count.incrementAndGet());
+  }
 
-      headerLine.append((char) c);
+  /** Thread.ofVirtual().factory(), or null before Java 21. */
+  private static ThreadFactory virtualThreads() {
+    try {
+      // looked up reflectively so we still run on Java 8+
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory)
+          Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch (final ReflectiveOperationException e) {
+      return null;
     }
+  }
 
-    // Add remaining header, if any
-    addHeader.run();
+  private static Executor threadPerConnection() {
+    final ThreadFactory virtual = virtualThreads();
+    final ThreadFactory threads = virtual != null ? virtual : platformThreads();
+    return r -> threads.newThread(r).start();
   }
 
-  private String decodePercent(final String str, final int from, final int to) {
-    if (from > to) {
-      throw new IllegalArgumentException(from + " > " + to);
+  /**
+   * A virtual thread per request where the runtime supports them. Otherwise a pool of platform
+   * threads, one per CPU, since starting one per request is what the event loops are there to
+   * avoid.
+   */
+  private static Executor requestExecutor() {
+    final ThreadFactory virtual = virtualThreads();
+    if (virtual != null) {
+      return r -> virtual.newThread(r).start();
     }
+    final int threads = Runtime.getRuntime().availableProcessors();
+    return new ThreadPoolExecutor(
+        threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), platformThreads());
+  }
 
-    int i = from;
-    while (true) {
-      final int c = str.codePointAt(i);
-      if (c == '+' || c == '%') {
-        break;
-      }
-      if ((i += Character.charCount(c)) == to) {
-        return str.substring(from, to);
-      }
+  @Override
+  public void run() {
+    assertNotStarted();
+    started = true;
+
+    final Executor executor =
+        this.executor != null
+            ? this.executor
+            : eventLoops > 0 ? requestExecutor() : threadPerConnection();
+    // handlers are only read through this snapshot from here on
+    final Dispatcher dispatcher =
+        new Dispatcher(
+            handlers,
+            routeCache,
+            errorHandler,
+            responseCache,
+            coalescing,
+            compression,
+            conditional,
+            ranges,
+            executor);
+
+    if (eventLoops > 0) {
+      new SelectorTransport(
+              port,
+              eventLoops,
+              urlCharset,
+              streamBodies,
+              bodyDecoding,
+              maxRequests,
+              idleTimeoutMillis,
+              dispatcher,
+              executor)
+          .run();
+      return;
     }
 
-    try {
-      final CharsetEncoder enc = urlCharset.newEncoder();
-
-      final ByteArrayOutputStream baos = new ByteArrayOutputStream(to - from);
-      baos.writeBytes(enc.encode(CharBuffer.wrap(str.substring(from, i))).array());
-
-      for (int c; i < to; ) {
-        switch (c = str.codePointAt(i)) {
-          case '%':
-            if ((i += 3) > to) {
-              throw Status.BAD_REQUEST.exception("Unclosed percent-encoding.");
-            }
-
-            try {
-              baos.write(Integer.parseInt(str.substring(i - 2, i), 16));
-            } catch (final NumberFormatException e) {
-              throw Status.BAD_REQUEST.exception("Bad percent-encoding.", e);
-            }
-            break;
-
-          case '+':
-            c = ' ';
-          default:
-            baos.writeBytes(enc.encode(CharBuffer.wrap(Character.toChars(c))).array());
-            i += Character.charCount(c);
-            break;
+    // a blocking channel, so that each socket has a channel files can be transferred to
+    try (ServerSocketChannel myServerSocket = ServerSocketChannel.open()) {
+      myServerSocket.bind(new InetSocketAddress(port));
+      System.out.println("Server started...");
+      while (true) {
+        final Socket s = myServerSocket.accept().socket();
+        try {
+          executor.execute(() -> serve(s, dispatcher));
+        } catch (final RejectedExecutionException e) {
+          // all workers busy and queue full: shed the connection rather than stall accept
+          try {
+            s.close();
+          } catch (final IOException e2) {
+            e2.printStackTrace();
+          }
         }
       }
-
-      return urlCharset.newDecoder().decode(ByteBuffer.wrap(baos.toByteArray())).toString();
-    } catch (final CharacterCodingException e) {
-      throw Status.BAD_REQUEST.exception("Invalid " + urlCharset.name(), e);
+    } catch (final IOException e) {
+      e.printStackTrace();
     }
   }
 
-  private void decodeParams(
-      final String paramString, final int from, final Map<String, List<String>> params) {
-    final int len = paramString.length();
-    for (int start = from, amp, eq; start < len; start = amp + 1) {
-      amp = paramString.indexOf('&', start);
-      if (amp == -1) {
-        amp = len;
-        eq = paramString.indexOf('=', start);
-      } else {
-        eq = -1;
-        for (int i = start; i < amp; i++) {
-          if (paramString.charAt(i) == '=') {
-            eq = i;
-            break;
+  private void serve(final Socket socket, final Dispatcher dispatcher) {
+    try (Socket s = socket) {
+      final OutputStream os = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+      final InputStream is = new FlushBeforeRead(s.getInputStream(), os);
+      s.setSoTimeout((int) idleTimeoutMillis);
+
+      // responses to pipelined requests accumulate in os until the parser runs out of buffered
+      // input, so they go out together
+      final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE).flip();
+      final RequestParser parser = new RequestParser(urlCharset, streamBodies, bodyDecoding);
+      for (int count = 1; ; count++) {
+        Request req;
+        Throwable parseError = null;
+        BlockingBody body = null;
+        try {
+          req = parser.read(is, in);
+          if (req == null) {
+            return;
           }
+          if (parser.streamingBody()) {
+            req.bodySource = body = new BlockingBody(parser, is, in);
+          }
+        } catch (final RuntimeException t) {
+          req = parser.request();
+          parseError = t;
         }
-      }
+        final Response res;
+        final boolean keepAlive;
+        final ByteBuffer[] bufs;
+        try {
+          // waits for any asynchronous handler; this thread has nothing else to do
+          res = dispatcher.respond(req, parseError).toCompletableFuture().join();
+
+          // after a malformed request, or a body left unread, we cannot tell where the next one
+          // would start
+          keepAlive =
+              parseError == null
+                  && (body == null || body.drainBuffered())
+                  && count < maxRequests
+                  && ResponseEncoder.keepAlive(res);
+          bufs = ResponseEncoder.encode(res, keepAlive);
+        } catch (final RuntimeException e) {
+          // the error handler or a serializer failed, leaving no response to send
+          e.printStackTrace();
+          return;
+        }
+        try (FileRegion file = ResponseEncoder.fileRegion(res)) {
+          for (final ByteBuffer buf : bufs) {
+            write(os, buf);
+          }
+          if (file != null) {
+            // straight from the file to the socket, after the head
+            os.flush();
+            file.transferTo(s.getChannel());
+          }
+          if (ResponseEncoder.streaming(res)) {
+            ResponseEncoder.stream(
+                res,
+                new ResponseStream.Sink() {
+                  @Override
+                  public void send(final ByteBuffer buf) throws IOException {
+                    write(os, buf);
+                  }
 
-      params
-          .computeIfAbsent(
-              decodePercent(paramString, start, eq == -1 ? amp : eq), x -> new ArrayList<>())
-          .add(eq == -1 ? null : decodePercent(paramString, eq + 1, amp));
+                  @Override
+                  public void flush() throws IOException {
+                    os.flush();
+                  }
+                });
+          }
+        } catch (final RuntimeException e) {
+          // the body failed part way, so the response cannot be completed
+          e.printStackTrace();
+          return;
+        }
+        if (!keepAlive) {
+          os.flush();
+          return;
+        }
+      }
+    } catch (final IOException e) {
+      e.printStackTrace();
     }
   }
 
-  private enum ChunkParseState {
-    EMPTY,
-    NUM,
-    EXT,
-    CR
+  private static void write(final OutputStream os, final ByteBuffer buf) throws IOException {
+    if (buf.hasArray()) {
+      os.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    } else {
+      Channels.newChannel(os).write(buf.duplicate());
+    }
   }
 
-  private static byte[] readChunk(final InputStream is) throws IOException {
-    int size = 0;
+  /** A streamed body, read from the connection's stream through the buffer ahead of it. */
+  private static final class BlockingBody extends BodyStream {
+    private final RequestParser parser;
+    private final InputStream is;
+    private final ByteBuffer buf;
 
-    ChunkParseState state = ChunkParseState.EMPTY;
-    for (int c = is.read(); c != -1; c = is.read()) {
-      if (c == '\r') {
-        switch (state) {
-          case NUM:
-          case EXT:
-            state = ChunkParseState.CR;
-            continue;
-          default:
-            throw Status.BAD_REQUEST.exception("Unexpected CR in 'chunked' body");
-        }
-      }
+    BlockingBody(final RequestParser parser, final InputStream is, final ByteBuffer buf) {
+      this.parser = parser;
+      this.is = is;
+      this.buf = buf;
+    }
 
-      if (c == '\n') {
-        if (state != ChunkParseState.CR) {
-          throw Status.BAD_REQUEST.exception("Unexpected LF in 'chunked' body");
-        }
-        break;
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
       }
-
-      if (c == ';') {
-        if (state != ChunkParseState.NUM) {
-          throw Status.BAD_REQUEST.exception("Unexpected ';' in 'chunked' body");
+      while (true) {
+        final int n = parser.body(buf, b, off, len);
+        if (n != 0) {
+          return n;
+        }
+        buf.clear();
+        final int read = is.read(buf.array(), buf.arrayOffset(), buf.capacity());
+        if (read == -1) {
+          buf.limit(0);
+          throw new EOFException("Connection closed before the request body was complete");
         }
-        state = ChunkParseState.EXT;
-        continue;
+        buf.limit(read);
       }
+    }
 
-      switch (state) {
-        case EXT:
-          continue;
-
-        case EMPTY:
-          state = ChunkParseState.NUM;
-        case NUM:
-          final int d = Character.digit(c, 16);
-          if (d == -1) {
-            throw Status.BAD_REQUEST.exception("Expected chunk size but found '" + c + "'");
-          }
-
-          // would cause overflow on shift
-          if ((size & 0x7800_0000) != 0) {
-            throw Status.BAD_REQUEST.exception("Chunk size too large");
-          }
-
-          size = size << 4 | d;
-          break;
-
-        default:
-          throw Status.BAD_REQUEST.exception("Unexpected single CR in 'chunked' body");
+    @Override
+    boolean drainBuffered() {
+      final byte[] discard = new byte[BUFFER_SIZE];
+      try {
+        while (parser.body(buf, discard, 0, discard.length) > 0) {
+          // discard
+        }
+      } catch (final ErrorResponseException e) {
+        return false;
       }
+      return !parser.streamingBody();
     }
+  }
 
-    // last chunk has size 0
-    if (size == 0) {
-      return null;
-    }
+  /** Flushes pending output whenever a read would have to wait for the client. */
+  private static final class FlushBeforeRead extends FilterInputStream {
+    private final OutputStream os;
 
-    // read this chunk
-    final byte[] buf = is.readNBytes(size);
-    if (buf.length < size) {
-      throw Status.BAD_REQUEST.exception(
-          "Only received partial chunk: " + buf.length + " / " + size);
+    FlushBeforeRead(final InputStream is, final OutputStream os) {
+      super(is);
+      this.os = os;
     }
 
-    return buf;
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      os.flush();
+      return super.read(b, off, len);
+    }
   }
 
   public static void main(final String[] args) {
@@ -0,0 +1,319 @@
+package com.jeffbrower.http;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.MatchResult;
+
+/**
+ * Serves the files under a directory to {@code GET} and {@code HEAD} requests whose URL starts with
+ * a prefix: {@code /static/css/site.css} is {@code css/site.css} under the root if the prefix is
+ * {@code /static}. A directory is served as its {@code index.html}. Requests for anything else are
+ * left to the handlers that follow, so a missing file is a 404 unless one of them handles it.
+ *
+ * <p>What it learns about each file, including whether it exists, is remembered for a while before
+ * the file is looked at again, and small files are held in memory; both are bounded, evicting the
+ * least recently used files first. Larger files are sent straight from disk. If a file has a
+ * sibling with {@code .gz} appended, that is sent instead to clients that accept gzip.
+ *
+ * <p>Files are tagged by their size and modification time, so conditional requests are answered
+ * with a {@code 304} or {@code 412} without opening them.
+ */
+public final class StaticFiles implements RequestHandler {
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+  static {
+    CONTENT_TYPES.put("html", "text/html;charset=utf-8");
+    CONTENT_TYPES.put("htm", "text/html;charset=utf-8");
+    CONTENT_TYPES.put("css", "text/css;charset=utf-8");
+    CONTENT_TYPES.put("js", "text/javascript;charset=utf-8");
+    CONTENT_TYPES.put("mjs", "text/javascript;charset=utf-8");
+    CONTENT_TYPES.put("json", "application/json");
+    CONTENT_TYPES.put("map", "application/json");
+    CONTENT_TYPES.put("txt", "text/plain;charset=utf-8");
+    CONTENT_TYPES.put("csv", "text/csv;charset=utf-8");
+    CONTENT_TYPES.put("xml", "application/xml");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("jpeg", "image/jpeg");
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("webp", "image/webp");
+    CONTENT_TYPES.put("avif", "image/avif");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("woff", "font/woff");
+    CONTENT_TYPES.put("woff2", "font/woff2");
+    CONTENT_TYPES.put("ttf", "font/ttf");
+    CONTENT_TYPES.put("wasm", "application/wasm");
+    CONTENT_TYPES.put("pdf", "application/pdf");
+    CONTENT_TYPES.put("zip", "application/zip");
+    CONTENT_TYPES.put("mp4", "video/mp4");
+    CONTENT_TYPES.put("webm", "video/webm");
+    CONTENT_TYPES.put("mp3", "audio/mpeg");
+  }
+
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final String INDEX = "index.html";
+
+  private final PathMatcher prefix;
+  private final Path root;
+  private final Map<String, String> contentTypes = new HashMap<>(CONTENT_TYPES);
+  private int maxEntries = 4096;
+  private long maxCachedBytes = 32 * 1024 * 1024;
+  private int maxCachedFileSize = 64 * 1024;
+  private long revalidateNanos = Duration.ofSeconds(2).toNanos();
+
+  // guarded by itself, along with cachedBytes
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  public StaticFiles(final PathMatcher prefix, final Path root) {
+    this.prefix = prefix;
+    this.root = root.toAbsolutePath().normalize();
+  }
+
+  /** Matches the requests this may handle, to register it with. */
+  public RequestMatcher matcher() {
+    return req -> prefix.startsWith(req).isPresent();
+  }
+
+  /** How many files, found or not, to remember at most. */
+  public StaticFiles withMaxEntries(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    this.maxEntries = maxEntries;
+    return this;
+  }
+
+  /**
+   * Hold files of up to {@code maxFileSize} bytes in memory, up to {@code maxBytes} of them in all.
+   * Zero turns this off.
+   */
+  public StaticFiles withMemoryCache(final int maxFileSize, final long maxBytes) {
+    if (maxFileSize < 0 || maxBytes < 0) {
+      throw new IllegalArgumentException("Memory cache limits must not be negative");
+    }
+    maxCachedFileSize = maxFileSize;
+    maxCachedBytes = maxBytes;
+    return this;
+  }
+
+  /** How long to trust what is remembered about a file before looking at it again. */
+  public StaticFiles withRevalidateAfter(final Duration duration) {
+    if (duration.isNegative()) {
+      throw new IllegalArgumentException("Duration must not be negative");
+    }
+    revalidateNanos = duration.toNanos();
+    return this;
+  }
+
+  /** Serve files ending in {@code .extension} as {@code contentType}. */
+  public StaticFiles withContentType(final String extension, final String contentType) {
+    contentTypes.put(extension.toLowerCase(Locale.ROOT), contentType);
+    return this;
+  }
+
+  @Override
+  public boolean handle(final Request req, final Response res) {
+    if (req.method != Method.GET && req.method != Method.HEAD) {
+      return false;
+    }
+    final Optional<MatchResult> match = prefix.startsWith(req);
+    if (!match.isPresent()) {
+      return false;
+    }
+    final String rest = req.url.substring(match.get().end());
+    if (!rest.isEmpty() && rest.charAt(0) != '/') {
+      // only part of a segment matched
+      return false;
+    }
+
+    final Entry entry = entry(rest);
+    if (entry == null || entry.path == null) {
+      return false;
+    }
+    Entry sent = entry;
+    if (entry.gzip != null) {
+      ResponseCompression.vary(res, RequestHeader.ACCEPT_ENCODING.toString());
+      if (acceptsGzip(req)) {
+        sent = entry.gzip;
+        res.headers.entity.replace(EntityHeader.CONTENT_ENCODING, "gzip");
+      }
+    }
+    res.status = Status.OK;
+    res.headers.response.replace(ResponseHeader.ETAG, sent.etag);
+    res.headers.entity.replace(EntityHeader.LAST_MODIFIED, entry.lastModified);
+    if (!ConditionalRequests.evaluate(res, sent.etag, Optional.of(entry.modified))) {
+      return true;
+    }
+    res.headers.entity.replace(EntityHeader.CONTENT_TYPE, entry.contentType);
+    res.body = sent.content != null ? sent.content : sent.path;
+    return true;
+  }
+
+  /** What is known about the file at {@code rest} under the root, or null if it is not allowed. */
+  private Entry entry(final String rest) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(rest);
+    }
+    if (entry != null && System.nanoTime() - entry.checked < revalidateNanos) {
+      return entry;
+    }
+
+    final Path file = resolve(rest);
+    if (file == null) {
+      return null;
+    }
+    try {
+      entry = load(file, true);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    synchronized (entries) {
+      final Entry old = entries.put(rest, entry);
+      cachedBytes += entry.cachedBytes() - (old == null ? 0 : old.cachedBytes());
+      final Iterator<Entry> it = entries.values().iterator();
+      while (entries.size() > 1
+          && (entries.size() > maxEntries || cachedBytes > maxCachedBytes)
+          && it.hasNext()) {
+        cachedBytes -= it.next().cachedBytes();
+        it.remove();
+      }
+    }
+    return entry;
+  }
+
+  /** The file at {@code rest} under the root, or null if it would be outside it. */
+  private Path resolve(final String rest) {
+    for (int from = 1, to; from < rest.length(); from = to + 1) {
+      to = rest.indexOf('/', from);
+      if (to == -1) {
+        to = rest.length();
+      }
+      final int length = to - from;
+      if ((length == 1 && rest.charAt(from) == '.')
+          || (length == 2 && rest.startsWith("..", from))) {
+        return null;
+      }
+    }
+    if (rest.indexOf('\\') != -1 || rest.indexOf('\0') != -1) {
+      return null;
+    }
+    try {
+      final Path file = root.resolve(rest.isEmpty() ? "" : rest.substring(1)).normalize();
+      return file.startsWith(root) ? file : null;
+    } catch (final InvalidPathException e) {
+      return null;
+    }
+  }
+
+  private Entry load(Path file, final boolean withGzip) throws IOException {
+    final long checked = System.nanoTime();
+    BasicFileAttributes attrs = attributes(file);
+    if (attrs != null && attrs.isDirectory()) {
+      file = file.resolve(INDEX);
+      attrs = attributes(file);
+    }
+    if (attrs == null || !attrs.isRegularFile()) {
+      return new Entry(checked, null, null, null, null, null, null);
+    }
+
+    ByteBuffer content = null;
+    if (attrs.size() <= maxCachedFileSize && attrs.size() <= maxCachedBytes) {
+      try {
+        content = ByteBuffer.wrap(Files.readAllBytes(file)).asReadOnlyBuffer();
+      } catch (final NoSuchFileException e) {
+        return new Entry(checked, null, null, null, null, null, null);
+      }
+    }
+    final String name = file.getFileName().toString();
+    final int dot = name.lastIndexOf('.');
+    final String contentType =
+        dot == -1
+            ? DEFAULT_CONTENT_TYPE
+            : contentTypes.getOrDefault(
+                name.substring(dot + 1).toLowerCase(Locale.ROOT), DEFAULT_CONTENT_TYPE);
+    final Entry gzip = withGzip ? load(file.resolveSibling(name + ".gz"), false) : null;
+    final Instant modified = attrs.lastModifiedTime().toInstant();
+    return new Entry(
+        checked,
+        file,
+        contentType,
+        modified,
+        '"'
+            + Long.toHexString(attrs.size())
+            + '-'
+            + Long.toHexString(modified.toEpochMilli())
+            + '"',
+        content,
+        gzip == null || gzip.path == null ? null : gzip);
+  }
+
+  private static BasicFileAttributes attributes(final Path file) throws IOException {
+    try {
+      return Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (final NoSuchFileException | NotDirectoryException e) {
+      return null;
+    }
+  }
+
+  private static boolean acceptsGzip(final Request req) {
+    final Optional<String> header = req.headers.request.get(RequestHeader.ACCEPT_ENCODING);
+    return header.isPresent() && ResponseCompression.quality(header.get(), "gzip") > 0;
+  }
+
+  /** A file, or the lack of one, as it was when last checked. */
+  private static final class Entry {
+    final long checked;
+    // null if there is no such file
+    final Path path;
+    final String contentType;
+    // to the second, as in lastModified
+    final Instant modified;
+    final String lastModified;
+    final String etag;
+    // null unless held in memory
+    final ByteBuffer content;
+    // the precompressed sibling, if any
+    final Entry gzip;
+
+    Entry(
+        final long checked,
+        final Path path,
+        final String contentType,
+        final Instant modified,
+        final String etag,
+        final ByteBuffer content,
+        final Entry gzip) {
+      this.checked = checked;
+      this.path = path;
+      this.contentType = contentType;
+      this.modified = modified == null ? null : modified.truncatedTo(ChronoUnit.SECONDS);
+      lastModified = modified == null ? null : ResponseEncoder.GMT_FORMAT.format(modified);
+      this.etag = etag;
+      this.content = content;
+      this.gzip = gzip;
+    }
+
+    long cachedBytes() {
+      return (content == null ? 0 : content.capacity()) + (gzip == null ? 0 : gzip.cachedBytes());
+    }
+  }
+}
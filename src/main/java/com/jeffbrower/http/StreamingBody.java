@@ -0,0 +1,15 @@
+package com.jeffbrower.http;
+
+import java.io.IOException;
+
+/**
+ * A response body written as it is produced, rather than held in memory, set with {@link
+ * Response#streamBody}.
+ */
+public interface StreamingBody {
+  /**
+   * Write the body. Whatever has been written when this throws has already been sent, so the
+   * connection is closed instead of the response being completed.
+   */
+  void write(ResponseStream out) throws IOException;
+}
@@ -0,0 +1,23 @@
+package com.jeffbrower.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/** A {@link Serializer} that writes the body as it goes, rather than building it in memory. */
+public interface StreamingSerializer extends Serializer {
+  void serialize(Response res, ResponseStream out) throws IOException;
+
+  @Override
+  default byte[] serialize(final Response res) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ResponseStream stream =
+        new ResponseStream(
+            buf -> out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()))) {
+      serialize(res, stream);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,153 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the path and query of a request target straight from its bytes, which the parser has
+ * already checked are visible ASCII. Only percent-encoded bytes can be anything else, so a
+ * component without any is returned as is.
+ */
+final class UrlDecoder {
+  private UrlDecoder() {}
+
+  /** Decode {@code a[from, to)}, where {@code +} stands for a space. */
+  static String decode(final byte[] a, final int from, final int to, final Charset charset) {
+    int i = from;
+    while (i < to && a[i] != '%' && a[i] != '+') {
+      i++;
+    }
+    if (i == to) {
+      return new String(a, from, to - from, ISO_8859_1);
+    }
+
+    final byte[] out = new byte[to - from];
+    int n = i - from;
+    System.arraycopy(a, from, out, 0, n);
+    boolean ascii = true;
+    while (i < to) {
+      byte b = a[i];
+      if (b == '%') {
+        if (i + 3 > to) {
+          throw Status.BAD_REQUEST.exception("Unclosed percent-encoding.");
+        }
+        final int hi = RequestParser.HEX[a[i + 1] & 0xFF];
+        final int lo = RequestParser.HEX[a[i + 2] & 0xFF];
+        if ((hi | lo) < 0) {
+          throw Status.BAD_REQUEST.exception("Bad percent-encoding.");
+        }
+        b = (byte) (hi << 4 | lo);
+        ascii &= b >= 0;
+        i += 3;
+      } else {
+        if (b == '+') {
+          b = ' ';
+        }
+        i++;
+      }
+      out[n++] = b;
+    }
+
+    if (ascii) {
+      return new String(out, 0, n, ISO_8859_1);
+    }
+    if (charset.equals(UTF_8)) {
+      return utf8(out, n);
+    }
+    try {
+      return charset.newDecoder().decode(ByteBuffer.wrap(out, 0, n)).toString();
+    } catch (final CharacterCodingException e) {
+      throw Status.BAD_REQUEST.exception("Invalid " + charset.name(), e);
+    }
+  }
+
+  /** Strictly decode UTF-8, rejecting overlong forms, surrogates and truncated sequences. */
+  private static String utf8(final byte[] a, final int n) {
+    final char[] out = new char[n];
+    int length = 0;
+    for (int i = 0; i < n; ) {
+      final int b = a[i++];
+      if (b >= 0) {
+        out[length++] = (char) b;
+        continue;
+      }
+
+      int cp;
+      int more;
+      final int min;
+      if ((b & 0xE0) == 0xC0) {
+        cp = b & 0x1F;
+        more = 1;
+        min = 0x80;
+      } else if ((b & 0xF0) == 0xE0) {
+        cp = b & 0x0F;
+        more = 2;
+        min = 0x800;
+      } else if ((b & 0xF8) == 0xF0) {
+        cp = b & 0x07;
+        more = 3;
+        min = 0x10000;
+      } else {
+        throw invalidUtf8();
+      }
+      if (i + more > n) {
+        throw invalidUtf8();
+      }
+      for (; more > 0; more--) {
+        final int c = a[i++];
+        if ((c & 0xC0) != 0x80) {
+          throw invalidUtf8();
+        }
+        cp = cp << 6 | (c & 0x3F);
+      }
+      if (cp < min || cp > Character.MAX_CODE_POINT || (cp >= 0xD800 && cp <= 0xDFFF)) {
+        throw invalidUtf8();
+      }
+
+      if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        out[length++] = Character.highSurrogate(cp);
+        out[length++] = Character.lowSurrogate(cp);
+      } else {
+        out[length++] = (char) cp;
+      }
+    }
+    return new String(out, 0, length);
+  }
+
+  private static ErrorResponseException invalidUtf8() {
+    return Status.BAD_REQUEST.exception("Invalid " + UTF_8.name());
+  }
+
+  /** Decode the {@code &}-separated parameters of a query string into {@code params}. */
+  static void decodeParams(
+      final byte[] a,
+      final int from,
+      final int to,
+      final Charset charset,
+      final Map<String, List<String>> params) {
+    for (int start = from, end; start < to; start = end + 1) {
+      end = start;
+      int eq = -1;
+      while (end < to && a[end] != '&') {
+        if (eq == -1 && a[end] == '=') {
+          eq = end;
+        }
+        end++;
+      }
+      if (end == start) {
+        continue;
+      }
+
+      params
+          .computeIfAbsent(decode(a, start, eq == -1 ? end : eq, charset), x -> new ArrayList<>())
+          .add(eq == -1 ? null : decode(a, eq + 1, end, charset));
+    }
+  }
+}
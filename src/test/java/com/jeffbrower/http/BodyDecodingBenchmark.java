@@ -0,0 +1,54 @@
+package com.jeffbrower.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compares how fast request bodies are decoded from brotli and from gzip, in MB of decoded body per
+ * second, using the test fixtures. Not run as part of the tests:
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes com.jeffbrower.http.BodyDecodingBenchmark
+ * </pre>
+ */
+public final class BodyDecodingBenchmark {
+  private static final long WARMUP_NANOS = 2_000_000_000L;
+  private static final long MEASURE_NANOS = 5_000_000_000L;
+
+  public static void main(final String[] args) throws IOException {
+    final BodyDecoding decoding = new BodyDecoding();
+    run(decoding, "gpl.gz", "gzip");
+    run(decoding, "gpl.q11.br", "br");
+    run(decoding, "gpl.q1.br", "br");
+    run(decoding, "jquery.gz", "gzip");
+    run(decoding, "jquery.q11.br", "br");
+  }
+
+  private static void run(final BodyDecoding decoding, final String fixture, final String coding)
+      throws IOException {
+    final byte[] coded = BrotliInputStreamTest.resource(fixture);
+    final String[] codings = {coding};
+    final byte[] buf = new byte[8192];
+    long bytes = 0;
+    long start = System.nanoTime();
+    boolean warm = false;
+    while (true) {
+      try (InputStream in = decoding.decode(new ByteArrayInputStream(coded), codings)) {
+        for (int n; (n = in.read(buf)) != -1; ) {
+          bytes += n;
+        }
+      }
+      final long elapsed = System.nanoTime() - start;
+      if (!warm && elapsed > WARMUP_NANOS) {
+        warm = true;
+        bytes = 0;
+        start = System.nanoTime();
+      } else if (warm && elapsed > MEASURE_NANOS) {
+        System.out.printf("%-22s %8.1f MB/s%n", fixture, bytes / (elapsed / 1e9) / (1024 * 1024));
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.jeffbrower.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class BrotliInputStreamTest {
+  static byte[] resource(final String name) throws IOException {
+    try (InputStream in = BrotliInputStreamTest.class.getResourceAsStream("brotli/" + name)) {
+      return in.readAllBytes();
+    }
+  }
+
+  /** Read all of {@code in} in reads of at most {@code step} bytes. */
+  private static byte[] readAll(final InputStream in, final int step) throws IOException {
+    byte[] out = new byte[0];
+    final byte[] b = new byte[step];
+    for (int n; (n = in.read(b)) != -1; ) {
+      out = Arrays.copyOf(out, out.length + n);
+      System.arraycopy(b, 0, out, out.length - n, n);
+    }
+    return out;
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "gpl, q11, 8192",
+    "gpl, q1, 8192",
+    "gpl, q9-postfix, 8192",
+    "gpl, q11, 1",
+    "jquery, q11, 8192",
+    "jquery, q5-lgwin10, 8192",
+    "random, q11, 8192",
+    "empty, q11, 8192",
+  })
+  public void decodesLikeGzip(final String name, final String variant, final int step)
+      throws IOException {
+    final byte[] expected =
+        new GZIPInputStream(new ByteArrayInputStream(resource(name + ".gz"))).readAllBytes();
+    final byte[] br = resource(name + "." + variant + ".br");
+    assertArrayEquals(
+        expected,
+        readAll(new BrotliInputStream(new ByteArrayInputStream(br), Long.MAX_VALUE), step));
+  }
+
+  @Test
+  public void truncated() throws IOException {
+    final byte[] br = resource("gpl.q11.br");
+    for (final int length : new int[] {0, 1, 100, br.length / 2, br.length - 1}) {
+      final InputStream in =
+          new BrotliInputStream(new ByteArrayInputStream(br, 0, length), Long.MAX_VALUE);
+      assertThrows(IOException.class, () -> in.readAllBytes(), () -> "length " + length);
+    }
+  }
+
+  @Test
+  public void corrupt() throws IOException {
+    final byte[] br = resource("jquery.q11.br");
+    // a reserved window size
+    br[0] = 0x11;
+    final InputStream in = new BrotliInputStream(new ByteArrayInputStream(br), Long.MAX_VALUE);
+    assertThrows(IOException.class, () -> in.readAllBytes());
+  }
+
+  @Test
+  public void maxOutput() throws IOException {
+    final byte[] zeros = resource("zeros.br");
+    assertEquals(
+        4 << 20,
+        new BrotliInputStream(new ByteArrayInputStream(zeros), 4 << 20).readAllBytes().length);
+    final InputStream in = new BrotliInputStream(new ByteArrayInputStream(zeros), 1 << 20);
+    assertEquals(
+        Status.PAYLOAD_TOO_LARGE,
+        assertThrows(ErrorResponseException.class, () -> in.readAllBytes()).status);
+  }
+}
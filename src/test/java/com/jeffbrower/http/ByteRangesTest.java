@@ -0,0 +1,166 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class ByteRangesTest {
+  private static final ByteRanges RANGES = new ByteRanges().withMaxRanges(3);
+  private static final String BODY = "0123456789";
+
+  private static Response respond(final Object body, final String range, final String ifRange) {
+    final Request req = new Request();
+    req.method = Method.GET;
+    req.headers.request.add(RequestHeader.RANGE, range);
+    if (ifRange != null) {
+      req.headers.request.add(RequestHeader.IF_RANGE, ifRange);
+    }
+    final Response res = new Response(req);
+    res.body = body;
+    res.headers.entity.replace(EntityHeader.CONTENT_TYPE, "text/plain");
+    res.headers.response.replace(ResponseHeader.ETAG, "\"a\"");
+    RANGES.apply(res);
+    return res;
+  }
+
+  private static String body(final Response res) throws IOException {
+    final ByteBuffer[] bufs = ResponseEncoder.encode(res, true);
+    final StringBuilder b = new StringBuilder();
+    for (int i = 1; i < bufs.length; i++) {
+      b.append(US_ASCII.decode(bufs[i]));
+    }
+    return b.toString();
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "'bytes=0-0', 10, '0,0'",
+    "'bytes=2-', 10, '2,9'",
+    "'bytes=-3', 10, '7,9'",
+    "'bytes=-30', 10, '0,9'",
+    "'bytes=5-100', 10, '5,9'",
+    "'BYTES = 1-2, 3-4', 10, '1,4'",
+    "'bytes=6-7,0-1,1-3', 10, '0,3,6,7'",
+    "'bytes=10-', 10, ''",
+    "'bytes=-0', 10, ''",
+    "'bytes=3-2', 10, ",
+    "'bytes=a-2', 10, ",
+    "'bytes=1', 10, ",
+    "'bytes=', 10, ",
+    "'bytes= , ', 10, ",
+    "'items=0-1', 10, ",
+  })
+  public void parse(final String header, final long length, final String expected) {
+    final long[] ranges = ByteRanges.parse(header, length);
+    if (expected == null) {
+      assertNull(ranges);
+      return;
+    }
+    assertEquals(expected, ranges.length == 0 ? "" : joined(ranges));
+  }
+
+  private static String joined(final long[] ranges) {
+    final StringBuilder b = new StringBuilder();
+    for (final long r : ranges) {
+      b.append(b.length() == 0 ? "" : ",").append(r);
+    }
+    return b.toString();
+  }
+
+  @Test
+  public void single() throws IOException {
+    final Response res = respond(BODY.getBytes(US_ASCII), "bytes=2-4", null);
+    assertEquals(Status.PARTIAL_CONTENT, res.status);
+    assertEquals("bytes 2-4/10", res.headers.entity.get(EntityHeader.CONTENT_RANGE).get());
+    assertEquals("bytes", res.headers.response.get(ResponseHeader.ACCEPT_RANGES).get());
+    assertEquals("234", body(res));
+    assertEquals("3", res.headers.entity.get(EntityHeader.CONTENT_LENGTH).get());
+  }
+
+  @Test
+  public void multiple() throws IOException {
+    final Response res = respond(ByteBuffer.wrap(BODY.getBytes(US_ASCII)), "bytes=0-1,-2", null);
+    assertEquals(Status.PARTIAL_CONTENT, res.status);
+    final String type = res.headers.entity.get(EntityHeader.CONTENT_TYPE).get();
+    assertTrue(type.startsWith("multipart/byteranges; boundary="));
+    final String boundary = type.substring(type.indexOf('=') + 1);
+    assertEquals(
+        "--"
+            + boundary
+            + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/10\r\n\r\n01\r\n--"
+            + boundary
+            + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 8-9/10\r\n\r\n89\r\n--"
+            + boundary
+            + "--\r\n",
+        body(res));
+  }
+
+  @Test
+  public void file(@TempDir final Path dir) throws IOException {
+    final Path path = Files.write(dir.resolve("a.txt"), BODY.getBytes(US_ASCII));
+
+    final Response single = respond(path, "bytes=-4", null);
+    assertEquals(Status.PARTIAL_CONTENT, single.status);
+    final FileRegion region = ResponseEncoder.fileRegion(single);
+    assertEquals(6, region.position);
+    assertEquals(4, region.count);
+    region.close();
+
+    final Response multiple = respond(path, "bytes=0-0,9-9", null);
+    ResponseEncoder.encode(multiple, true);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ResponseEncoder.stream(
+        multiple, buf -> out.write(buf.array(), buf.position(), buf.remaining()));
+    final String type = multiple.headers.entity.get(EntityHeader.CONTENT_TYPE).get();
+    final String boundary = type.substring(type.indexOf('=') + 1);
+    assertEquals(
+        "--"
+            + boundary
+            + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-0/10\r\n\r\n0\r\n--"
+            + boundary
+            + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 9-9/10\r\n\r\n9\r\n--"
+            + boundary
+            + "--\r\n",
+        out.toString("US-ASCII"));
+    assertEquals(
+        Integer.toString(out.size()),
+        multiple.headers.entity.get(EntityHeader.CONTENT_LENGTH).get());
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "'bytes=0-1', '\"a\"', PARTIAL_CONTENT",
+    "'bytes=0-1', '\"b\"', OK",
+    "'bytes=0-1', 'W/\"a\"', OK",
+    "'bytes=0-1', 'Sun, 06 Nov 1994 08:49:37 GMT', OK",
+    "'bytes=0-1,3-4,6-7,9-9', , OK",
+    "'bytes=0-1,2-3,4-5,6-7', , PARTIAL_CONTENT",
+    "'bytes=10-20', , RANGE_NOT_SATISFIABLE",
+    "'bytes=x', , OK",
+    "'bytes=', , OK",
+  })
+  public void status(final String range, final String ifRange, final Status expected)
+      throws IOException {
+    final byte[] body = BODY.getBytes(US_ASCII);
+    final Response res = respond(body, range, ifRange);
+    assertEquals(expected, res.status);
+    if (expected == Status.OK) {
+      assertArrayEquals(body, (byte[]) res.body);
+    } else if (expected == Status.RANGE_NOT_SATISFIABLE) {
+      assertEquals("bytes */10", res.headers.entity.get(EntityHeader.CONTENT_RANGE).get());
+      assertEquals("", body(res));
+    }
+  }
+}
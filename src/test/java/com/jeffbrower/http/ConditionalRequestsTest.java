@@ -0,0 +1,112 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class ConditionalRequestsTest {
+  private static final ConditionalRequests CONDITIONAL = new ConditionalRequests();
+  private static final String MODIFIED = "Sun, 06 Nov 1994 08:49:37 GMT";
+
+  private static Response respond(final Method method, final String header, final String value) {
+    final Request req = new Request();
+    req.method = method;
+    if (header != null) {
+      req.headers.add(header, value);
+    }
+    final Response res = new Response(req);
+    res.body = "{\"big\":\"document\"}".getBytes(UTF_8);
+    res.headers.entity.replace(EntityHeader.CONTENT_TYPE, "application/json");
+    res.headers.entity.replace(EntityHeader.LAST_MODIFIED, MODIFIED);
+    CONDITIONAL.apply(res);
+    return res;
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "GET, , , OK",
+    "GET, If-None-Match, TAG, NOT_MODIFIED",
+    "HEAD, If-None-Match, TAG, NOT_MODIFIED",
+    "GET, If-None-Match, '\"x\", W/TAG', NOT_MODIFIED",
+    "GET, If-None-Match, *, NOT_MODIFIED",
+    "GET, If-None-Match, '\"x\"', OK",
+    "PUT, If-None-Match, *, PRECONDITION_FAILED",
+    "PUT, If-Match, TAG, OK",
+    "PUT, If-Match, W/TAG, PRECONDITION_FAILED",
+    "PUT, If-Match, '\"x\"', PRECONDITION_FAILED",
+    "GET, If-Modified-Since, 'Sun, 06 Nov 1994 08:49:37 GMT', NOT_MODIFIED",
+    "GET, If-Modified-Since, 'Sat, 05 Nov 1994 08:49:37 GMT', OK",
+    "GET, If-Modified-Since, not a date, OK",
+    "PUT, If-Modified-Since, 'Sun, 06 Nov 1994 08:49:37 GMT', OK",
+    "PUT, If-Unmodified-Since, 'Sat, 05 Nov 1994 08:49:37 GMT', PRECONDITION_FAILED",
+    "PUT, If-Unmodified-Since, 'Sun, 06 Nov 1994 08:49:37 GMT', OK",
+  })
+  public void preconditions(
+      final Method method, final String header, final String value, final Status expected) {
+    final String tag =
+        respond(Method.GET, null, null).headers.response.get(ResponseHeader.ETAG).get();
+    final Response res = respond(method, header, value == null ? null : value.replace("TAG", tag));
+    assertEquals(expected, res.status);
+    assertEquals(tag, res.headers.response.get(ResponseHeader.ETAG).get());
+    if (expected != Status.OK) {
+      assertNull(res.body);
+      assertFalse(res.headers.entity.contains(EntityHeader.CONTENT_TYPE));
+    }
+  }
+
+  @Test
+  public void tagsFollowTheBody() {
+    final Response a = respond(Method.GET, null, null);
+    final Response b = new Response(a.request);
+    b.body = "{\"big\":\"Document\"}".getBytes(UTF_8);
+    CONDITIONAL.apply(b);
+    assertEquals(
+        a.headers.response.get(ResponseHeader.ETAG),
+        respond(Method.GET, null, null).headers.response.get(ResponseHeader.ETAG));
+    assertFalse(
+        a.headers
+            .response
+            .get(ResponseHeader.ETAG)
+            .equals(b.headers.response.get(ResponseHeader.ETAG)));
+  }
+
+  @Test
+  public void tagStrength() {
+    // 128 bits of hash for a strong tag, 32 for a weak one
+    assertTrue(
+        respond(Method.GET, null, null)
+            .headers
+            .response
+            .get(ResponseHeader.ETAG)
+            .get()
+            .matches("\"12-[\\w-]{22}\""));
+    final Response weak = new Response(new Request());
+    weak.body = new byte[18];
+    new ConditionalRequests().withWeakETags().apply(weak);
+    assertTrue(
+        weak.headers.response.get(ResponseHeader.ETAG).get().matches("W/\"12-[0-9a-f]{1,8}\""));
+  }
+
+  @Test
+  public void checkPreconditions() {
+    final Request req = new Request();
+    req.method = Method.GET;
+    req.headers.request.add(RequestHeader.IF_NONE_MATCH, "\"v2\"");
+    final Response res = new Response(req);
+    assertFalse(res.checkPreconditions("\"v2\"", Instant.ofEpochMilli(1500)));
+    assertEquals(Status.NOT_MODIFIED, res.status);
+    assertEquals(
+        "Thu, 01 Jan 1970 00:00:01 GMT", res.headers.entity.get(EntityHeader.LAST_MODIFIED).get());
+
+    final Response changed = new Response(req);
+    assertTrue(changed.checkPreconditions("\"v3\"", null));
+    assertEquals(Status.OK, changed.status);
+  }
+}
@@ -0,0 +1,43 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Locale;
+import java.util.stream.Stream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class HeaderNamesTest {
+  public static Stream<Arguments> known() {
+    return Stream.of(
+            Stream.of(GeneralHeader.values()).map(h -> Arguments.of(h.s, h)),
+            Stream.of(RequestHeader.values()).map(h -> Arguments.of(h.s, h)),
+            Stream.of(ResponseHeader.values()).map(h -> Arguments.of(h.s, h)),
+            Stream.of(EntityHeader.values()).map(h -> Arguments.of(h.s, h)),
+            Stream.of(
+                Arguments.of("X-XSRF-Token", RequestHeader.X_CSRF_TOKEN),
+                Arguments.of("X-SourceMap", ResponseHeader.SOURCEMAP)))
+        .flatMap(s -> s);
+  }
+
+  @ParameterizedTest
+  @MethodSource
+  public void known(final String name, final Header header) {
+    for (final String s :
+        new String[] {name, name.toLowerCase(Locale.ROOT), name.toUpperCase(Locale.ROOT)}) {
+      assertEquals(header, HeaderNames.find(s));
+      final byte[] a = (" " + s + ":").getBytes(ISO_8859_1);
+      assertEquals(header, HeaderNames.header(HeaderNames.indexOf(a, 1, a.length - 1)));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"", "X-Foo", "Hos", "Hostt", "Ho-t", "Host\u0130", "Ho\u017ft"})
+  public void unknown(final String name) {
+    assertNull(HeaderNames.find(name));
+  }
+}
@@ -0,0 +1,74 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+public class HeadersTest {
+  @Test
+  public void views() {
+    final Headers headers = new Headers(true);
+    headers.add("x-b", "1");
+    headers.add("Content-Type", "text/plain");
+    headers.add("X-A", "2");
+    headers.add("accept", "a,b");
+    headers.general.add(GeneralHeader.CONNECTION, "close");
+
+    assertEquals(Optional.of("a,b"), headers.request.get(RequestHeader.ACCEPT));
+    assertEquals(Optional.of("text/plain"), headers.get("content-type"));
+    assertEquals("1", headers.additional.get("X-B"));
+    assertTrue(headers.entity.contains(EntityHeader.CONTENT_TYPE));
+    assertFalse(headers.response.contains(ResponseHeader.ETAG));
+    assertEquals(Optional.empty(), headers.get("ETag"));
+    assertThrows(ErrorResponseException.class, () -> headers.add("ETag", "x"));
+    assertThrows(ErrorResponseException.class, () -> headers.add("Accept", "c"));
+    assertThrows(ErrorResponseException.class, () -> headers.add("X-A", "3"));
+
+    // known headers by kind, then the others in the order they were added
+    final List<String> names = new ArrayList<>();
+    headers.forEach((k, v) -> names.add(k + "=" + v));
+    assertEquals(
+        List.of("Connection=close", "Accept=a,b", "Content-Type=text/plain", "x-b=1", "X-A=2"),
+        names);
+    final List<String> iterated = new ArrayList<>();
+    for (final Map.Entry<String, String> e : headers) {
+      iterated.add(e.getKey() + "=" + e.getValue());
+    }
+    assertEquals(names, iterated);
+    assertEquals(1, headers.request.asSet().size());
+
+    assertEquals(Optional.of("a,b"), headers.replace("ACCEPT", "c"));
+    headers.request.reset();
+    assertTrue(headers.request.isEmpty());
+    assertEquals("2", headers.additional.remove("x-a"));
+    headers.reset();
+    assertFalse(headers.iterator().hasNext());
+  }
+
+  @Test
+  public void raw() {
+    final Headers headers = new Headers(true);
+    final byte[] a = "Host: a X-A: b  X-B: \r\n c X-C:d".getBytes(ISO_8859_1);
+    headers.addRaw(a, 0, 4, 5, 7, false);
+    headers.addRaw(a, 8, 11, 12, 16, false);
+    headers.addRaw(a, 16, 19, 20, 25, true);
+    headers.addRaw(a, 26, 29, 30, 31, false);
+    assertThrows(ErrorResponseException.class, () -> headers.addRaw(a, 0, 4, 5, 7, false));
+    assertThrows(ErrorResponseException.class, () -> headers.addRaw(a, 16, 19, 20, 25, true));
+
+    assertEquals(Optional.of("a"), headers.request.get(RequestHeader.HOST));
+    assertEquals("c", headers.additional.get("x-b"));
+    assertEquals("b", headers.additional.remove("X-A"));
+    assertEquals(Optional.of("d"), headers.get("X-C"));
+    assertEquals(Optional.of("a"), headers.replace("Host", "e"));
+    assertEquals(Optional.of("e"), headers.get("host"));
+  }
+}
@@ -1,6 +1,8 @@
 package com.jeffbrower.http;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.function.Supplier;
@@ -8,6 +10,7 @@ import java.util.stream.Stream;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 public class PathMatcherTest {
   private static Request req(final String url) {
@@ -288,4 +291,61 @@ public class PathMatcherTest {
       }
     }
   }
+
+  public static Stream<Arguments> numeric() {
+    return Stream.of(
+        Arguments.of("/{n[0,10]}", "/0", 0.0),
+        Arguments.of("/{n[0,10]}", "/10", 10.0),
+        Arguments.of("/{n[0,10]}", "/11", null),
+        Arguments.of("/{n[0,10]}", "/-1", null),
+        Arguments.of("/{n[0,10]}", "/1.5", null),
+        Arguments.of("/{n[0,10]}", "/x", null),
+        Arguments.of("/{n[0,10]}", "/", null),
+        Arguments.of("/{n(-1.23,4.56)}", "/-1.22", -1.22),
+        Arguments.of("/{n(-1.23,4.56)}", "/-1.23", null),
+        Arguments.of("/{n(-1.23,4.56)}", "/4", 4.0),
+        Arguments.of("/{n(-1.23,4.56)}", "/4.555", null),
+        Arguments.of("/{n(0,1,0.001]}", "/0.125", 0.125),
+        Arguments.of("/{n(0,1,0.001]}", "/0.1255", null),
+        Arguments.of("/{n(0,1,0.001]}", "/0", null),
+        Arguments.of("/{n[0,1,unlimited]}", "/0.12345678", 0.12345678),
+        Arguments.of("/{n(,10]}", "/-9223372036854775808", -9223372036854775808.0),
+        Arguments.of("/{n(,10]}", "/-9223372036854775809", null),
+        Arguments.of("/{n[10,)}", "/9223372036854775807", 9223372036854775807.0),
+        Arguments.of("/{n[0,100,5,round]}", "/12", 10.0),
+        Arguments.of("/{n[0,100,5,round]}", "/12.5", 15.0),
+        Arguments.of("/{n[0,100,5,floor]}", "/14", 10.0),
+        Arguments.of("/{n[0,100,5,ceiling]}", "/11", 15.0),
+        Arguments.of("/{n[0,100,5,ceiling]}", "/101", null),
+        Arguments.of("/a/{n[1,)}/b", "/a/7/b", 7.0),
+        Arguments.of("/a/{n[1,)}/b", "/a/0/b", null),
+        Arguments.of("/a{n[1,)}", "/a7", 7.0),
+        Arguments.of("/a{n[1,)}", "/a0", null));
+  }
+
+  @ParameterizedTest
+  @MethodSource
+  public void numeric(final String path, final String url, final Double expected) {
+    final Request req = req(url);
+    assertEquals(expected != null, new PathMatcher(path, false).matches(req));
+    if (expected != null) {
+      assertEquals(expected, req.doubleParam("n"));
+      assertTrue(req.pathParams.containsKey("n"));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "/{n[,10]}",
+        "/{n[10,0]}",
+        "/{n[0,1,0]}",
+        "/{n[0,1,unlimited,round]}",
+        "/{n[0,1,1,up]}",
+        "/{n[a,1]}",
+        "/{n[0]}"
+      })
+  public void invalidRange(final String path) {
+    assertThrows(IllegalArgumentException.class, () -> new PathMatcher(path, false));
+  }
 }
@@ -0,0 +1,197 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class RequestCoalescingTest {
+  // completed by the test, one per time the handler runs
+  private final List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+  private String cookie;
+  private String vary;
+
+  private Dispatcher dispatcher(final RequestCoalescing coalescing) {
+    return dispatcher(coalescing, null, Runnable::run);
+  }
+
+  private Dispatcher dispatcher(
+      final RequestCoalescing coalescing,
+      final ResponseCompression compression,
+      final Executor executor) {
+    final AsyncRequestHandler handler =
+        (req, res) -> {
+          final CompletableFuture<Boolean> done = new CompletableFuture<>();
+          pending.add(done);
+          final int n = pending.size();
+          res.headers.response.replace(ResponseHeader.ETAG, "\"" + n + "\"");
+          res.headers.response.replace(ResponseHeader.SET_COOKIE, cookie);
+          res.headers.response.replace(ResponseHeader.VARY, vary);
+          res.headers.entity.replace(EntityHeader.CONTENT_TYPE, "text/plain");
+          res.body = ("response " + n).getBytes(UTF_8);
+          return done;
+        };
+    final List<Map.Entry<RequestMatcher, RequestHandler>> handlers =
+        Collections.singletonList(Map.entry(req -> true, new AsyncHandler(handler)));
+    return new Dispatcher(
+        handlers,
+        null,
+        (req, res, t) -> {
+          res.reset();
+          res.status = ((ErrorResponseException) t).status;
+        },
+        null,
+        coalescing,
+        compression,
+        new ConditionalRequests(),
+        null,
+        executor);
+  }
+
+  private static CompletionStage<Response> get(
+      final Dispatcher dispatcher, final String url, final String header, final String value) {
+    final Request req = new Request();
+    req.method = Method.GET;
+    req.url = url;
+    if (header != null) {
+      req.headers.add(header, value);
+    }
+    return dispatcher.respond(req, null);
+  }
+
+  private static String body(final CompletionStage<Response> res) {
+    final Response r = res.toCompletableFuture().join();
+    if (r.body instanceof ByteBuffer) {
+      final ByteBuffer buf = (ByteBuffer) r.body;
+      try (InputStream in =
+          new GZIPInputStream(
+              new ByteArrayInputStream(buf.array(), buf.position(), buf.remaining()))) {
+        return "gzip " + new String(in.readAllBytes(), UTF_8);
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return new String((byte[]) r.body, UTF_8);
+  }
+
+  @Test
+  public void coalesced() {
+    final RequestCoalescing coalescing = new RequestCoalescing();
+    final Dispatcher dispatcher = dispatcher(coalescing);
+    final CompletionStage<Response> a = get(dispatcher, "/a", null, null);
+    final CompletionStage<Response> b = get(dispatcher, "/a", null, null);
+    final CompletionStage<Response> c = get(dispatcher, "/b", null, null);
+    // each still goes on to its own preconditions
+    final CompletionStage<Response> d = get(dispatcher, "/a", "If-None-Match", "\"1\"");
+    assertEquals(2, pending.size());
+    pending.get(0).complete(true);
+    pending.get(1).complete(true);
+    assertEquals("response 1", body(a));
+    assertEquals("response 1", body(b));
+    assertEquals("response 2", body(c));
+    assertEquals(Status.NOT_MODIFIED, d.toCompletableFuture().join().status);
+    assertEquals(2, coalescing.coalesced());
+
+    // once done, the next request is handled again
+    final CompletionStage<Response> e = get(dispatcher, "/a", null, null);
+    pending.get(2).complete(true);
+    assertEquals("response 3", body(e));
+  }
+
+  @Test
+  public void failed() {
+    final Dispatcher dispatcher = dispatcher(new RequestCoalescing());
+    final CompletionStage<Response> a = get(dispatcher, "/a", null, null);
+    final CompletionStage<Response> b = get(dispatcher, "/a", null, null);
+    pending.get(0).completeExceptionally(Status.SERVICE_UNAVAILABLE.exception("down"));
+    assertEquals(Status.SERVICE_UNAVAILABLE, a.toCompletableFuture().join().status);
+    assertEquals(Status.SERVICE_UNAVAILABLE, b.toCompletableFuture().join().status);
+    assertEquals(1, pending.size());
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "false, Cookie, , 2",
+    "false, Authorization, , 2",
+    "true, Authorization, , 1",
+    "false, Accept, , 1",
+    "false, Accept, 'a=b', 2",
+  })
+  public void separately(
+      final boolean credentials, final String header, final String cookie, final int expected) {
+    this.cookie = cookie;
+    final RequestCoalescing coalescing = new RequestCoalescing();
+    final Dispatcher dispatcher =
+        dispatcher(credentials ? coalescing.withCredentials() : coalescing);
+    final CompletionStage<Response> a = get(dispatcher, "/a", header, "x");
+    final CompletionStage<Response> b = get(dispatcher, "/a", header, "x");
+    pending.get(0).complete(true);
+    if (pending.size() > 1) {
+      pending.get(1).complete(true);
+    }
+    body(a);
+    assertEquals("response " + expected, body(b));
+    assertEquals(expected, pending.size());
+  }
+
+  @Test
+  public void key() {
+    final Dispatcher dispatcher =
+        dispatcher(new RequestCoalescing().withKey(req -> req.url.startsWith("/v1/")));
+    final CompletionStage<Response> a = get(dispatcher, "/v1/a", null, null);
+    final CompletionStage<Response> b = get(dispatcher, "/v1/b", null, null);
+    pending.get(0).complete(true);
+    assertEquals("response 1", body(b));
+    body(a);
+  }
+
+  @Test
+  public void compressed() {
+    final List<Runnable> tasks = new ArrayList<>();
+    final Dispatcher dispatcher =
+        dispatcher(new RequestCoalescing(), new ResponseCompression().withMinSize(1), tasks::add);
+    final CompletionStage<Response> a = get(dispatcher, "/a", "Accept-Encoding", "gzip");
+    final CompletionStage<Response> b = get(dispatcher, "/a", null, null);
+    final CompletionStage<Response> c = get(dispatcher, "/a", "Accept-Encoding", "gzip");
+    pending.get(0).complete(true);
+    pending.get(1).complete(true);
+    assertEquals("gzip response 1", body(a));
+    assertEquals("response 2", body(b));
+    assertEquals("gzip response 1", body(c));
+    assertEquals(List.of(), tasks);
+  }
+
+  @Test
+  public void varies() {
+    vary = "Accept-Language";
+    final List<Runnable> tasks = new ArrayList<>();
+    final Dispatcher dispatcher = dispatcher(new RequestCoalescing(), null, tasks::add);
+    final CompletionStage<Response> a = get(dispatcher, "/a", "Accept-Language", "en");
+    final CompletionStage<Response> b = get(dispatcher, "/a", "Accept-Language", "fr");
+    final CompletionStage<Response> c = get(dispatcher, "/a", "Accept-Language", "en");
+    pending.get(0).complete(true);
+    assertEquals("response 1", body(a));
+    assertEquals("response 1", body(c));
+    // handled again, though not on the thread that completed the first
+    assertEquals(1, pending.size());
+    assertEquals(1, tasks.size());
+    tasks.get(0).run();
+    pending.get(1).complete(true);
+    assertEquals("response 2", body(b));
+  }
+}
@@ -0,0 +1,323 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class RequestParserTest {
+  /** Feed {@code input} to a fresh parser in pieces of {@code step} bytes. */
+  private static List<Request> parse(final String input, final int step) {
+    final RequestParser parser = new RequestParser(UTF_8);
+    final byte[] bytes = input.getBytes(ISO_8859_1);
+    final List<Request> requests = new ArrayList<>();
+    for (int i = 0; i < bytes.length; i += step) {
+      final ByteBuffer buf = ByteBuffer.wrap(bytes, i, Math.min(step, bytes.length - i));
+      for (Request req; (req = parser.parse(buf)) != null; ) {
+        requests.add(req);
+      }
+    }
+    return requests;
+  }
+
+  private static Request parseOne(final String input, final int step) {
+    final List<Request> requests = parse(input, step);
+    assertEquals(1, requests.size());
+    return requests.get(0);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 7, 1024})
+  public void simple(final int step) {
+    final Request req =
+        parseOne("GET /a%20b?x=1&y HTTP/1.1\r\nHost: example.com\r\nX-Foo:  bar \r\n\r\n", step);
+    assertEquals(Method.GET, req.method);
+    assertEquals("/a b", req.url);
+    assertEquals(1, req.majorVersion);
+    assertEquals(1, req.minorVersion);
+    assertEquals(List.of("1"), req.queryParams.get("x"));
+    assertEquals(Optional.of("example.com"), req.headers.request.get(RequestHeader.HOST));
+    assertEquals(Optional.of("bar"), req.headers.get("x-foo"));
+    assertNull(req.body);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 3, 1024})
+  public void whitespace(final int step) {
+    final Request req =
+        parseOne(
+            "\r\n"
+                + "post\t/  HTTP/1.0\r\n"
+                + "X-A: a \t b\r\n"
+                + "X-B: c\r\n"
+                + " \t d\r\n"
+                + "\te\r\n"
+                + "Content-Length: 0\r\n\r\n",
+            step);
+    assertEquals(Method.POST, req.method);
+    assertEquals(0, req.minorVersion);
+    assertEquals(Optional.of("a b"), req.headers.get("X-A"));
+    assertEquals(Optional.of("c d e"), req.headers.get("X-B"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 5, 1024})
+  public void pipelined(final int step) {
+    final List<Request> requests =
+        parse(
+            "POST /1 HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc"
+                + "POST /2 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "3;ext=1\r\ndef\r\n1\r\ng\r\n0\r\nX-Trailer: t\r\n\r\n"
+                + "GET /3 HTTP/1.1\r\n\r\n",
+            step);
+    assertEquals(3, requests.size());
+    assertEquals("/1", requests.get(0).url);
+    assertArrayEquals("abc".getBytes(UTF_8), requests.get(0).body);
+    assertEquals("/2", requests.get(1).url);
+    assertArrayEquals("defg".getBytes(UTF_8), requests.get(1).body);
+    assertEquals(Optional.of("t"), requests.get(1).headers.get("X-Trailer"));
+    assertEquals("/3", requests.get(2).url);
+  }
+
+  public static Stream<Arguments> malformed() {
+    return Stream.of(
+        Arguments.of("\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\rX: y\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\nX: \u0001\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\nX: \u00e9\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\nX y\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\nX : y\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\n: y\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\n foo\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of(" GET / HTTP/1.1\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1 \r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET /a b HTTP/1.1\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / http/1.1\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.10\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/2.0\r\n\r\n", Status.HTTP_VERSION_NOT_SUPPORTED),
+        Arguments.of("FETCH / HTTP/1.1\r\n\r\n", Status.METHOD_NOT_ALLOWED),
+        Arguments.of("GET / HTTP/1.1\r\nHost: a\r\nHost: b\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\nX-A: a\r\nx-a: b\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of("GET / HTTP/1.1\r\nContent-Length: x\r\n\r\n", Status.BAD_REQUEST),
+        Arguments.of(
+            "GET / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1\r\nab\r\n", Status.BAD_REQUEST),
+        Arguments.of(
+            "GET / HTTP/1.1\r\nX: " + "x".repeat(RequestParser.MAX_HEAD_SIZE) + "\r\n\r\n",
+            Status.REQUEST_HEADER_FIELDS_TOO_LARGE));
+  }
+
+  @ParameterizedTest
+  @MethodSource
+  public void malformed(final String input, final Status status) {
+    for (final int step : new int[] {1, 1 << 20}) {
+      assertEquals(
+          status,
+          assertThrows(ErrorResponseException.class, () -> parse(input, step)).status,
+          () -> "step " + step + ": " + input);
+    }
+  }
+
+  @Test
+  public void incomplete() {
+    final RequestParser parser = new RequestParser(UTF_8);
+    assertNull(parser.parse(ByteBuffer.wrap("GET / HTTP/1.1\r\nHost: a\r\n".getBytes(UTF_8))));
+    assertEquals("/", parser.parse(ByteBuffer.wrap("\r\n".getBytes(UTF_8))).url);
+  }
+
+  @Test
+  public void bodySize() {
+    final RequestParser parser =
+        new RequestParser(UTF_8, false, new BodyDecoding().withMaxBodySize(100_000));
+    // nothing held for the length alone; the body grows as it arrives
+    assertNull(
+        parser.parse(
+            ByteBuffer.wrap("POST / HTTP/1.1\r\nContent-Length: 40000\r\n\r\nab".getBytes(UTF_8))));
+    final byte[] rest = new byte[39998];
+    Arrays.fill(rest, (byte) 'c');
+    final Request req = parser.parse(ByteBuffer.wrap(rest));
+    assertEquals(40000, req.body.length);
+    assertEquals("abc", new String(req.body, 0, 3, UTF_8));
+
+    assertEquals(
+        Status.PAYLOAD_TOO_LARGE,
+        assertThrows(
+                ErrorResponseException.class,
+                () -> parseOne("POST / HTTP/1.1\r\nContent-Length: 2000000000\r\n\r\n", 1024))
+            .status);
+    final RequestParser chunked =
+        new RequestParser(UTF_8, false, new BodyDecoding().withMaxBodySize(4));
+    assertEquals(
+        Status.PAYLOAD_TOO_LARGE,
+        assertThrows(
+                ErrorResponseException.class,
+                () ->
+                    chunked.parse(
+                        ByteBuffer.wrap(
+                            "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n3\r\ndef\r\n"
+                                .getBytes(UTF_8))))
+            .status);
+  }
+
+  /** Stream the bodies of {@code input}, fed in pieces of {@code step} bytes, into strings. */
+  private static List<String> stream(final byte[] input, final int step) throws IOException {
+    final RequestParser parser = new RequestParser(UTF_8, true);
+    final List<String> bodies = new ArrayList<>();
+    final int[] at = {0};
+    final ByteBuffer[] buf = {ByteBuffer.allocate(0)};
+    final Supplier<ByteBuffer> next =
+        () -> {
+          final int n = Math.min(step, input.length - at[0]);
+          buf[0] = ByteBuffer.wrap(input, at[0], n);
+          at[0] += n;
+          return buf[0];
+        };
+    while (true) {
+      Request req;
+      while ((req = parser.parse(buf[0])) == null) {
+        if (at[0] == input.length) {
+          return bodies;
+        }
+        next.get();
+      }
+      if (!parser.streamingBody()) {
+        bodies.add("");
+        continue;
+      }
+      req.bodySource =
+          new BodyStream() {
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+              int n;
+              while ((n = parser.body(buf[0], b, off, len)) == 0) {
+                next.get();
+              }
+              return n;
+            }
+
+            @Override
+            boolean drainBuffered() {
+              return false;
+            }
+          };
+      bodies.add(new String(req.getBodyStream().readAllBytes(), UTF_8));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 5, 1024})
+  public void streamed(final int step) throws IOException {
+    final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (OutputStream os = new GZIPOutputStream(gzipped)) {
+      os.write("zipped".getBytes(UTF_8));
+    }
+    final byte[] gz = gzipped.toByteArray();
+
+    final ByteArrayOutputStream input = new ByteArrayOutputStream();
+    input.write("POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc".getBytes(UTF_8));
+    input.write("GET / HTTP/1.1\r\n\r\n".getBytes(UTF_8));
+    input.write(
+        "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2;x=y\r\nde\r\n2\r\nfg\r\n0\r\nX: 1\r\n\r\n"
+            .getBytes(UTF_8));
+    input.write(
+        ("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"
+                + Integer.toHexString(gz.length)
+                + "\r\n")
+            .getBytes(UTF_8));
+    input.write(gz);
+    input.write("\r\n0\r\n\r\n".getBytes(UTF_8));
+    assertEquals(List.of("abc", "", "defg", "zipped"), stream(input.toByteArray(), step));
+  }
+
+  private static Request parseCoded(
+      final String contentEncoding, final byte[] body, final BodyDecoding decoding) {
+    final byte[] head =
+        ("POST / HTTP/1.1\r\nContent-Encoding: "
+                + contentEncoding
+                + "\r\nContent-Length: "
+                + body.length
+                + "\r\n\r\n")
+            .getBytes(UTF_8);
+    final ByteBuffer buf = ByteBuffer.allocate(head.length + body.length).put(head).put(body);
+    return new RequestParser(UTF_8, false, decoding).parse(buf.flip());
+  }
+
+  @Test
+  public void contentCodings() throws IOException {
+    final byte[] br = BrotliInputStreamTest.resource("gpl.q11.br");
+    final byte[] gz = BrotliInputStreamTest.resource("gpl.gz");
+    final BodyDecoding decoding = new BodyDecoding().withContentCodings();
+
+    final Request req = parseCoded("br", br, decoding);
+    assertEquals(Optional.empty(), req.headers.entity.get(EntityHeader.CONTENT_ENCODING));
+    assertArrayEquals(parseCoded("gzip", gz, decoding).body, req.body);
+    assertArrayEquals(br, parseCoded("br", br, new BodyDecoding()).body);
+
+    final byte[] zeros = BrotliInputStreamTest.resource("zeros.br");
+    assertEquals(
+        Status.UNSUPPORTED_MEDIA_TYPE,
+        assertThrows(ErrorResponseException.class, () -> parseCoded("compress", br, decoding))
+            .status);
+    assertEquals(
+        Status.PAYLOAD_TOO_LARGE,
+        assertThrows(ErrorResponseException.class, () -> parseCoded("br", zeros, decoding)).status,
+        "ratio");
+    assertEquals(
+        Status.PAYLOAD_TOO_LARGE,
+        assertThrows(
+                ErrorResponseException.class,
+                () ->
+                    parseCoded(
+                        "gzip",
+                        gz,
+                        new BodyDecoding().withContentCodings().withMaxDecodedSize(1000)))
+            .status,
+        "size");
+    assertEquals(
+        Status.BAD_REQUEST,
+        assertThrows(
+                ErrorResponseException.class,
+                () -> parseCoded("br", Arrays.copyOf(br, br.length / 2), decoding))
+            .status);
+  }
+
+  @Test
+  public void responseStreamFramesChunks() throws IOException {
+    final ByteArrayOutputStream input = new ByteArrayOutputStream();
+    input.write("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(UTF_8));
+    final ResponseStream out =
+        new ResponseStream(
+            buf -> input.write(buf.array(), buf.position(), buf.remaining()), true, -1);
+    out.write("ab".getBytes(UTF_8));
+    out.flush();
+    out.write(new byte[10000]);
+    out.trailers.add("X-Checksum", "1");
+    out.close();
+
+    final byte[] bytes = input.toByteArray();
+    assertEquals(
+        "2\r\nab\r\n", new String(bytes, 47, 7, UTF_8), "flushed data is sent as its own chunk");
+    final Request req = parseOne(new String(bytes, ISO_8859_1), 1000);
+    assertEquals(10002, req.getBody(byte[].class).length);
+  }
+}
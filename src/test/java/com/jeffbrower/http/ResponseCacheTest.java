@@ -0,0 +1,195 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class ResponseCacheTest {
+  private final AtomicInteger handled = new AtomicInteger();
+  private final AtomicInteger serialized = new AtomicInteger();
+  private String cacheControl = "max-age=60";
+  private String vary;
+  private String cookie;
+
+  private Dispatcher dispatcher(final ResponseCache cache) {
+    final List<Map.Entry<RequestMatcher, RequestHandler>> handlers =
+        Collections.singletonList(
+            Map.entry(
+                req -> true,
+                (req, res) -> {
+                  final int n = handled.incrementAndGet();
+                  // decodes the query, which the cache must still key by
+                  req.queryParams.size();
+                  res.headers.general.replace(GeneralHeader.CACHE_CONTROL, cacheControl);
+                  res.headers.response.replace(ResponseHeader.VARY, vary);
+                  res.headers.response.replace(ResponseHeader.SET_COOKIE, cookie);
+                  res.serializer =
+                      r -> {
+                        serialized.incrementAndGet();
+                        return (r.body + " " + req.url).getBytes(UTF_8);
+                      };
+                  res.body = n;
+                  return true;
+                }));
+    return new Dispatcher(handlers, null, null, cache, null, null, null, null, Runnable::run);
+  }
+
+  private static Response get(
+      final Dispatcher dispatcher, final String url, final String header, final String value) {
+    final Request req = new Request();
+    req.method = Method.GET;
+    req.url = url;
+    if (header != null) {
+      req.headers.add(header, value);
+    }
+    return dispatcher.respond(req, null).toCompletableFuture().join();
+  }
+
+  private static String body(final Response res) {
+    return new String(res.serializeBody(), UTF_8);
+  }
+
+  @Test
+  public void hit() {
+    final Dispatcher dispatcher = dispatcher(new ResponseCache(1 << 20));
+    final Response first = get(dispatcher, "/a", null, null);
+    final Response second = get(dispatcher, "/a", null, null);
+    assertEquals(1, handled.get());
+    assertEquals(1, serialized.get());
+    assertEquals("1 /a", body(second));
+    assertEquals("0", second.headers.response.get(ResponseHeader.AGE).get());
+    assertEquals("max-age=60", second.headers.general.get(GeneralHeader.CACHE_CONTROL).get());
+    assertArrayEquals((byte[]) first.body, (byte[]) second.body);
+    assertEquals("2 /b", body(get(dispatcher, "/b", null, null)));
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "'no-store, max-age=60', , , , 2",
+    "'private, max-age=60', , , , 2",
+    "'max-age=0', , , , 2",
+    "'public', , , , 2",
+    "'max-age=60', , 'a=b', , 2",
+    "'max-age=60', , , Authorization, 2",
+    "'public, max-age=60', , , Authorization, 1",
+    "'s-maxage=60', , , Authorization, 1",
+    "'max-age=60', Accept-Language, , Accept-Language, 2",
+    "'max-age=60', Accept-Language, , Accept, 1",
+    "'max-age=60', *, , , 2",
+  })
+  public void stored(
+      final String cacheControl,
+      final String vary,
+      final String cookie,
+      final String header,
+      final int expected) {
+    this.cacheControl = cacheControl;
+    this.vary = vary;
+    this.cookie = cookie;
+    final Dispatcher dispatcher = dispatcher(new ResponseCache(1 << 20));
+    get(dispatcher, "/a", header, "one");
+    final Response res = get(dispatcher, "/a", header, "two");
+    assertEquals(expected, handled.get());
+    assertEquals(expected + " /a", body(res));
+  }
+
+  @Test
+  public void query() {
+    final Dispatcher dispatcher = dispatcher(new ResponseCache(1 << 20));
+    for (final String q : new String[] {"x=1", "x=2", "x=1"}) {
+      final Request req = new Request();
+      req.method = Method.GET;
+      req.url = "/a";
+      req.query(q.getBytes(UTF_8), UTF_8);
+      dispatcher.respond(req, null).toCompletableFuture().join();
+    }
+    assertEquals(2, handled.get());
+  }
+
+  @Test
+  public void variants() {
+    vary = "Accept-Language";
+    final ResponseCache cache = new ResponseCache(1 << 20);
+    final Dispatcher dispatcher = dispatcher(cache);
+    assertEquals("1 /a", body(get(dispatcher, "/a", "Accept-Language", "en")));
+    assertEquals("2 /a", body(get(dispatcher, "/a", "Accept-Language", "fr")));
+    assertEquals("3 /a", body(get(dispatcher, "/a", null, null)));
+    assertEquals("1 /a", body(get(dispatcher, "/a", "accept-language", "en")));
+    assertEquals("2 /a", body(get(dispatcher, "/a", "Accept-Language", "fr")));
+    assertEquals("3 /a", body(get(dispatcher, "/a", null, null)));
+    assertEquals(3, cache.hits());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void staleWhileRevalidate() throws InterruptedException {
+    cacheControl = "max-age=1, stale-while-revalidate=60";
+    final Dispatcher dispatcher = dispatcher(new ResponseCache(1 << 20));
+    get(dispatcher, "/a", null, null);
+    Thread.sleep(1100);
+    // answered stale, and handled again in the meantime
+    assertEquals("1 /a", body(get(dispatcher, "/a", null, null)));
+    assertEquals(2, handled.get());
+    assertEquals("2 /a", body(get(dispatcher, "/a", null, null)));
+    assertEquals(2, handled.get());
+  }
+
+  @Test
+  public void scanResistant() {
+    // room for a few entries, in one segment
+    final ResponseCache cache = new ResponseCache(1000);
+    final Dispatcher dispatcher = dispatcher(cache);
+    get(dispatcher, "/hot", null, null);
+    get(dispatcher, "/hot", null, null);
+    for (int i = 0; i < 20; i++) {
+      get(dispatcher, "/cold" + i, null, null);
+    }
+    final int before = handled.get();
+    assertEquals("1 /hot", body(get(dispatcher, "/hot", null, null)));
+    assertEquals(before, handled.get());
+    assertFalse(cache.size() > 1000 / 128);
+  }
+
+  @Test
+  public void missNotPromoted() {
+    vary = "Accept-Language";
+    final ResponseCache cache = new ResponseCache(1000);
+    final Dispatcher dispatcher = dispatcher(cache);
+    get(dispatcher, "/a", "Accept-Language", "en");
+    // lookups under the same key that no variant answers
+    cacheControl = "no-store";
+    for (int i = 0; i < 5; i++) {
+      get(dispatcher, "/a", "Accept-Language", "fr");
+    }
+    cacheControl = "max-age=60";
+    vary = null;
+    for (int i = 0; i < 20; i++) {
+      get(dispatcher, "/cold" + i, null, null);
+    }
+    final int before = handled.get();
+    get(dispatcher, "/a", "Accept-Language", "en");
+    assertEquals(before + 1, handled.get());
+  }
+
+  @Test
+  public void expiredDropped() throws InterruptedException {
+    cacheControl = "max-age=1";
+    final ResponseCache cache = new ResponseCache(1 << 20);
+    final Dispatcher dispatcher = dispatcher(cache);
+    get(dispatcher, "/a", null, null);
+    assertEquals(1, cache.size());
+    Thread.sleep(1100);
+    cacheControl = "no-store";
+    assertEquals("2 /a", body(get(dispatcher, "/a", null, null)));
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,80 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class ResponseCompressionTest {
+  private static final ResponseCompression COMPRESSION = new ResponseCompression().withMinSize(100);
+  private static final String LONG = new String(new char[200]).replace('\0', 'x');
+
+  @ParameterizedTest
+  @CsvSource({
+    "gzip, application/json, 200, gzip",
+    "'deflate, gzip;q=0.5', application/json, 200, deflate",
+    "'deflate;q=0.5, gzip;q=0.5', application/json, 200, gzip",
+    "'*;q=0.1, deflate;q=0', application/json, 200, gzip",
+    "'gzip;q=0, deflate;q=0', application/json, 200, ",
+    "br, application/json, 200, ",
+    "'gzip;q=x', application/json, 200, ",
+    "'gzip;q=2, deflate', application/json, 200, deflate",
+    "'gzip;q', application/json, 200, ",
+    ", application/json, 200, ",
+    "gzip, application/problem+json;charset=utf-8, 200, gzip",
+    "gzip, TEXT/HTML, 200, gzip",
+    "gzip, image/png, 200, ",
+    "gzip, text/plain, 50, ",
+  })
+  public void negotiates(
+      final String acceptEncoding, final String contentType, final int size, final String expected)
+      throws IOException {
+    final Request req = new Request();
+    if (acceptEncoding != null) {
+      req.headers.request.add(RequestHeader.ACCEPT_ENCODING, acceptEncoding);
+    }
+    final Response res = new Response(req);
+    res.headers.entity.add(EntityHeader.CONTENT_TYPE, contentType);
+    final String body = LONG.substring(0, size);
+    res.body = body.getBytes(UTF_8);
+    COMPRESSION.apply(res);
+
+    assertEquals(expected, res.headers.entity.get(EntityHeader.CONTENT_ENCODING).orElse(null));
+    if (expected == null) {
+      assertEquals(body, new String((byte[]) res.body, UTF_8));
+      return;
+    }
+    assertEquals("Accept-Encoding", res.headers.response.get(ResponseHeader.VARY).get());
+    final ByteBuffer buf = (ByteBuffer) res.body;
+    final InputStream raw = new ByteArrayInputStream(buf.array(), buf.position(), buf.remaining());
+    try (InputStream in =
+        "gzip".equals(expected) ? new GZIPInputStream(raw) : new InflaterInputStream(raw)) {
+      assertEquals(body, new String(in.readAllBytes(), UTF_8));
+    }
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "gzip, '\"abc\"', '\"abc-gzip\"'",
+    "deflate, '\"abc\"', '\"abc-deflate\"'",
+    "gzip, 'W/\"abc\"', 'W/\"abc\"'",
+    "identity, '\"abc\"', '\"abc\"'",
+  })
+  public void etag(final String acceptEncoding, final String etag, final String expected) {
+    final Request req = new Request();
+    req.headers.request.add(RequestHeader.ACCEPT_ENCODING, acceptEncoding);
+    final Response res = new Response(req);
+    res.headers.entity.add(EntityHeader.CONTENT_TYPE, "text/plain");
+    res.headers.response.add(ResponseHeader.ETAG, etag);
+    res.body = LONG.getBytes(UTF_8);
+    COMPRESSION.apply(res);
+    assertEquals(expected, res.headers.response.get(ResponseHeader.ETAG).get());
+  }
+}
@@ -0,0 +1,62 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ResponseEncoderTest {
+  private static String head(final Response res) throws IOException {
+    final ByteBuffer head = ResponseEncoder.encode(res, true)[0];
+    return new String(head.array(), head.position(), head.remaining(), US_ASCII);
+  }
+
+  @Test
+  public void head() throws IOException {
+    final Response res = new Response(new Request());
+    res.status = Status.NOT_FOUND;
+    res.headers.general.add(GeneralHeader.DATE, "Thu, 01 Jan 1970 00:00:00 GMT");
+    res.headers.entity.add(EntityHeader.CONTENT_TYPE, "text/plain");
+    res.headers.add("X-Trace", "abc");
+    res.body = new byte[3];
+    assertEquals(
+        "HTTP/1.1 404 Not Found\r\n"
+            + "Date: Thu, 01 Jan 1970 00:00:00 GMT\r\n"
+            + "Content-Length: 3\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "X-Trace: abc\r\n"
+            + "\r\n",
+        head(res));
+  }
+
+  @Test
+  public void date() throws IOException {
+    final Response res = new Response(new Request());
+    final String date = ResponseEncoder.date();
+    final String head = head(res);
+    // unless the second changed in between
+    if (date.equals(ResponseEncoder.date())) {
+      assertEquals("HTTP/1.1 200 OK\r\nDate: " + date + "\r\nContent-Length: 0\r\n\r\n", head);
+    }
+  }
+
+  @Test
+  public void nonAscii(@TempDir final Path dir) throws IOException {
+    final Response res = new Response(new Request());
+    res.headers.add("X-Name", "caf\u00e9");
+    assertThrows(CharacterCodingException.class, () -> head(res));
+
+    // a file opened for the body is closed again
+    res.body = Files.write(dir.resolve("a.txt"), new byte[3]);
+    assertThrows(CharacterCodingException.class, () -> head(res));
+    assertFalse(((FileRegion) res.body).channel.isOpen());
+  }
+}
@@ -0,0 +1,206 @@
+package com.jeffbrower.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class RouterTest {
+  private final List<Map.Entry<RequestMatcher, RequestHandler>> handlers = new ArrayList<>();
+  private final List<String> log = new ArrayList<>();
+
+  /** Register a handler that logs its name and returns {@code handled}. */
+  private void route(final String name, final RequestMatcher matcher, final boolean handled) {
+    handlers.add(
+        Map.entry(
+            matcher,
+            (req, res) -> {
+              log.add(name + req.pathParams);
+              return handled;
+            }));
+  }
+
+  private List<String> dispatch(final Method method, final String url) {
+    final Request req = new Request();
+    req.method = method;
+    req.url = url;
+    log.clear();
+    if (!new Router(handlers).handle(req, new Response(req)).toCompletableFuture().join()) {
+      log.add("404");
+    }
+    final List<String> routed = new ArrayList<>(log);
+
+    // the same through a cache, once missing and once hitting
+    final RouteCache cache = new RouteCache(16);
+    final Router cached = new Router(handlers, cache);
+    for (int i = 0; i < 2; i++) {
+      final Request again = new Request();
+      again.method = method;
+      again.url = url;
+      log.clear();
+      if (!cached.handle(again, new Response(again)).toCompletableFuture().join()) {
+        log.add("404");
+      }
+      assertEquals(routed, log);
+    }
+    assertEquals(cache.misses(), cache.hits());
+
+    // the same as trying every matcher in turn
+    final Request linear = new Request();
+    linear.method = method;
+    linear.url = url;
+    final Response res = new Response(linear);
+    log.clear();
+    boolean handled = false;
+    for (final Map.Entry<RequestMatcher, RequestHandler> e : handlers) {
+      if (e.getKey().matches(linear) && e.getValue().handle(linear, res)) {
+        handled = true;
+        break;
+      }
+    }
+    if (!handled) {
+      log.add("404");
+    }
+    assertEquals(log, routed);
+    return routed;
+  }
+
+  private void routes() {
+    route("filter", RequestMatcher.all(), false);
+    route("get", Method.GET.and(PathMatcher.of("/a/{x}")), false);
+    route("lambda", req -> req.url.endsWith("/b"), false);
+    route("post", Method.POST.or(Method.PUT).and(PathMatcher.of("/a/{y}")), true);
+    route("ci", PathMatcher.ofIgnoreCase("/A/b"), false);
+    route("regex", PathMatcher.of("/a/{z:\\d+}"), true);
+    route("both", PathMatcher.of("/{p}/b").and(PathMatcher.of("/a/{q}")), true);
+    route("last", PathMatcher.of("/a/b/"), true);
+    route("digit", Method.DELETE.and(PathMatcher.of("/n/{i[0,9]}")), true);
+    route("any", PathMatcher.of("/n/{j}"), true);
+  }
+
+  @ParameterizedTest
+  @CsvSource(
+      delimiter = '|',
+      value = {
+        "GET|/a/b|filter{}, get{x=b}, lambda{x=b}, ci{x=b}, both{p=a, q=b, x=b}",
+        "POST|/a/b|filter{}, lambda{}, post{y=b}",
+        "PUT|/A/B|filter{}, ci{}, 404",
+        "GET|/a/1|filter{}, get{x=1}, regex{x=1, z=1}",
+        "GET|/a/|filter{}, 404",
+        "GET|/a/b/|filter{}, last{}",
+        "DELETE|/x/b|filter{}, lambda{}, 404",
+        "DELETE|/n/5|filter{}, digit{i=5}",
+        "DELETE|/n/50|filter{}, any{j=50}",
+      })
+  public void order(final Method method, final String url, final String expected) {
+    routes();
+    assertEquals(expected, String.join(", ", dispatch(method, url)));
+  }
+
+  @ParameterizedTest
+  @CsvSource({"GET, /a", "POST, /b"})
+  public void orAnyMethod(final Method method, final String url) {
+    route("left", RequestMatcher.all().or(Method.PUT), false);
+    route("right", Method.PUT.or(RequestMatcher.all()), true);
+    assertEquals(List.of("left{}", "right{}"), dispatch(method, url));
+  }
+
+  @Test
+  public void rewrite() {
+    route(
+        "rewrite",
+        PathMatcher.of("/old"),
+        (req, res) -> {
+          req.url = "/new";
+          return false;
+        });
+    route("new", PathMatcher.of("/new"), true);
+    assertEquals(List.of("new{}"), dispatch(Method.GET, "/old"));
+  }
+
+  @ParameterizedTest
+  @CsvSource(
+      delimiter = '|',
+      value = {
+        "GET|/a/b|seen json xml",
+        "GET|/a/z|seen json xml",
+        "POST|/a/b|seen xml xml",
+        "GET|/c|seen text xml",
+        "GET|/a/b/c|seen text xml",
+      })
+  public void middleware(final Method method, final String url, final String expected) {
+    final Serializer json = res -> null;
+    final Serializer text = res -> null;
+    final Mapper xml =
+        new Mapper() {
+          @Override
+          public byte[] serialize(final Response res) {
+            return null;
+          }
+
+          @Override
+          public <T> T deserialize(final Request req, final Class<? extends T> clazz) {
+            return null;
+          }
+        };
+    final Map<Object, String> names = Map.of(json, "json", text, "text", xml, "xml");
+    route("mapper", RequestMatcher.all(), new Middleware(xml, xml));
+    route("text", RequestMatcher.all(), new Middleware(text, null));
+    route("json", PathMatcher.of("/a/{x}"), new Middleware(json, null));
+    route("xml", Method.POST.and(PathMatcher.of("/a/b")), new Middleware(xml, null));
+    route(
+        "seen",
+        RequestMatcher.all(),
+        (req, res) -> {
+          log.add("seen " + names.get(res.serializer) + " " + names.get(req.deserializer));
+          return true;
+        });
+    assertEquals(expected, String.join(", ", dispatch(method, url)));
+  }
+
+  @Test
+  public void async() {
+    final CompletableFuture<Boolean> pending = new CompletableFuture<>();
+    route("async", PathMatcher.of("/a/{x}"), new AsyncHandler((req, res) -> pending));
+    route("next", RequestMatcher.all(), true);
+    final Request req = new Request();
+    req.method = Method.GET;
+    req.url = "/a/b";
+    final CompletableFuture<Boolean> handled =
+        new Router(handlers).handle(req, new Response(req)).toCompletableFuture();
+    assertFalse(handled.isDone());
+    assertEquals(List.of(), log);
+
+    pending.complete(false);
+    assertTrue(handled.join());
+    assertEquals(List.of("next{x=b}"), log);
+  }
+
+  @Test
+  public void cacheEvicts() {
+    routes();
+    final RouteCache cache = new RouteCache(2);
+    final Router router = new Router(handlers, cache);
+    for (final String url : List.of("/a/1", "/a/2", "/a/1", "/a/3", "/a/2")) {
+      final Request req = new Request();
+      req.method = Method.GET;
+      req.url = url;
+      router.handle(req, new Response(req));
+    }
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.hits());
+    assertEquals(4, cache.misses());
+  }
+
+  private void route(
+      final String name, final RequestMatcher matcher, final RequestHandler handler) {
+    handlers.add(Map.entry(matcher, handler));
+  }
+}
@@ -0,0 +1,584 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Each test runs a server on a loopback port, on the blocking transport and on the selector. */
+public class ServerTest {
+  /** Start a server on a free port, in the background, and wait until it accepts connections. */
+  private static int start(final Server server, final boolean selector) throws Exception {
+    final int port;
+    try (ServerSocket s = new ServerSocket(0)) {
+      port = s.getLocalPort();
+    }
+    if (selector) {
+      server.withSelectorTransport(1);
+    }
+    final Thread t = new Thread(server.withPort(port));
+    t.setDaemon(true);
+    t.start();
+    for (int attempt = 0; ; attempt++) {
+      try {
+        new Socket(InetAddress.getLoopbackAddress(), port).close();
+        return port;
+      } catch (final ConnectException e) {
+        if (attempt == 100) {
+          throw e;
+        }
+        Thread.sleep(20);
+      }
+    }
+  }
+
+  /** A response as read off the wire. */
+  static final class Reply {
+    final int status;
+    // lowercase names
+    final Map<String, String> headers = new HashMap<>();
+    String body;
+
+    Reply(final int status) {
+      this.status = status;
+    }
+  }
+
+  /** A client connection that reads responses as they are framed. */
+  static final class Client implements Closeable {
+    final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    Client(final int port) throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      socket.setSoTimeout(10_000);
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+    }
+
+    Client send(final String s) throws IOException {
+      out.write(s.getBytes(ISO_8859_1));
+      out.flush();
+      return this;
+    }
+
+    Client get(final String url) throws IOException {
+      return send("GET " + url + " HTTP/1.1\r\nHost: a\r\n\r\n");
+    }
+
+    private String line() throws IOException {
+      final StringBuilder b = new StringBuilder();
+      for (int c; (c = in.read()) != '\n'; ) {
+        if (c == -1) {
+          throw new IOException("Connection closed in a response head");
+        }
+        if (c != '\r') {
+          b.append((char) c);
+        }
+      }
+      return b.toString();
+    }
+
+    private byte[] bytes(final int n) throws IOException {
+      final byte[] b = in.readNBytes(n);
+      if (b.length != n) {
+        throw new IOException("Connection closed in a response body");
+      }
+      return b;
+    }
+
+    /** The next response; its body is read by HEAD only if {@code head} is unset. */
+    Reply read(final boolean head) throws IOException {
+      final String statusLine = line();
+      final Reply reply = new Reply(Integer.parseInt(statusLine.split(" ")[1]));
+      for (String line; !(line = line()).isEmpty(); ) {
+        final int colon = line.indexOf(':');
+        reply.headers.put(
+            line.substring(0, colon).toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+      }
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if (head) {
+        // no body, whatever the head says
+      } else if ("chunked".equals(reply.headers.get("transfer-encoding"))) {
+        for (int size; (size = Integer.parseInt(line(), 16)) != 0; ) {
+          body.write(bytes(size));
+          line();
+        }
+        line();
+      } else if (reply.headers.containsKey("content-length")) {
+        body.write(bytes(Integer.parseInt(reply.headers.get("content-length"))));
+      } else {
+        body.write(in.readAllBytes());
+      }
+      reply.body = body.toString("UTF-8");
+      return reply;
+    }
+
+    Reply read() throws IOException {
+      return read(false);
+    }
+
+    /** Whether the server closed the connection, rather than sending anything more. */
+    boolean closed() {
+      try {
+        return in.read() == -1;
+      } catch (final IOException e) {
+        // reset
+        return true;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void concurrent(final boolean selector) throws Exception {
+    // each handler waits for the others, so this only completes if all run at once
+    final CyclicBarrier barrier = new CyclicBarrier(3);
+    final Server server = new Server();
+    if (selector) {
+      // the default pool has a thread per CPU, which may be fewer
+      server.withWorkerPool(3, 16);
+    }
+    final int port =
+        start(
+            server.handle(
+                RequestMatcher.all(),
+                (req, res) -> {
+                  try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                  } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                  }
+                  res.stringBody(req.url);
+                  return true;
+                }),
+            selector);
+    final List<Client> clients = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      clients.add(new Client(port).get("/" + i));
+    }
+    for (int i = 0; i < 3; i++) {
+      try (Client c = clients.get(i)) {
+        final Reply reply = c.read();
+        assertEquals(200, reply.status);
+        assertEquals("/" + i, reply.body);
+      }
+    }
+  }
+
+  @Test
+  public void workerPoolSheds() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final int port =
+        start(
+            new Server()
+                .withWorkerPool(1, 1)
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      started.countDown();
+                      try {
+                        release.await(10, TimeUnit.SECONDS);
+                      } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                      }
+                      res.stringBody(req.url);
+                      return true;
+                    }),
+            false);
+    // each closed after one request, so as not to hold the only worker
+    final String close = " HTTP/1.1\r\nConnection: close\r\n\r\n";
+    try (Client busy = new Client(port).send("GET /busy" + close)) {
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      try (Client queued = new Client(port).send("GET /queued" + close);
+          Client shed = new Client(port)) {
+        // the only worker is busy, and the queue has room for just one connection
+        assertTrue(shed.closed());
+        release.countDown();
+        assertEquals("/busy", busy.read().body);
+        assertEquals("/queued", queued.read().body);
+      }
+    }
+    try (Client later = new Client(port).send("GET /later" + close)) {
+      assertEquals("/later", later.read().body);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void errorHandlerFails(final boolean selector) throws Exception {
+    final int port =
+        start(
+            new Server()
+                .withErrorHandler(
+                    (req, res, t) -> {
+                      throw new IllegalStateException("error handler failed");
+                    })
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      if (req.url.equals("/fail")) {
+                        throw new IllegalStateException("handler failed");
+                      }
+                      res.stringBody("ok");
+                      return true;
+                    }),
+            selector);
+    try (Client c = new Client(port).get("/fail")) {
+      assertTrue(c.closed());
+    }
+    try (Client c = new Client(port).get("/")) {
+      assertEquals("ok", c.read().body);
+    }
+  }
+
+  private static Server echo() {
+    return new Server()
+        .handle(
+            RequestMatcher.all(),
+            (req, res) -> {
+              res.stringBody(req.url);
+              return true;
+            });
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void connectionClose(final boolean selector) throws Exception {
+    final int port = start(echo(), selector);
+    try (Client c = new Client(port)) {
+      c.send("GET /a HTTP/1.1\r\nConnection: close\r\n\r\n");
+      final Reply reply = c.read();
+      assertEquals("/a", reply.body);
+      assertEquals("close", reply.headers.get("connection"));
+      assertTrue(c.closed());
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void http10KeepAlive(final boolean selector) throws Exception {
+    final int port = start(echo(), selector);
+    try (Client c = new Client(port)) {
+      c.send("GET /a HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+      Reply reply = c.read();
+      assertEquals("/a", reply.body);
+      assertEquals("keep-alive", reply.headers.get("connection"));
+      c.send("GET /b HTTP/1.0\r\n\r\n");
+      reply = c.read();
+      assertEquals("/b", reply.body);
+      assertEquals("close", reply.headers.get("connection"));
+      assertTrue(c.closed());
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void maxRequestsPerConnection(final boolean selector) throws Exception {
+    final int port = start(echo().withMaxRequestsPerConnection(2), selector);
+    try (Client c = new Client(port)) {
+      assertEquals(null, c.get("/a").read().headers.get("connection"));
+      final Reply reply = c.get("/b").read();
+      assertEquals("/b", reply.body);
+      assertEquals("close", reply.headers.get("connection"));
+      assertTrue(c.closed());
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void idleTimeout(final boolean selector) throws Exception {
+    final int port = start(echo().withIdleTimeout(Duration.ofMillis(200)), selector);
+    try (Client c = new Client(port)) {
+      assertEquals("/a", c.get("/a").read().body);
+      final long start = System.nanoTime();
+      assertTrue(c.closed());
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void pipelinedInOrder(final boolean selector) throws Exception {
+    final CompletableFuture<Boolean> slow = new CompletableFuture<>();
+    final CountDownLatch fastHandled = new CountDownLatch(2);
+    final int port =
+        start(
+            new Server()
+                .handleAsync(
+                    PathMatcher.of("/slow"),
+                    (req, res) -> {
+                      res.stringBody("slow");
+                      return slow;
+                    })
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      fastHandled.countDown();
+                      res.stringBody(req.url);
+                      return true;
+                    }),
+            selector);
+    try (Client c = new Client(port)) {
+      c.send("GET /slow HTTP/1.1\r\n\r\nGET /fast HTTP/1.1\r\n\r\nGET /faster HTTP/1.1\r\n\r\n");
+      if (selector) {
+        // safe requests are handled alongside the slow one, but still answered after it
+        assertTrue(fastHandled.await(10, TimeUnit.SECONDS));
+      } else {
+        Thread.sleep(100);
+      }
+      slow.complete(true);
+      assertEquals("slow", c.read().body);
+      assertEquals("/fast", c.read().body);
+      assertEquals("/faster", c.read().body);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void backpressure(final boolean selector) throws Exception {
+    final byte[] big = new byte[1024 * 1024];
+    final AtomicInteger handled = new AtomicInteger();
+    final int port =
+        start(
+            new Server()
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      handled.incrementAndGet();
+                      res.body = big;
+                      return true;
+                    }),
+            selector);
+    final int requests = 64;
+    try (Client c = new Client(port)) {
+      final StringBuilder b = new StringBuilder();
+      for (int i = 0; i < requests; i++) {
+        b.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+      }
+      c.send(b.toString());
+      // while the client reads nothing, the server stops taking requests
+      Thread.sleep(500);
+      assertTrue(handled.get() < requests, handled.get() + " handled");
+      for (int i = 0; i < requests; i++) {
+        assertEquals(big.length, c.read().body.length());
+      }
+      assertEquals(requests, handled.get());
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void pipelinedAfterStreamedBody(final boolean selector) throws Exception {
+    final int port =
+        start(
+            new Server()
+                .withStreamingBodies()
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      try {
+                        res.stringBody(
+                            req.url + " " + new String(req.getBodyStream().readAllBytes(), UTF_8));
+                      } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                      }
+                      return true;
+                    }),
+            selector);
+    try (Client c = new Client(port)) {
+      for (int i = 0; i < 100; i++) {
+        c.send("POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+        c.get("/b" + i);
+        assertEquals("/a hello", c.read().body);
+        assertEquals("/b" + i + " ", c.read().body);
+      }
+    }
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // for the streamed body in pipelinedAsStreamedBodyEnds
+  private volatile CountDownLatch bodyStarted;
+  private volatile CountDownLatch finishBody;
+  private volatile CountDownLatch bodyFinished;
+
+  @Test
+  public void pipelinedAsStreamedBodyEnds() throws Exception {
+    // runs once on the event loop before the next request is handed over
+    final AtomicReference<Runnable> hook = new AtomicReference<>();
+    final int port =
+        start(
+            new Server()
+                .withStreamingBodies()
+                .withExecutor(
+                    r -> {
+                      final Runnable h = hook.getAndSet(null);
+                      if (h != null) {
+                        h.run();
+                      }
+                      new Thread(r).start();
+                    })
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      if (!req.url.equals("/y")) {
+                        res.stringBody(req.url);
+                        return true;
+                      }
+                      try {
+                        final InputStream body = req.getBodyStream();
+                        res.stringBody(new String(body.readNBytes(5), UTF_8));
+                        bodyStarted.countDown();
+                        await(finishBody);
+                        if (body.read() != -1) {
+                          throw new IllegalStateException("Body too long");
+                        }
+                      } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                      }
+                      bodyFinished.countDown();
+                      return true;
+                    }),
+            true);
+
+    // the loop reads x and y together, in either order; when x comes first, handing over its
+    // request ends y's body just before y's next request is read
+    for (int attempt = 0; attempt < 10; attempt++) {
+      bodyStarted = new CountDownLatch(1);
+      finishBody = new CountDownLatch(1);
+      bodyFinished = new CountDownLatch(1);
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch unblock = new CountDownLatch(1);
+      try (Client x = new Client(port);
+          Client y = new Client(port);
+          Client z = new Client(port)) {
+        y.send("POST /y HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+        await(bodyStarted);
+
+        hook.set(
+            () -> {
+              blocked.countDown();
+              await(unblock);
+            });
+        z.get("/z");
+        await(blocked);
+        x.get("/x");
+        y.get("/next");
+        Thread.sleep(50);
+        hook.set(
+            () -> {
+              finishBody.countDown();
+              await(bodyFinished);
+            });
+        unblock.countDown();
+
+        assertEquals("hello", y.read().body);
+        assertEquals("/next", y.read().body);
+        assertEquals("/x", x.read().body);
+        assertEquals("/z", z.read().body);
+      }
+    }
+  }
+
+  /** Wait for a channel the server was handed to be closed. */
+  private static void assertClosed(final FileChannel channel) throws InterruptedException {
+    for (int attempt = 0; channel.isOpen(); attempt++) {
+      assertTrue(attempt < 500, "File left open");
+      Thread.sleep(10);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void fileBody(final boolean selector, @TempDir final Path dir) throws Exception {
+    final Path small = Files.write(dir.resolve("small.txt"), "0123456789".getBytes(UTF_8));
+    // sparse, and far more than the socket buffers hold
+    final Path large = dir.resolve("large.bin");
+    try (RandomAccessFile f = new RandomAccessFile(large.toFile(), "rw")) {
+      f.setLength(256L * 1024 * 1024);
+    }
+    final BlockingQueue<FileChannel> opened = new LinkedBlockingQueue<>();
+    final int port =
+        start(
+            new Server()
+                .handle(
+                    RequestMatcher.all(),
+                    (req, res) -> {
+                      try {
+                        final FileChannel channel =
+                            FileChannel.open(req.url.equals("/large") ? large : small);
+                        opened.add(channel);
+                        res.body = new FileRegion(channel, 2, channel.size() - 4);
+                      } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                      }
+                      return true;
+                    }),
+            selector);
+    try (Client c = new Client(port)) {
+      assertEquals("234567", c.get("/small").read().body);
+      assertClosed(opened.take());
+      c.send("HEAD /small HTTP/1.1\r\n\r\n");
+      assertEquals("6", c.read(true).headers.get("content-length"));
+      assertClosed(opened.take());
+      // still in step after both
+      assertEquals("234567", c.get("/small").read().body);
+      assertClosed(opened.take());
+
+      // the client goes away part way through
+      c.get("/large");
+      assertEquals(200, c.read(true).status);
+    }
+    assertClosed(opened.take());
+  }
+}
@@ -0,0 +1,64 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class StaticFilesTest {
+  @TempDir static Path dir;
+  private static StaticFiles files;
+
+  @BeforeAll
+  public static void setUp() throws IOException {
+    final Path root = Files.createDirectory(dir.resolve("root"));
+    Files.write(root.resolve("a.txt"), "plain".getBytes(UTF_8));
+    Files.write(root.resolve("a.txt.gz"), "zipped".getBytes(UTF_8));
+    Files.createDirectory(root.resolve("sub"));
+    Files.write(root.resolve("sub/index.html"), "index".getBytes(UTF_8));
+    Files.write(dir.resolve("secret"), "secret".getBytes(UTF_8));
+    files = new StaticFiles((PathMatcher) PathMatcher.of("/static"), root);
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "/static/a.txt, , plain",
+    "/static/a.txt, gzip, zipped",
+    "/static/a.txt, 'gzip;q=0, *', plain",
+    "/static/a.txt, 'br, *;q=0.5', zipped",
+    "/static/sub, , index",
+    "/static/sub/, , index",
+    "/static/a.txt.gz, gzip, zipped",
+    "/static/missing, , ",
+    "/statica.txt, , ",
+    "/static/../secret, , ",
+    "/static/sub/../../secret, , ",
+    "/static/./a.txt, , ",
+    "/static/sub\\..\\..\\secret, , ",
+  })
+  public void serves(final String url, final String acceptEncoding, final String expected) {
+    final Request req = new Request();
+    req.method = Method.GET;
+    req.url = url;
+    if (acceptEncoding != null) {
+      req.headers.request.add(RequestHeader.ACCEPT_ENCODING, acceptEncoding);
+    }
+    final Response res = new Response(req);
+    if (!files.handle(req, res)) {
+      assertNull(expected);
+      return;
+    }
+    final ByteBuffer body = ((ByteBuffer) res.body).duplicate();
+    final byte[] bytes = new byte[body.remaining()];
+    body.get(bytes);
+    assertEquals(expected, new String(bytes, UTF_8));
+  }
+}
@@ -0,0 +1,77 @@
+package com.jeffbrower.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class UrlDecoderTest {
+  private static String decode(final String s, final Charset charset) {
+    final byte[] a = ("?" + s + "#").getBytes(ISO_8859_1);
+    return UrlDecoder.decode(a, 1, a.length - 1, charset);
+  }
+
+  @ParameterizedTest
+  @CsvSource(
+      delimiter = '|',
+      value = {
+        "/a/b|/a/b",
+        "''|''",
+        "a+b|a b",
+        "%2B%2b|++",
+        "caf%C3%A9|caf\u00e9",
+        "%E2%82%AC|\u20ac",
+        "%F0%9F%98%80|\ud83d\ude00",
+      })
+  public void utf8(final String input, final String expected) {
+    assertEquals(expected, decode(input, UTF_8));
+  }
+
+  @Test
+  public void otherCharset() {
+    assertEquals("caf\u00e9", decode("caf%E9", ISO_8859_1));
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "%",
+        "%4",
+        "a%4",
+        "%G1",
+        "%1G",
+        "%C3",
+        "%C3%28",
+        "%C0%AF",
+        "%ED%A0%80",
+        "%F4%90%80%80",
+        "%FF"
+      })
+  public void malformed(final String input) {
+    assertEquals(
+        Status.BAD_REQUEST,
+        assertThrows(ErrorResponseException.class, () -> decode(input, UTF_8)).status);
+  }
+
+  @Test
+  public void params() {
+    final byte[] a = "x=1&y&x=%32&&z=a+b&=e".getBytes(ISO_8859_1);
+    final Map<String, List<String>> params = new HashMap<>();
+    UrlDecoder.decodeParams(a, 0, a.length, UTF_8, params);
+    assertEquals(List.of("1", "2"), params.get("x"));
+    assertEquals(Arrays.asList((String) null), params.get("y"));
+    assertEquals(List.of("a b"), params.get("z"));
+    assertEquals(List.of("e"), params.get(""));
+    assertEquals(4, params.size());
+  }
+}